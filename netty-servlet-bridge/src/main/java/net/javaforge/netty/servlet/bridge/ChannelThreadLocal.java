@@ -18,6 +18,11 @@ package net.javaforge.netty.servlet.bridge;
 
 import io.netty.channel.Channel;
 
+/**
+ * Channel of the request handled by the current thread. Only bound while the
+ * {@link ServletBridgeHandler} invokes interceptors and the filter chain, use
+ * {@link RequestContext#getChannel()} instead.
+ */
 public class ChannelThreadLocal {
 
     public static final ThreadLocal<Channel> channelThreadLocal = new ThreadLocal<Channel>();
@@ -0,0 +1,189 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge;
+
+import io.netty.channel.Channel;
+import io.netty.handler.ssl.SslHandler;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import net.javaforge.netty.servlet.bridge.dispatch.ServletBridgeExecutors;
+
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Addresses of a connection, resolved once when its first request is
+ * received and kept on the channel, or reported by a load balancer in front
+ * of the connection. Host names are never looked up on the
+ * calling thread: the remote host is the client's ip address unless a
+ * {@link #lookupRemoteHost() reverse lookup} was started and has completed
+ * meanwhile.
+ */
+public final class ConnectionAddresses {
+
+    private static final AttributeKey<ConnectionAddresses> KEY = AttributeKey
+            .valueOf(ConnectionAddresses.class.getName());
+
+    private final InetSocketAddress localAddress;
+
+    private final InetSocketAddress remoteAddress;
+
+    private final String localAddr;
+
+    private final String remoteAddr;
+
+    private final boolean secure;
+
+    private final AtomicBoolean lookupStarted = new AtomicBoolean();
+
+    private volatile String remoteHost;
+
+    ConnectionAddresses(InetSocketAddress localAddress,
+                        InetSocketAddress remoteAddress, boolean secure) {
+        this.localAddress = localAddress;
+        this.remoteAddress = remoteAddress;
+        this.localAddr = hostAddress(localAddress);
+        this.remoteAddr = hostAddress(remoteAddress);
+        this.secure = secure;
+    }
+
+    /**
+     * Returns the addresses of the given channel, resolving them on first
+     * access.
+     */
+    public static ConnectionAddresses get(Channel channel) {
+        Attribute<ConnectionAddresses> attr = channel.attr(KEY);
+        ConnectionAddresses addresses = attr.get();
+        if (addresses == null) {
+            addresses = new ConnectionAddresses(
+                    toInetSocketAddress(channel.localAddress()),
+                    toInetSocketAddress(channel.remoteAddress()), channel
+                    .pipeline().get(SslHandler.class) != null);
+            ConnectionAddresses existing = attr.setIfAbsent(addresses);
+            if (existing != null)
+                addresses = existing;
+        }
+        return addresses;
+    }
+
+    /**
+     * Replaces the addresses of the given channel, for connections accepted
+     * from a proxy which reported the original ones.
+     *
+     * @see ProxyProtocolHandler
+     */
+    public static ConnectionAddresses set(Channel channel,
+                                          InetSocketAddress localAddress,
+                                          InetSocketAddress remoteAddress) {
+        ConnectionAddresses addresses = new ConnectionAddresses(localAddress,
+                remoteAddress,
+                channel.pipeline().get(SslHandler.class) != null);
+        channel.attr(KEY).set(addresses);
+        return addresses;
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return localAddress;
+    }
+
+    public InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    /**
+     * Local ip address, <code>null</code> if the channel has no ip address.
+     */
+    public String getLocalAddr() {
+        return localAddr;
+    }
+
+    public int getLocalPort() {
+        return localAddress != null ? localAddress.getPort() : -1;
+    }
+
+    /**
+     * Ip address of the client, <code>null</code> if the channel has no ip
+     * address.
+     */
+    public String getRemoteAddr() {
+        return remoteAddr;
+    }
+
+    /**
+     * Host name of the client if a reverse lookup has completed, its ip
+     * address otherwise.
+     */
+    public String getRemoteHost() {
+        String remoteHost = this.remoteHost;
+        return remoteHost != null ? remoteHost : remoteAddr;
+    }
+
+    public int getRemotePort() {
+        return remoteAddress != null ? remoteAddress.getPort() : -1;
+    }
+
+    public boolean isSecure() {
+        return secure;
+    }
+
+    /**
+     * Starts the reverse lookup of the client's host name in the background,
+     * unless it was started before. Lookups rejected because too many are
+     * pending are not retried.
+     */
+    public void lookupRemoteHost() {
+        if (remoteAddress == null || remoteAddress.getAddress() == null
+                || !lookupStarted.compareAndSet(false, true))
+            return;
+
+        try {
+            Lookups.EXECUTOR.execute(new Runnable() {
+                @Override
+                public void run() {
+                    remoteHost = remoteAddress.getAddress().getHostName();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            // keep the ip address
+        }
+    }
+
+    private static String hostAddress(InetSocketAddress address) {
+        if (address == null)
+            return null;
+
+        return address.getAddress() != null ? address.getAddress()
+                .getHostAddress() : address.getHostString();
+    }
+
+    private static InetSocketAddress toInetSocketAddress(SocketAddress address) {
+        return address instanceof InetSocketAddress ? (InetSocketAddress) address
+                : null;
+    }
+
+    /**
+     * Holder of the lookup threads, created on first use only.
+     */
+    private static final class Lookups {
+
+        private static final Executor EXECUTOR = ServletBridgeExecutors
+                .newBoundedExecutor("remote-host-lookup", 4, 1024);
+    }
+}
@@ -18,19 +18,32 @@ package net.javaforge.netty.servlet.bridge;
 
 import net.javaforge.netty.servlet.bridge.impl.HttpSessionImpl;
 import net.javaforge.netty.servlet.bridge.impl.ServletBridgeWebapp;
-import net.javaforge.netty.servlet.bridge.session.DefaultServletBridgeHttpSessionStore;
 import net.javaforge.netty.servlet.bridge.session.ServletBridgeHttpSessionStore;
 
+/**
+ * Session of the request handled by the current thread. Only bound while the
+ * {@link ServletBridgeHandler} invokes interceptors and the filter chain, use
+ * {@link RequestContext#getSession()} instead.
+ */
 public class HttpSessionThreadLocal {
 
     public static final ThreadLocal<HttpSessionImpl> sessionThreadLocal = new ThreadLocal<HttpSessionImpl>();
 
     private static ServletBridgeHttpSessionStore sessionStore;
 
+    /**
+     * @deprecated every webapp has its own session store, use
+     * {@link ServletBridgeWebapp#getSessionStore()} instead.
+     */
+    @Deprecated
     public static ServletBridgeHttpSessionStore getSessionStore() {
         return sessionStore;
     }
 
+    /**
+     * @deprecated every webapp has its own session store.
+     */
+    @Deprecated
     public static void setSessionStore(ServletBridgeHttpSessionStore store) {
         sessionStore = store;
     }
@@ -50,16 +63,17 @@ public class HttpSessionThreadLocal {
         return session;
     }
 
+    /**
+     * @deprecated use {@link #getOrCreate(ServletBridgeWebapp)}.
+     */
+    @Deprecated
     public static HttpSessionImpl getOrCreate() {
-        if (HttpSessionThreadLocal.get() == null) {
-            if (sessionStore == null) {
-                sessionStore = new DefaultServletBridgeHttpSessionStore();
-            }
+        return getOrCreate(ServletBridgeWebapp.get());
+    }
 
-            HttpSessionImpl newSession = sessionStore.createSession();
-            newSession.setMaxInactiveInterval(ServletBridgeWebapp.get()
-                    .getWebappConfig().getSessionTimeout());
-            sessionThreadLocal.set(sessionStore.createSession());
+    public static HttpSessionImpl getOrCreate(ServletBridgeWebapp webapp) {
+        if (HttpSessionThreadLocal.get() == null) {
+            sessionThreadLocal.set(webapp.createSession());
         }
         return get();
     }
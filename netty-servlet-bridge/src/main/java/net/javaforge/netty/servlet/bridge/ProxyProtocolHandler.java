@@ -0,0 +1,97 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge;
+
+import io.netty.channel.ChannelHandler;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.DecoderException;
+import io.netty.handler.codec.haproxy.HAProxyCommand;
+import io.netty.handler.codec.haproxy.HAProxyMessage;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.handler.codec.haproxy.HAProxyProtocolException;
+import io.netty.handler.codec.haproxy.HAProxyProxiedProtocol;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Takes the addresses of a connection from the PROXY protocol (version 1 or
+ * 2) header a load balancer sends in front of the forwarded bytes, see
+ * {@link HAProxyMessageDecoder}. The addresses the client connected from
+ * and to are stored as the {@link ConnectionAddresses} of the channel, the
+ * handler removes itself afterwards. Connections not starting with a valid
+ * header are closed.
+ * <p/>
+ * Health checks of the load balancer (<code>LOCAL</code> command) and
+ * headers of other than TCP connections keep the addresses of the
+ * connection itself.
+ */
+@ChannelHandler.Sharable
+public class ProxyProtocolHandler extends ChannelInboundHandlerAdapter {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(ProxyProtocolHandler.class);
+
+    public static final ProxyProtocolHandler INSTANCE = new ProxyProtocolHandler();
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg)
+            throws Exception {
+        if (!(msg instanceof HAProxyMessage)) {
+            ctx.fireChannelRead(msg);
+            return;
+        }
+
+        HAProxyMessage message = (HAProxyMessage) msg;
+        if (message.command() == HAProxyCommand.PROXY
+                && (message.proxiedProtocol() == HAProxyProxiedProtocol.TCP4 || message
+                .proxiedProtocol() == HAProxyProxiedProtocol.TCP6)) {
+            ConnectionAddresses.set(ctx.channel(), toInetSocketAddress(
+                    message.destinationAddress(), message.destinationPort()),
+                    toInetSocketAddress(message.sourceAddress(), message
+                            .sourcePort()));
+        }
+        ctx.pipeline().remove(this);
+    }
+
+    @Override
+    public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause)
+            throws Exception {
+        if (cause instanceof HAProxyProtocolException
+                || (cause instanceof DecoderException && cause.getCause() instanceof HAProxyProtocolException)) {
+            // the decoder has closed the connection already
+            log.debug("Invalid PROXY protocol header from {}: {}", ctx
+                    .channel().remoteAddress(), cause.getMessage());
+            ctx.close();
+            return;
+        }
+        ctx.fireExceptionCaught(cause);
+    }
+
+    private static InetSocketAddress toInetSocketAddress(String address,
+                                                         int port)
+            throws UnknownHostException {
+        byte[] bytes = TrustedProxies.parseAddress(address);
+        if (bytes == null)
+            throw new HAProxyProtocolException("invalid address: " + address);
+        return new InetSocketAddress(InetAddress.getByAddress(bytes), port);
+    }
+}
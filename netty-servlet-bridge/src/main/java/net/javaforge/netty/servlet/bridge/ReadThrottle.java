@@ -0,0 +1,67 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge;
+
+import io.netty.channel.Channel;
+import io.netty.util.AttributeKey;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+
+/**
+ * Suspends reading from a channel on behalf of several independent parties,
+ * e.g. a {@link ResponseSequencer} with too many pending responses and a
+ * request body whose consumer lags behind. Reading resumes once none of them
+ * holds it back any longer.
+ * <p/>
+ * Must be called on the event loop of the channel.
+ */
+public final class ReadThrottle {
+
+    private static final AttributeKey<Set<Object>> KEY = AttributeKey
+            .valueOf(ReadThrottle.class.getName());
+
+    private ReadThrottle() {
+    }
+
+    public static void suspend(Channel channel, Object reason) {
+        Set<Object> reasons = channel.attr(KEY).get();
+        if (reasons == null) {
+            reasons = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+            channel.attr(KEY).set(reasons);
+        }
+
+        if (reasons.add(reason) && reasons.size() == 1)
+            channel.config().setAutoRead(false);
+    }
+
+    public static void resume(Channel channel, Object reason) {
+        Set<Object> reasons = channel.attr(KEY).get();
+        if (reasons != null && reasons.remove(reason) && reasons.isEmpty()) {
+            channel.config().setAutoRead(true);
+            channel.read();
+        }
+    }
+
+    public static boolean isSuspended(Channel channel) {
+        Set<Object> reasons = channel.attr(KEY).get();
+        return reasons != null && !reasons.isEmpty();
+    }
+
+}
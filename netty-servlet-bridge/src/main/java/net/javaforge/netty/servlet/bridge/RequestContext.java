@@ -0,0 +1,292 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge;
+
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.concurrent.FastThreadLocal;
+import net.javaforge.netty.servlet.bridge.impl.HttpSessionImpl;
+import net.javaforge.netty.servlet.bridge.impl.RequestCookies;
+
+import java.net.InetSocketAddress;
+
+/**
+ * Per request state which does not belong to the HTTP message itself: the
+ * channel, its addresses, whether it is secured, the session and the time
+ * the request was received. Resolved once when the request is received, so
+ * the request may be handled on any thread afterwards. The parsed cookies
+ * of the request are kept here too, so interceptors and the servlet share
+ * them.
+ * <p/>
+ * The addresses of the connection are resolved once per channel, see
+ * {@link ConnectionAddresses}. With {@link TrustedProxies} the client
+ * address and scheme are taken from the forwarding headers of the request
+ * instead, parsed on first access.
+ * <p/>
+ * {@link ChannelThreadLocal} and {@link HttpSessionThreadLocal} are only
+ * {@link #bind() bound} while the handler invokes interceptors and the filter
+ * chain, for code still relying on them.
+ */
+public class RequestContext {
+
+    private static final FastThreadLocal<RequestContext> CURRENT = new FastThreadLocal<RequestContext>();
+
+    private static final TrustedProxies.Forwarded NOT_FORWARDED = new TrustedProxies.Forwarded(
+            null, -1, null, null, -1);
+
+    private final Channel channel;
+
+    private final HttpRequest request;
+
+    private final ConnectionAddresses connection;
+
+    private final TrustedProxies trustedProxies;
+
+    /**
+     * Client as reported by trusted proxies, {@link #NOT_FORWARDED} if the
+     * request was not forwarded by one, <code>null</code> until resolved.
+     */
+    private TrustedProxies.Forwarded forwarded;
+
+    private final long startTime;
+
+    private final long startNanos;
+
+    private volatile HttpSessionImpl session;
+
+    private RequestCookies cookies;
+
+    /**
+     * Thread the thread locals are bound to at the moment.
+     */
+    private volatile Thread boundThread;
+
+    public RequestContext(Channel channel) {
+        this(channel, null);
+    }
+
+    public RequestContext(Channel channel, HttpRequest request) {
+        this(channel, request, null);
+    }
+
+    /**
+     * @param trustedProxies proxies whose forwarding headers are believed,
+     *                       <code>null</code> to ignore forwarding headers
+     */
+    public RequestContext(Channel channel, HttpRequest request,
+                          TrustedProxies trustedProxies) {
+        this.channel = channel;
+        this.request = request;
+        this.connection = ConnectionAddresses.get(channel);
+        this.trustedProxies = trustedProxies;
+        this.startTime = System.currentTimeMillis();
+        this.startNanos = System.nanoTime();
+    }
+
+    /**
+     * Returns a context for the channel and session bound to the current
+     * thread, <code>null</code> if there is no channel.
+     */
+    public static RequestContext fromThreadLocals() {
+        Channel channel = ChannelThreadLocal.get();
+        if (channel == null)
+            return null;
+
+        RequestContext context = new RequestContext(channel);
+        context.session = HttpSessionThreadLocal.sessionThreadLocal.get();
+        return context;
+    }
+
+    /**
+     * Returns the context bound to the current thread, <code>null</code> if
+     * there is none.
+     */
+    public static RequestContext current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Binds the channel and session to the thread locals of the current
+     * thread. Must be followed by {@link #unbind()} on the same thread.
+     */
+    public void bind() {
+        CURRENT.set(this);
+        ChannelThreadLocal.set(this.channel);
+        HttpSessionThreadLocal.set(this.session);
+        this.boundThread = Thread.currentThread();
+    }
+
+    /**
+     * Removes the thread locals of the current thread again, keeping a
+     * session an interceptor or servlet has set meanwhile.
+     */
+    public void unbind() {
+        HttpSessionImpl bound = HttpSessionThreadLocal.sessionThreadLocal.get();
+        if (bound != null && this.session == null)
+            this.session = bound;
+        this.boundThread = null;
+        ChannelThreadLocal.unset();
+        HttpSessionThreadLocal.unset();
+        CURRENT.remove();
+    }
+
+    public Channel getChannel() {
+        return channel;
+    }
+
+    /**
+     * Returns the request of this context, <code>null</code> if it was
+     * created without one.
+     */
+    public HttpRequest getRequest() {
+        return request;
+    }
+
+    /**
+     * Returns the cookies of the request, parsed on first access;
+     * <code>null</code> if the context has no request.
+     */
+    public RequestCookies getCookies() {
+        if (cookies == null && request != null)
+            cookies = RequestCookies.parse(request);
+        return cookies;
+    }
+
+    public ConnectionAddresses getConnection() {
+        return connection;
+    }
+
+    public InetSocketAddress getLocalAddress() {
+        return connection.getLocalAddress();
+    }
+
+    /**
+     * Address of the peer of the connection, which is a proxy for forwarded
+     * requests.
+     *
+     * @see #getRemoteAddr()
+     */
+    public InetSocketAddress getRemoteAddress() {
+        return connection.getRemoteAddress();
+    }
+
+    /**
+     * Ip address of the client, as reported by trusted proxies for forwarded
+     * requests.
+     */
+    public String getRemoteAddr() {
+        TrustedProxies.Forwarded forwarded = forwarded();
+        return forwarded != NOT_FORWARDED ? forwarded.getRemoteAddr()
+                : connection.getRemoteAddr();
+    }
+
+    /**
+     * Host name of the client if known without blocking, its ip address
+     * otherwise. Forwarded clients are never looked up.
+     */
+    public String getRemoteHost() {
+        TrustedProxies.Forwarded forwarded = forwarded();
+        return forwarded != NOT_FORWARDED ? forwarded.getRemoteAddr()
+                : connection.getRemoteHost();
+    }
+
+    public int getRemotePort() {
+        TrustedProxies.Forwarded forwarded = forwarded();
+        return forwarded != NOT_FORWARDED ? forwarded.getRemotePort()
+                : connection.getRemotePort();
+    }
+
+    public String getScheme() {
+        TrustedProxies.Forwarded forwarded = forwarded();
+        if (forwarded.getScheme() != null)
+            return forwarded.getScheme();
+        return connection.isSecure() ? "https" : "http";
+    }
+
+    public boolean isSecure() {
+        TrustedProxies.Forwarded forwarded = forwarded();
+        if (forwarded.getScheme() != null)
+            return forwarded.getScheme().equals("https");
+        return connection.isSecure();
+    }
+
+    /**
+     * Returns <code>true</code> if the request was forwarded by a trusted
+     * proxy.
+     */
+    public boolean isForwarded() {
+        return forwarded() != NOT_FORWARDED;
+    }
+
+    /**
+     * Host header the client sent to a trusted proxy, <code>null</code> if
+     * the request was not forwarded or the proxy did not report it.
+     */
+    public String getForwardedHost() {
+        return forwarded().getHost();
+    }
+
+    /**
+     * Port the client connected a trusted proxy on, -1 if the request was
+     * not forwarded or the proxy did not report it.
+     */
+    public int getForwardedPort() {
+        return forwarded().getPort();
+    }
+
+    private TrustedProxies.Forwarded forwarded() {
+        TrustedProxies.Forwarded forwarded = this.forwarded;
+        if (forwarded == null) {
+            if (trustedProxies != null && request != null)
+                forwarded = trustedProxies.resolve(request, connection);
+            if (forwarded == null)
+                forwarded = NOT_FORWARDED;
+            // immutable, resolving it twice on a race does no harm
+            this.forwarded = forwarded;
+        }
+        return forwarded;
+    }
+
+    /**
+     * Time the request was received, in milliseconds since the epoch.
+     */
+    public long getStartTime() {
+        return startTime;
+    }
+
+    public long getElapsedMillis() {
+        return (System.nanoTime() - startNanos) / 1000000L;
+    }
+
+    public HttpSessionImpl getSession() {
+        HttpSessionImpl session = this.session;
+        if (session == null && this.boundThread == Thread.currentThread()) {
+            // set by an interceptor
+            session = HttpSessionThreadLocal.sessionThreadLocal.get();
+            this.session = session;
+        }
+        return session;
+    }
+
+    public void setSession(HttpSessionImpl session) {
+        this.session = session;
+        if (this.boundThread == Thread.currentThread())
+            HttpSessionThreadLocal.set(session);
+    }
+
+}
@@ -0,0 +1,236 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge;
+
+import io.netty.buffer.ByteBufHolder;
+import io.netty.channel.Channel;
+import io.netty.channel.ChannelFutureListener;
+import io.netty.channel.ChannelHandlerContext;
+import io.netty.channel.ChannelInboundHandlerAdapter;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.util.AttributeKey;
+import io.netty.util.ReferenceCountUtil;
+import io.netty.util.collection.IntObjectHashMap;
+import io.netty.util.collection.IntObjectMap;
+
+/**
+ * Writes the responses of pipelined requests in the order the requests were
+ * received, so the requests of one connection can be processed concurrently.
+ * <p/>
+ * Every request gets a sequence number when it passes this handler. A
+ * response completed out of turn is buffered until the responses of all
+ * requests before it are written. Once too many requests are pending or too
+ * many bytes are buffered, reading from the connection is suspended until
+ * the backlog is written.
+ * <p/>
+ * One instance per channel, to be placed in front of the
+ * {@link ServletBridgeHandler}s.
+ */
+public class ResponseSequencer extends ChannelInboundHandlerAdapter {
+
+    private static final AttributeKey<ResponseSequencer> KEY = AttributeKey
+            .valueOf(ResponseSequencer.class.getName());
+
+    public static final int DEFAULT_MAX_PENDING_REQUESTS = 16;
+
+    public static final long DEFAULT_MAX_BUFFERED_BYTES = 1024 * 1024;
+
+    private final int maxPendingRequests;
+
+    private final long maxBufferedBytes;
+
+    private final IntObjectMap<Pending> pending = new IntObjectHashMap<Pending>();
+
+    private ChannelHandlerContext ctx;
+
+    /**
+     * Sequence number of the request read last.
+     */
+    private int currentRequest = -1;
+
+    /**
+     * Sequence number of the next response to write.
+     */
+    private int nextResponse;
+
+    private long bufferedBytes;
+
+    private boolean readSuspended;
+
+    public ResponseSequencer() {
+        this(DEFAULT_MAX_PENDING_REQUESTS, DEFAULT_MAX_BUFFERED_BYTES);
+    }
+
+    public ResponseSequencer(int maxPendingRequests, long maxBufferedBytes) {
+        this.maxPendingRequests = maxPendingRequests;
+        this.maxBufferedBytes = maxBufferedBytes;
+    }
+
+    /**
+     * Returns the sequencer of the given channel, <code>null</code> if its
+     * pipeline has none.
+     */
+    public static ResponseSequencer get(Channel channel) {
+        return channel.attr(KEY).get();
+    }
+
+    @Override
+    public void handlerAdded(ChannelHandlerContext ctx) throws Exception {
+        this.ctx = ctx;
+        ctx.channel().attr(KEY).set(this);
+    }
+
+    @Override
+    public void channelRead(ChannelHandlerContext ctx, Object msg)
+            throws Exception {
+        if (msg instanceof HttpRequest) {
+            currentRequest++;
+            updateReading();
+        }
+        ctx.fireChannelRead(msg);
+    }
+
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        for (Pending p : pending.values(Pending.class))
+            ReferenceCountUtil.release(p.message);
+        pending.clear();
+        bufferedBytes = 0;
+        ctx.fireChannelInactive();
+    }
+
+    /**
+     * Returns the sequence number of the request being read, to be called
+     * by the handlers while they receive the request.
+     */
+    public int currentRequest() {
+        return currentRequest;
+    }
+
+    /**
+     * Writes the response of the request with the given sequence number once
+     * all responses before it are written. May be called from any thread.
+     *
+     * @param close <code>true</code> to close the connection afterwards
+     */
+    public void write(int sequence, Object message, boolean close) {
+        write(sequence, new Pending(message, null, close));
+    }
+
+    /**
+     * Runs the given writer on the event loop once all responses before the
+     * one of the given request are written. The writer is responsible for
+     * flushing.
+     */
+    public void write(int sequence, Runnable writer) {
+        write(sequence, new Pending(null, writer, false));
+    }
+
+    private void write(final int sequence, final Pending response) {
+        if (!ctx.executor().inEventLoop()) {
+            ctx.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    write(sequence, response);
+                }
+            });
+            return;
+        }
+
+        if (sequence != nextResponse) {
+            pending.put(sequence, response);
+            bufferedBytes += response.size;
+            updateReading();
+            return;
+        }
+
+        Pending next = response;
+        boolean flush = false;
+        do {
+            flush |= next.write(ctx.channel());
+            nextResponse++;
+            next = pending.remove(nextResponse);
+            if (next != null)
+                bufferedBytes -= next.size;
+        } while (next != null);
+
+        if (flush)
+            ctx.channel().flush();
+        updateReading();
+    }
+
+    private void updateReading() {
+        int pendingRequests = currentRequest - nextResponse + 1;
+        boolean suspend = pendingRequests >= maxPendingRequests
+                || bufferedBytes > maxBufferedBytes;
+
+        if (suspend != readSuspended) {
+            readSuspended = suspend;
+            if (suspend)
+                ReadThrottle.suspend(ctx.channel(), this);
+            else
+                ReadThrottle.resume(ctx.channel(), this);
+        }
+    }
+
+    public int getPendingRequests() {
+        return currentRequest - nextResponse + 1;
+    }
+
+    public long getBufferedBytes() {
+        return bufferedBytes;
+    }
+
+    private static final class Pending {
+
+        private final Object message;
+
+        private final Runnable writer;
+
+        private final boolean close;
+
+        private final long size;
+
+        private Pending(Object message, Runnable writer, boolean close) {
+            this.message = message;
+            this.writer = writer;
+            this.close = close;
+            this.size = message instanceof ByteBufHolder ? ((ByteBufHolder) message)
+                    .content().readableBytes() : 0;
+        }
+
+        /**
+         * Writes the response, returns <code>true</code> if a flush is
+         * needed.
+         */
+        private boolean write(Channel channel) {
+            if (writer != null) {
+                writer.run();
+                return false;
+            }
+
+            if (close) {
+                channel.writeAndFlush(message).addListener(
+                        ChannelFutureListener.CLOSE);
+                return false;
+            }
+
+            channel.write(message);
+            return true;
+        }
+    }
+}
@@ -16,31 +16,43 @@
 
 package net.javaforge.netty.servlet.bridge;
 
-import io.netty.channel.ChannelHandler;
-import io.netty.channel.ChannelPipeline;
+import io.netty.channel.*;
 import io.netty.channel.group.ChannelGroup;
 import io.netty.channel.group.DefaultChannelGroup;
+import io.netty.handler.codec.haproxy.HAProxyMessageDecoder;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
 import io.netty.handler.codec.http.HttpContentCompressor;
+import io.netty.handler.codec.http.HttpRequest;
 import io.netty.handler.codec.http.HttpRequestDecoder;
 import io.netty.handler.codec.http.HttpResponseEncoder;
 import io.netty.handler.timeout.IdleStateHandler;
 import io.netty.util.HashedWheelTimer;
+import io.netty.util.ReferenceCountUtil;
 import io.netty.util.Timer;
 import io.netty.util.concurrent.DefaultEventExecutor;
 import net.javaforge.netty.servlet.bridge.config.WebappConfiguration;
+import net.javaforge.netty.servlet.bridge.dispatch.AdmissionController;
 import net.javaforge.netty.servlet.bridge.impl.ServletBridgeWebapp;
-import net.javaforge.netty.servlet.bridge.interceptor.ChannelInterceptor;
 import net.javaforge.netty.servlet.bridge.interceptor.HttpSessionInterceptor;
 import net.javaforge.netty.servlet.bridge.session.DefaultServletBridgeHttpSessionStore;
 import net.javaforge.netty.servlet.bridge.session.ServletBridgeHttpSessionStore;
 
-//import io.netty.channel.ChannelPipelineFactory;
-//import io.netty.handler.codec.http.HttpChunkAggregator;
+import java.util.*;
+import java.util.concurrent.Executor;
 
-//TODO Just fix the compilation error. not right implementation
-public class ServletBridgeChannelPipelineFactory {
-//    implements
-//        ChannelPipelineFactory {
+import static io.netty.handler.codec.http.HttpHeaders.Names.CONTENT_LENGTH;
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_FOUND;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * Sets up the http pipeline of a channel. Every configured webapp gets its
+ * own {@link ServletBridgeHandler} mounted under its context path, all of
+ * them served by the event loops of the server bootstrap unless a
+ * {@link #setDispatchExecutor(Executor) dispatch executor} is configured.
+ */
+public class ServletBridgeChannelPipelineFactory extends
+        ChannelInitializer<Channel> {
 
     private DefaultEventExecutor eventExecutor = new DefaultEventExecutor();
 
@@ -48,55 +60,225 @@ public class ServletBridgeChannelPipelineFactory {
 
     private HttpSessionWatchdog watchdog;
 
-    private final ChannelHandler idleStateHandler;
+    private final List<ServletBridgeWebapp> webapps = new ArrayList<ServletBridgeWebapp>();
+
+    private boolean hasRootWebapp;
 
     private Timer timer;
 
-    public ServletBridgeChannelPipelineFactory(WebappConfiguration config) {
+    private Executor dispatchExecutor;
+
+    private AdmissionController admissionController;
+
+    private long requestDeadline;
+
+    private String deadlineHeader;
+
+    private int maxPipelinedRequests;
+
+    private long maxBufferedResponseBytes = ResponseSequencer.DEFAULT_MAX_BUFFERED_BYTES;
+
+    private TrustedProxies trustedProxies;
+
+    private boolean remoteHostLookups;
+
+    private boolean proxyProtocol;
+
+    public ServletBridgeChannelPipelineFactory(WebappConfiguration... configs) {
+
+        if (configs == null || configs.length == 0)
+            throw new IllegalArgumentException(
+                    "At least one webapp configuration is required!");
 
         this.timer = new HashedWheelTimer();
-        this.idleStateHandler = new IdleStateHandler(60, 30, 0); // timer
-        // must
-        // be
-        // shared.
 
-        ServletBridgeWebapp webapp = ServletBridgeWebapp.get();
-        webapp.init(config, allChannels);
+        Set<String> contextPaths = new HashSet<String>();
+        for (WebappConfiguration config : configs) {
+            if (!contextPaths.add(config.getContextPath()))
+                throw new IllegalArgumentException("Context path '"
+                        + config.getContextPath() + "' is mapped twice!");
+
+            ServletBridgeWebapp webapp = new ServletBridgeWebapp();
+            webapp.init(config, allChannels, getHttpSessionStore());
+            this.webapps.add(webapp);
+        }
+
+        this.hasRootWebapp = contextPaths.contains("");
+
+        // nested context paths have to see the requests first
+        Collections.sort(this.webapps, new Comparator<ServletBridgeWebapp>() {
+            @Override
+            public int compare(ServletBridgeWebapp o1, ServletBridgeWebapp o2) {
+                return o2.getContextPath().length()
+                        - o1.getContextPath().length();
+            }
+        });
 
         new Thread(this.watchdog = new HttpSessionWatchdog()).start();
     }
 
     public void shutdown() {
         this.watchdog.stopWatching();
-        ServletBridgeWebapp.get().destroy();
+        for (ServletBridgeWebapp webapp : this.webapps)
+            webapp.destroy();
         this.timer.stop();
         this.allChannels.close().awaitUninterruptibly();
+        this.eventExecutor.shutdownGracefully();
     }
 
-    //    @Override
-    public final ChannelPipeline pipeline() {
-        ChannelPipeline pipeline = getDefaulHttpChannelPipeline();
-        pipeline.addLast("handler", getServletBridgeHandler());
-        return pipeline;
+    @Override
+    protected void initChannel(Channel ch) throws Exception {
+        ChannelPipeline pipeline = ch.pipeline();
+        getDefaulHttpChannelPipeline(pipeline);
+
+        if (this.proxyProtocol) {
+            // ahead of everything else, tls included
+            pipeline.addFirst("proxyProtocol", ProxyProtocolHandler.INSTANCE);
+            pipeline.addFirst("proxyProtocolDecoder",
+                    new HAProxyMessageDecoder());
+        }
+
+        if (this.maxPipelinedRequests > 0)
+            pipeline.addLast("sequencer", new ResponseSequencer(
+                    this.maxPipelinedRequests, this.maxBufferedResponseBytes));
+
+        for (ServletBridgeWebapp webapp : this.webapps)
+            pipeline.addLast("handler" + webapp.getContextPath(),
+                    getServletBridgeHandler(webapp));
+
+        if (!this.hasRootWebapp)
+            pipeline.addLast("notFound", NotFoundHandler.INSTANCE);
+    }
+
+    /**
+     * Dispatches servlet requests to the given executor so that blocking
+     * servlets do not stall the event loop. The executor is owned by the
+     * caller and is not shut down by {@link #shutdown()}.
+     *
+     * @see net.javaforge.netty.servlet.bridge.dispatch.ServletBridgeExecutors
+     */
+    public ServletBridgeChannelPipelineFactory setDispatchExecutor(
+            Executor dispatchExecutor) {
+        this.dispatchExecutor = dispatchExecutor;
+        return this;
+    }
+
+    public Executor getDispatchExecutor() {
+        return dispatchExecutor;
+    }
+
+    /**
+     * Limits the servlet requests in flight across all webapps of this
+     * server, requests over the limits are answered with 503.
+     */
+    public ServletBridgeChannelPipelineFactory setAdmissionController(
+            AdmissionController admissionController) {
+        this.admissionController = admissionController;
+        return this;
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Default deadline of servlet requests in milliseconds.
+     *
+     * @see ServletBridgeHandler#setRequestDeadline(long)
+     */
+    public ServletBridgeChannelPipelineFactory setRequestDeadline(long millis) {
+        this.requestDeadline = millis;
+        return this;
+    }
+
+    /**
+     * Request header clients may pass a shorter deadline with.
+     *
+     * @see ServletBridgeHandler#setDeadlineHeader(String)
+     */
+    public ServletBridgeChannelPipelineFactory setDeadlineHeader(
+            String deadlineHeader) {
+        this.deadlineHeader = deadlineHeader;
+        return this;
+    }
+
+    /**
+     * Limits of pipelined requests per connection: reading from a connection
+     * stops while the given number of requests are unanswered or the given
+     * number of response bytes wait for earlier responses. Off by default: a
+     * limit of 0 processes the requests of a connection one after another.
+     *
+     * @see ResponseSequencer
+     */
+    public ServletBridgeChannelPipelineFactory setPipelining(
+            int maxPipelinedRequests, long maxBufferedResponseBytes) {
+        this.maxPipelinedRequests = maxPipelinedRequests;
+        this.maxBufferedResponseBytes = maxBufferedResponseBytes;
+        return this;
+    }
+
+    /**
+     * Proxies whose forwarding headers are believed.
+     *
+     * @see ServletBridgeHandler#setTrustedProxies(TrustedProxies)
+     */
+    public ServletBridgeChannelPipelineFactory setTrustedProxies(
+            TrustedProxies trustedProxies) {
+        this.trustedProxies = trustedProxies;
+        return this;
+    }
+
+    /**
+     * Looks up host names of clients in the background, off by default.
+     *
+     * @see ServletBridgeHandler#setRemoteHostLookups(boolean)
+     */
+    public ServletBridgeChannelPipelineFactory setRemoteHostLookups(
+            boolean remoteHostLookups) {
+        this.remoteHostLookups = remoteHostLookups;
+        return this;
+    }
+
+    /**
+     * Expects every connection to start with a PROXY protocol header, as
+     * sent by load balancers forwarding TCP connections, and reports the
+     * client addresses from it. Connections without header are closed, so
+     * only enable it for ports which are solely reachable through the load
+     * balancer.
+     *
+     * @see ProxyProtocolHandler
+     */
+    public ServletBridgeChannelPipelineFactory setProxyProtocol(
+            boolean proxyProtocol) {
+        this.proxyProtocol = proxyProtocol;
+        return this;
+    }
+
+    public List<ServletBridgeWebapp> getWebapps() {
+        return Collections.unmodifiableList(this.webapps);
     }
 
     protected ServletBridgeHttpSessionStore getHttpSessionStore() {
         return new DefaultServletBridgeHttpSessionStore();
     }
 
-    protected ServletBridgeHandler getServletBridgeHandler() {
+    protected ServletBridgeHandler getServletBridgeHandler(
+            ServletBridgeWebapp webapp) {
 
-        ServletBridgeHandler bridge = new ServletBridgeHandler();
-        bridge.addInterceptor(new ChannelInterceptor());
+        ServletBridgeHandler bridge = new ServletBridgeHandler(webapp)
+                .setExecutor(this.dispatchExecutor)
+                .setAdmissionController(this.admissionController)
+                .setRequestDeadline(this.requestDeadline)
+                .setDeadlineHeader(this.deadlineHeader)
+                .setTrustedProxies(this.trustedProxies)
+                .setRemoteHostLookups(this.remoteHostLookups);
         bridge.addInterceptor(new HttpSessionInterceptor(
-                getHttpSessionStore()));
+                webapp.getSessionStore()));
         return bridge;
     }
 
-    protected ChannelPipeline getDefaulHttpChannelPipeline() {
-
-        // Create a default pipeline implementation.
-        ChannelPipeline pipeline = pipeline();
+    protected ChannelPipeline getDefaulHttpChannelPipeline(
+            ChannelPipeline pipeline) {
 
         pipeline.addLast("decoder", new HttpRequestDecoder());
 //        pipeline.addLast("aggregator", new HttpChunkAggregator(1048576));
@@ -105,11 +287,39 @@ public class ServletBridgeChannelPipelineFactory {
         // Remove the following line if you don't want automatic content
         // compression.
         pipeline.addLast("deflater", new HttpContentCompressor());
-        pipeline.addLast("idle", this.idleStateHandler);
+        pipeline.addLast("idle", new IdleStateHandler(60, 30, 0));
 
         return pipeline;
     }
 
+    /**
+     * Answers requests which are not within the context path of any webapp.
+     */
+    @ChannelHandler.Sharable
+    private static class NotFoundHandler extends ChannelInboundHandlerAdapter {
+
+        private static final NotFoundHandler INSTANCE = new NotFoundHandler();
+
+        @Override
+        public void channelRead(ChannelHandlerContext ctx, Object msg)
+                throws Exception {
+            if (msg instanceof HttpRequest) {
+                FullHttpResponse response = new DefaultFullHttpResponse(
+                        HTTP_1_1, NOT_FOUND);
+                response.headers().set(CONTENT_LENGTH, 0);
+
+                ResponseSequencer sequencer = ResponseSequencer.get(ctx
+                        .channel());
+                if (sequencer != null)
+                    sequencer.write(sequencer.currentRequest(), response, true);
+                else
+                    ctx.writeAndFlush(response).addListener(
+                            ChannelFutureListener.CLOSE);
+            }
+            ReferenceCountUtil.release(msg);
+        }
+    }
+
     private class HttpSessionWatchdog implements Runnable {
 
         private boolean shouldStopWatching = false;
@@ -120,9 +330,12 @@ public class ServletBridgeChannelPipelineFactory {
             while (!shouldStopWatching) {
 
                 try {
-                    ServletBridgeHttpSessionStore store = getHttpSessionStore();
-                    if (store != null) {
-                        store.destroyInactiveSessions();
+                    for (ServletBridgeWebapp webapp : webapps) {
+                        ServletBridgeHttpSessionStore store = webapp
+                                .getSessionStore();
+                        if (store != null) {
+                            store.destroyInactiveSessions();
+                        }
                     }
                     Thread.sleep(5000);
 
@@ -17,6 +17,7 @@
 package net.javaforge.netty.servlet.bridge;
 
 import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
 import io.netty.buffer.Unpooled;
 import io.netty.channel.*;
 import io.netty.handler.codec.TooLongFrameException;
@@ -25,20 +26,37 @@ import io.netty.handler.ssl.SslHandler;
 import io.netty.handler.stream.ChunkedFile;
 import io.netty.handler.timeout.IdleStateEvent;
 import io.netty.handler.timeout.IdleStateHandler;
+import io.netty.util.Attribute;
+import io.netty.util.AttributeKey;
+import net.javaforge.netty.servlet.bridge.config.ServletConfiguration;
+import net.javaforge.netty.servlet.bridge.dispatch.AdmissionController;
+import net.javaforge.netty.servlet.bridge.dispatch.RequestDeadline;
+import net.javaforge.netty.servlet.bridge.dispatch.SerialExecutor;
 import net.javaforge.netty.servlet.bridge.impl.FilterChainImpl;
+import net.javaforge.netty.servlet.bridge.impl.AggregatedRequestBody;
+import net.javaforge.netty.servlet.bridge.impl.HttpContentInputStream;
 import net.javaforge.netty.servlet.bridge.impl.HttpServletRequestImpl;
 import net.javaforge.netty.servlet.bridge.impl.HttpServletResponseImpl;
+import net.javaforge.netty.servlet.bridge.impl.MultipartRequestBody;
+import net.javaforge.netty.servlet.bridge.impl.RequestBody;
+import net.javaforge.netty.servlet.bridge.impl.RequestTooLargeException;
 import net.javaforge.netty.servlet.bridge.impl.ServletBridgeWebapp;
+import net.javaforge.netty.servlet.bridge.impl.URIParser;
+import net.javaforge.netty.servlet.bridge.util.HeaderNames;
 import net.javaforge.netty.servlet.bridge.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import java.io.File;
 import java.io.FileNotFoundException;
+import java.io.IOException;
+import java.io.InputStream;
 import java.io.RandomAccessFile;
 import java.io.UnsupportedEncodingException;
 import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 
 import static io.netty.handler.codec.http.HttpHeaders.Names.*;
 import static io.netty.handler.codec.http.HttpHeaders.setContentLength;
@@ -53,20 +71,128 @@ public class ServletBridgeHandler extends IdleStateHandler {
     private static final Logger log = LoggerFactory
             .getLogger(ServletBridgeHandler.class);
 
+    /**
+     * Limit of request bodies in bytes for servlets running on the I/O thread
+     * without a limit of their own, as their bodies are received and spilled
+     * to disk on it before the servlet runs.
+     */
+    public static final long DEFAULT_MAX_EVENT_LOOP_REQUEST_SIZE = 10 * 1024 * 1024;
+
+    private static final AttributeKey<SerialExecutor> SERIAL_EXECUTOR = AttributeKey
+            .valueOf(ServletBridgeHandler.class.getName() + ".serialExecutor");
+
+    /**
+     * Body of the request whose content is being received.
+     */
+    private static final AttributeKey<RequestBody> REQUEST_BODY = AttributeKey
+            .valueOf(ServletBridgeHandler.class.getName() + ".requestBody");
+
+    /**
+     * Body of requests answered without being processed, drops their
+     * content as it arrives.
+     */
+    private static final RequestBody DISCARDED_BODY = new RequestBody() {
+        @Override
+        public void offer(HttpContent content) {
+            content.release();
+        }
+
+        @Override
+        public void whenReceived(Runnable task) {
+            task.run();
+        }
+
+        @Override
+        public boolean isTooLarge() {
+            return false;
+        }
+
+        @Override
+        public void fail(IOException cause) {
+        }
+
+        @Override
+        public void discard() {
+        }
+
+        @Override
+        public InputStream getInputStream() {
+            return new ByteBufInputStream(Unpooled.EMPTY_BUFFER);
+        }
+
+        @Override
+        public ByteBuf getContent() {
+            return Unpooled.EMPTY_BUFFER;
+        }
+    };
+
     private List<ServletBridgeInterceptor> interceptors;
 
+    private final ServletBridgeWebapp webapp;
 
     /**
      * Which uri should be passed into this servlet container
      */
     private String uriPrefix = "/";
 
+    /**
+     * Executor servlet requests are dispatched to, <code>null</code> to run
+     * them on the I/O thread.
+     */
+    private Executor executor;
+
+    /**
+     * Limits the servlet requests in flight, <code>null</code> for no limits.
+     */
+    private AdmissionController admissionController;
+
+    /**
+     * Default deadline of servlet requests in milliseconds, zero or less for
+     * none.
+     */
+    private long requestDeadline;
+
+    /**
+     * Request header clients may pass a shorter deadline in milliseconds
+     * with, <code>null</code> to ignore deadlines of clients.
+     */
+    private String deadlineHeader;
+
+    /**
+     * Proxies whose forwarding headers are believed, <code>null</code> to
+     * ignore forwarding headers.
+     */
+    private TrustedProxies trustedProxies;
+
+    /**
+     * Whether host names of clients are looked up in the background.
+     */
+    private boolean remoteHostLookups;
+
+    /**
+     * @deprecated use {@link #ServletBridgeHandler(ServletBridgeWebapp)}.
+     */
+    @Deprecated
     public ServletBridgeHandler() {
         this("/");
     }
 
+    /**
+     * @deprecated use
+     * {@link #ServletBridgeHandler(ServletBridgeWebapp, String)}.
+     */
+    @Deprecated
     public ServletBridgeHandler(String uriPrefix) {
+        this(ServletBridgeWebapp.get(), uriPrefix);
+    }
+
+    public ServletBridgeHandler(ServletBridgeWebapp webapp) {
+        this(webapp, "/");
+    }
+
+    public ServletBridgeHandler(ServletBridgeWebapp webapp, String uriPrefix) {
         super(20000, 20000, 20000);
+        this.webapp = webapp;
         this.uriPrefix = uriPrefix;
     }
 
@@ -80,11 +206,99 @@ public class ServletBridgeHandler extends IdleStateHandler {
         return this;
     }
 
+    /**
+     * Runs servlets and filters on the given executor instead of the event
+     * loop. Requests of one connection are still processed one at a time and
+     * in the order they were received. Requests rejected by the executor are
+     * answered with 503.
+     */
+    public ServletBridgeHandler setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Sheds servlet requests over the limits of the given controller with a
+     * 503 response. A controller may be shared by several handlers.
+     */
+    public ServletBridgeHandler setAdmissionController(
+            AdmissionController admissionController) {
+        this.admissionController = admissionController;
+        return this;
+    }
+
+    public AdmissionController getAdmissionController() {
+        return admissionController;
+    }
+
+    /**
+     * Answers servlet requests not completed within the given time with 504,
+     * or 503 if they did not even start, and interrupts their threads. Can be
+     * overridden per servlet by {@link ServletConfiguration#setDeadline(long)}.
+     * Interruption requires a dispatch executor, servlets running on the
+     * event loop can not be stopped.
+     */
+    public ServletBridgeHandler setRequestDeadline(long millis) {
+        this.requestDeadline = millis;
+        return this;
+    }
+
+    public long getRequestDeadline() {
+        return requestDeadline;
+    }
+
+    /**
+     * Lets clients shorten the deadline of their requests with the given
+     * header, in milliseconds. Without a configured deadline the one of the
+     * client applies.
+     */
+    public ServletBridgeHandler setDeadlineHeader(String deadlineHeader) {
+        this.deadlineHeader = deadlineHeader;
+        return this;
+    }
+
+    public String getDeadlineHeader() {
+        return deadlineHeader;
+    }
+
+    /**
+     * Takes client address and scheme of requests received from the given
+     * proxies from their <code>Forwarded</code> or
+     * <code>X-Forwarded-*</code> headers.
+     */
+    public ServletBridgeHandler setTrustedProxies(TrustedProxies trustedProxies) {
+        this.trustedProxies = trustedProxies;
+        return this;
+    }
+
+    public TrustedProxies getTrustedProxies() {
+        return trustedProxies;
+    }
+
+    /**
+     * Looks up the host names of clients in the background, once per
+     * connection. Until a lookup completes
+     * {@link javax.servlet.ServletRequest#getRemoteHost()} returns the ip
+     * address, as it does with lookups disabled, the default.
+     */
+    public ServletBridgeHandler setRemoteHostLookups(boolean remoteHostLookups) {
+        this.remoteHostLookups = remoteHostLookups;
+        return this;
+    }
+
+    public boolean isRemoteHostLookups() {
+        return remoteHostLookups;
+    }
+
     @Override
     public void channelActive(ChannelHandlerContext ctx)
             throws Exception {
         log.debug("Opening new channel: {}", ctx.channel().id());
-        ServletBridgeWebapp.get().getSharedChannelGroup().add(ctx.channel());
+        webapp.getSharedChannelGroup().add(ctx.channel());
 
         ctx.fireChannelActive();
     }
@@ -104,110 +318,588 @@ public class ServletBridgeHandler extends IdleStateHandler {
 
             String uri = request.uri();
 
-            if (uri.startsWith(uriPrefix)) {
-                if (HttpHeaders.is100ContinueExpected(request)) {
-                    ctx.channel().write(new DefaultHttpResponse(HTTP_1_1, CONTINUE));
+            // requests outside of the webapp's context path are passed on to
+            // the handlers of the other webapps
+            if (uri.startsWith(uriPrefix) && webapp.matchesContextPath(uri)) {
+                final int sequence = currentSequence(ctx);
+
+                // the global limit is checked before any routing work, the
+                // one of the url pattern once the route is known
+                if (admissionController != null
+                        && !admissionController.tryAcquire()) {
+                    discardRequestBody(ctx, request);
+                    rejectRequest(ctx, sequence, request);
+                    return;
                 }
 
+                final URIParser uriParser = URIParser.newInstance(uri);
+                final FilterChainImpl chain = webapp.initializeChain(uriParser);
+
+                if (admissionController != null && !admissionController
+                        .tryAcquireRoute(chain.getServletRoute())) {
+                    admissionController.release();
+                    chain.release();
+                    chain.recycle();
+                    discardRequestBody(ctx, request);
+                    rejectRequest(ctx, sequence, request);
+                    return;
+                }
+
+                long maxRequestSize = getMaxRequestSize(chain);
+                if (maxRequestSize > 0
+                        && HttpHeaders.getContentLength(request, 0) > maxRequestSize) {
+                    releaseChain(chain, null);
+                    discardRequestBody(ctx, request);
+                    sendError(ctx, sequence, REQUEST_ENTITY_TOO_LARGE);
+                    return;
+                }
+
+                final RequestBody body = newRequestBody(ctx, request, chain);
 
-                FilterChainImpl chain = ServletBridgeWebapp.get().initializeChain(uri);
+                if (HttpHeaders.is100ContinueExpected(request)) {
+                    sendContinue(ctx);
+                }
 
                 if (chain.isValid()) {
-                    handleHttpServletRequest(ctx, request, chain);
-                } else if (ServletBridgeWebapp.get().getStaticResourcesFolder() != null) {
-                    handleStaticResourceRequest(ctx, request);
-                } else {
-                    throw new ServletBridgeRuntimeException(
-                            "No handler found for uri: " + request.getUri());
+                    if (body != null && (body instanceof AggregatedRequestBody
+                            || body instanceof MultipartRequestBody)) {
+                        // the event loop cannot wait for the body, so the
+                        // servlet runs once it is received
+                        final ChannelHandlerContext context = ctx;
+                        final HttpRequest req = request;
+                        body.whenReceived(new Runnable() {
+                            @Override
+                            public void run() {
+                                if (body.isTooLarge()) {
+                                    releaseChain(chain, body);
+                                    sendError(context, sequence,
+                                            REQUEST_ENTITY_TOO_LARGE);
+                                    return;
+                                }
+                                dispatchHttpServletRequest(context, sequence,
+                                        req, body, chain, uriParser);
+                            }
+                        });
+                    } else {
+                        dispatchHttpServletRequest(ctx, sequence, request,
+                                body, chain, uriParser);
+                    }
+                    return;
+                }
+
+                if (body != null)
+                    body.discard();
+
+                try {
+                    if (webapp.getStaticResourcesFolder() != null) {
+                        handleStaticResourceRequest(ctx, request, uriParser);
+                    } else {
+                        throw new ServletBridgeRuntimeException(
+                                "No handler found for uri: " + request.getUri());
+                    }
+                } finally {
+                    releaseChain(chain, null);
                 }
             } else {
                 ctx.fireChannelRead(e);
             }
+        } else if (e instanceof HttpContent
+                && ctx.attr(REQUEST_BODY).get() != null) {
+            RequestBody body = ctx.attr(REQUEST_BODY).get();
+            if (e instanceof LastHttpContent)
+                ctx.attr(REQUEST_BODY).remove();
+            body.offer((HttpContent) e);
         } else {
             ctx.fireChannelRead(e);
         }
     }
 
+    @Override
+    public void channelInactive(ChannelHandlerContext ctx) throws Exception {
+        RequestBody body = ctx.attr(REQUEST_BODY).getAndRemove();
+        if (body != null)
+            body.fail(new IOException("Connection closed before the request body was received"));
+        super.channelInactive(ctx);
+    }
+
+    /**
+     * Writes an interim 100 response. It is a full response so the encoder
+     * does not wait for content, and passes by the content encoder, which
+     * would take it for the response of the request.
+     */
+    private static void sendContinue(ChannelHandlerContext ctx) {
+        ChannelHandlerContext encoder = ctx.pipeline().context(
+                HttpContentEncoder.class);
+        HttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, CONTINUE);
+        if (encoder != null)
+            encoder.writeAndFlush(response);
+        else
+            ctx.channel().writeAndFlush(response);
+    }
+
+    /**
+     * Returns <code>true</code> if content follows the given request.
+     */
+    private static boolean hasSeparateBody(HttpRequest request) {
+        return !(request instanceof FullHttpRequest)
+                && (HttpHeaders.isTransferEncodingChunked(request)
+                || HttpHeaders.getContentLength(request, 0) > 0);
+    }
+
+    /**
+     * Drops the content following a request which is answered without
+     * being processed, without allocating anything for it.
+     */
+    private static void discardRequestBody(ChannelHandlerContext ctx,
+                                           HttpRequest request) {
+        if (hasSeparateBody(request))
+            ctx.attr(REQUEST_BODY).set(DISCARDED_BODY);
+    }
+
+    /**
+     * Returns the body the content following the given request is fed to,
+     * <code>null</code> if the request has no body or comes with it.
+     */
+    private RequestBody newRequestBody(ChannelHandlerContext ctx,
+                                       HttpRequest request, FilterChainImpl chain) {
+        if (!hasSeparateBody(request))
+            return null;
+
+        ServletConfiguration servlet = chain.getServletConfiguration();
+        long maxSize = getMaxRequestSize(chain);
+        RequestBody body;
+        if (servlet != null && servlet.getMultipartConfig() != null
+                && MultipartRequestBody.isMultipart(request))
+            body = new MultipartRequestBody(request,
+                    servlet.getMultipartConfig(), maxSize);
+        else if (servlet != null && servlet.getRequestBodyAggregation() > 0)
+            body = new AggregatedRequestBody(ctx.alloc(),
+                    servlet.getRequestBodyAggregation(), maxSize);
+        else if (getExecutor(chain) == null)
+            // nobody could read a stream while the event loop waits for the
+            // body, so it is received first and spilled to disk if large
+            body = new AggregatedRequestBody(ctx.alloc(),
+                    HttpContentInputStream.DEFAULT_HIGH_WATER_MARK, maxSize);
+        else
+            body = new HttpContentInputStream(ctx.channel(), maxSize);
+
+        ctx.attr(REQUEST_BODY).set(body);
+        return body;
+    }
+
+    /**
+     * Returns the limit of request bodies for the given chain, zero or less
+     * for no limit.
+     */
+    private long getMaxRequestSize(FilterChainImpl chain) {
+        ServletConfiguration servlet = chain.getServletConfiguration();
+        long maxSize = servlet != null ? servlet.getMaxRequestSize() : 0;
+        if (maxSize <= 0 && getExecutor(chain) == null)
+            return DEFAULT_MAX_EVENT_LOOP_REQUEST_SIZE;
+        return maxSize;
+    }
+
+    /**
+     * Runs the servlet request on the executor of its servlet or the one of
+     * this handler, or directly if there is none. The chain is released once
+     * the request is handled.
+     * <p/>
+     * With a {@link ResponseSequencer} in the pipeline the requests of a
+     * connection are processed concurrently, otherwise one after another.
+     *
+     * @param sequence sequence number of the request on its connection
+     * @param body     body of the request if it is received separately,
+     *                 <code>null</code> otherwise
+     */
+    protected void dispatchHttpServletRequest(final ChannelHandlerContext ctx,
+                                              final int sequence, final HttpRequest request,
+                                              final RequestBody body,
+                                              final FilterChainImpl chain, final URIParser uriParser) {
+        Executor target = getExecutor(chain);
+        final RequestDeadline deadline = newRequestDeadline(request, chain);
+
+        if (deadline != null)
+            deadline.schedule(ctx.executor(), new Runnable() {
+                @Override
+                public void run() {
+                    if (deadline.expire()) {
+                        log.warn("Request {} exceeded its deadline of {} ms.",
+                                request.uri(), deadline.getTimeoutMillis());
+                        sendError(ctx, sequence, deadline.isStarted()
+                                ? GATEWAY_TIMEOUT : SERVICE_UNAVAILABLE);
+                    }
+                }
+            });
+
+        SerialExecutor.Task task = new SerialExecutor.Task() {
+            @Override
+            public void run() {
+                if (deadline != null && !deadline.start()) {
+                    // expired while waiting, already answered
+                    releaseChain(chain, body);
+                    return;
+                }
+
+                try {
+                    handleHttpServletRequest(ctx, sequence, request, body,
+                            chain, uriParser, deadline);
+                } catch (Throwable t) {
+                    failRequest(ctx, sequence, request, deadline, t);
+                } finally {
+                    if (deadline != null)
+                        deadline.detach();
+                    releaseChain(chain, body);
+                }
+            }
+
+            @Override
+            public void rejected(RejectedExecutionException cause) {
+                rejectDispatch(ctx, sequence, request, body, chain, deadline,
+                        cause);
+            }
+        };
+
+        if (ResponseSequencer.get(ctx.channel()) != null) {
+            if (target == null) {
+                task.run();
+                return;
+            }
+
+            try {
+                target.execute(task);
+            } catch (RejectedExecutionException e) {
+                task.rejected(e);
+            }
+            return;
+        }
+
+        SerialExecutor serial = getSerialExecutor(ctx);
+        if (target == null) {
+            // requests without an executor still have to wait for the ones
+            // before them, they run on the event loop then
+            serial.run(task, ctx.executor());
+            return;
+        }
+
+        try {
+            serial.execute(task, target);
+        } catch (RejectedExecutionException e) {
+            task.rejected(e);
+        }
+    }
+
+    /**
+     * Returns the deadline of the request, the shorter one of its servlet's
+     * (or this handler's default) and the one passed by the client.
+     */
+    private RequestDeadline newRequestDeadline(HttpRequest request,
+                                               FilterChainImpl chain) {
+        ServletConfiguration servlet = chain.getServletConfiguration();
+        long timeout = servlet != null && servlet.getDeadline() > 0 ? servlet
+                .getDeadline() : requestDeadline;
+
+        if (deadlineHeader != null) {
+            String value = request.headers().get(deadlineHeader);
+            if (value != null) {
+                try {
+                    long clientTimeout = Long.parseLong(value.trim());
+                    if (clientTimeout > 0
+                            && (timeout <= 0 || clientTimeout < timeout))
+                        timeout = clientTimeout;
+                } catch (NumberFormatException e) {
+                    log.debug("Ignoring invalid deadline header: {}", value);
+                }
+            }
+        }
+
+        return timeout > 0 ? new RequestDeadline(timeout) : null;
+    }
+
+    private Executor getExecutor(FilterChainImpl chain) {
+        ServletConfiguration servlet = chain.getServletConfiguration();
+        if (servlet != null && servlet.getExecutor() != null)
+            return servlet.getExecutor();
+        return executor;
+    }
+
+    private void rejectDispatch(ChannelHandlerContext ctx, int sequence,
+                                HttpRequest request, RequestBody body,
+                                FilterChainImpl chain, RequestDeadline deadline,
+                                RejectedExecutionException e) {
+        releaseChain(chain, body);
+        if (deadline != null && !deadline.finish())
+            return;
+        log.warn("Rejected request {}: {}", request.uri(), e.getMessage());
+        sendError(ctx, sequence, SERVICE_UNAVAILABLE);
+    }
+
+    private SerialExecutor getSerialExecutor(ChannelHandlerContext ctx) {
+        Attribute<SerialExecutor> attr = ctx.attr(SERIAL_EXECUTOR);
+        SerialExecutor serial = attr.get();
+        if (serial == null) {
+            serial = new SerialExecutor(ctx.executor());
+            SerialExecutor existing = attr.setIfAbsent(serial);
+            if (existing != null)
+                serial = existing;
+        }
+        return serial;
+    }
+
+    /**
+     * Releases the chain of a request and, once the request is done, drops
+     * the part of its body the servlet did not read and recycles the
+     * request objects.
+     */
+    private void releaseChain(FilterChainImpl chain, RequestBody body) {
+        if (!chain.release())
+            return;
+
+        if (admissionController != null)
+            admissionController.release(chain.getServletRoute());
+        if (body != null)
+            body.discard();
+        chain.recycle();
+    }
+
+    /**
+     * Answers a request over the admission limits with the prebuilt 503
+     * response of the admission controller.
+     */
+    private void rejectRequest(ChannelHandlerContext ctx, int sequence,
+                               HttpRequest request) {
+        boolean keepAlive = HttpHeaders.isKeepAlive(request);
+        write(ctx, sequence, admissionController.getRejection(keepAlive),
+                !keepAlive);
+    }
+
+    /**
+     * Returns the sequence number of the request currently read from the
+     * channel.
+     */
+    private static int currentSequence(ChannelHandlerContext ctx) {
+        ResponseSequencer sequencer = ResponseSequencer.get(ctx.channel());
+        return sequencer != null ? sequencer.currentRequest() : 0;
+    }
+
+    /**
+     * Writes the response of the request with the given sequence number, in
+     * order if there is a {@link ResponseSequencer}.
+     */
+    private static void write(ChannelHandlerContext ctx, int sequence,
+                              Object response, boolean close) {
+        ResponseSequencer sequencer = ResponseSequencer.get(ctx.channel());
+        if (sequencer != null) {
+            sequencer.write(sequence, response, close);
+            return;
+        }
+
+        ChannelFuture future = ctx.channel().writeAndFlush(response);
+        if (close)
+            future.addListener(ChannelFutureListener.CLOSE);
+    }
+
+    private static void write(ChannelHandlerContext ctx, int sequence,
+                              Runnable writer) {
+        ResponseSequencer sequencer = ResponseSequencer.get(ctx.channel());
+        if (sequencer != null)
+            sequencer.write(sequence, writer);
+        else
+            writer.run();
+    }
+
+    /**
+     * @deprecated use
+     * {@link #handleHttpServletRequest(ChannelHandlerContext, HttpRequest, FilterChainImpl, URIParser)}.
+     */
+    @Deprecated
     protected void handleHttpServletRequest(ChannelHandlerContext ctx,
                                             HttpRequest request, FilterChainImpl chain) throws Exception {
+        handleHttpServletRequest(ctx, request, chain, newURIParser(request, chain));
+    }
+
+    protected void handleHttpServletRequest(ChannelHandlerContext ctx,
+                                            HttpRequest request, FilterChainImpl chain,
+                                            URIParser uriParser) throws Exception {
+        handleHttpServletRequest(ctx, currentSequence(ctx), request, null,
+                chain, uriParser, null);
+    }
+
+    protected void handleHttpServletRequest(final ChannelHandlerContext ctx,
+                                            final int sequence, final HttpRequest request,
+                                            final RequestBody body,
+                                            final FilterChainImpl chain, URIParser uriParser,
+                                            final RequestDeadline deadline) throws Exception {
+
+        final RequestContext context = new RequestContext(ctx.channel(),
+                request, this.trustedProxies);
+        if (this.remoteHostLookups)
+            context.getConnection().lookupRemoteHost();
+        final DefaultFullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK);
+        final HttpServletResponseImpl resp = buildHttpServletResponse(response);
+        final HttpServletRequestImpl req;
+        // without a sequencer the next request must not start before the
+        // response of this one has been written, even if it goes async
+        final SerialExecutor serial = ResponseSequencer.get(ctx.channel()) == null
+                ? ctx.attr(SERIAL_EXECUTOR).get() : null;
+
+        context.bind();
+        try {
+            interceptOnRequestReceived(ctx, request);
+            req = buildHttpServletRequest(request, uriParser, context, body);
+            chain.setRequest(req, resp);
+            Executor asyncExecutor = getExecutor(chain);
+            req.setAsyncSupport(resp, ctx.executor(), asyncExecutor != null
+                    ? asyncExecutor : ctx.executor(), new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        completeAsyncRequest(ctx, sequence, request, context,
+                                response, resp, deadline);
+                    } catch (Throwable t) {
+                        failRequest(ctx, sequence, request, deadline, t);
+                    } finally {
+                        releaseChain(chain, body);
+                        if (serial != null)
+                            serial.resume();
+                    }
+                }
+            });
 
-        interceptOnRequestReceived(ctx, request);
+            try {
+                chain.doFilter(req, resp);
+            } catch (Exception e) {
+                interceptOnRequestFailed(ctx, e, response);
+                throw e;
+            }
 
-        DefaultFullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK);
+            if (req.getAsyncContextImpl() == null)
+                interceptOnRequestSuccessed(ctx, request, response);
+        } finally {
+            context.unbind();
+        }
 
-        HttpServletResponseImpl resp = buildHttpServletResponse(response);
-        HttpServletRequestImpl req = buildHttpServletRequest(request, chain);
+        if (req.getAsyncContextImpl() != null) {
+            // the response is written once the async request completes,
+            // possibly from another thread
+            chain.retain();
+            if (serial != null)
+                serial.suspend();
+            req.getAsyncContextImpl().dispatchReturned();
+            return;
+        }
 
+        writeResponse(ctx, sequence, request, response, resp, deadline);
+    }
 
-        chain.doFilter(req, resp);
+    /**
+     * Writes the response of an async request on the thread completing it.
+     */
+    private void completeAsyncRequest(ChannelHandlerContext ctx, int sequence,
+                                      HttpRequest request, RequestContext context,
+                                      FullHttpResponse response, HttpServletResponseImpl resp,
+                                      RequestDeadline deadline) throws IOException {
+
+        context.bind();
+        try {
+            interceptOnRequestSuccessed(ctx, request, response);
+        } finally {
+            context.unbind();
+        }
+        writeResponse(ctx, sequence, request, response, resp, deadline);
+    }
 
-        interceptOnRequestSuccessed(ctx, request, response);
+    private void writeResponse(ChannelHandlerContext ctx, int sequence,
+                               HttpRequest request, FullHttpResponse response,
+                               HttpServletResponseImpl resp, RequestDeadline deadline)
+            throws IOException {
 
-        resp.getWriter().flush();
+        if (deadline != null && !deadline.finish()) {
+            // the client got an error already
+            log.debug("Discarding late response to {}", request.uri());
+            response.release();
+            return;
+        }
+
+        resp.flushWriter();
 
         boolean keepAlive = HttpHeaders.isKeepAlive(request);
 
         if (keepAlive) {
 
             // Add 'Content-Length' header only for a keep-alive connection.
-            response.headers().set(CONTENT_LENGTH, response.content().readableBytes());
+            response.headers().set(HeaderNames.CONTENT_LENGTH, response.content().readableBytes());
             // Add keep alive header as per:
             // -
             // http://www.w3.org/Protocols/HTTP/1.1/draft-ietf-http-v11-spec-01.html#Connection
-            response.headers().set(CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
+            response.headers().set(HeaderNames.CONNECTION, HttpHeaders.Values.KEEP_ALIVE);
         }
 
         // write response...
-        ChannelFuture future = ctx.channel().writeAndFlush(response);
-
-        if (!keepAlive) {
-            future.addListener(ChannelFutureListener.CLOSE);
-        }
-
+        write(ctx, sequence, response, !keepAlive);
     }
 
+    /**
+     * @deprecated use
+     * {@link #handleStaticResourceRequest(ChannelHandlerContext, HttpRequest, URIParser)}.
+     */
+    @Deprecated
     protected void handleStaticResourceRequest(ChannelHandlerContext ctx,
                                                HttpRequest request) throws Exception {
+        handleStaticResourceRequest(ctx, request, new URIParser(request.uri()));
+    }
+
+    protected void handleStaticResourceRequest(ChannelHandlerContext ctx,
+                                               HttpRequest request, URIParser uriParser) throws Exception {
+        int sequence = currentSequence(ctx);
         if (request.method() != GET) {
-            sendError(ctx, METHOD_NOT_ALLOWED);
+            sendError(ctx, sequence, METHOD_NOT_ALLOWED);
             return;
         }
 
-        String uri = Utils.sanitizeUri(request.uri());
-        final String path = (uri != null ? ServletBridgeWebapp.get()
+        String uri = Utils.sanitizeUri(uriParser.getPathWithinContext());
+        final String path = (uri != null ? webapp
                 .getStaticResourcesFolder().getAbsolutePath()
                 + File.separator + uri : null);
 
         if (path == null) {
-            sendError(ctx, FORBIDDEN);
+            sendError(ctx, sequence, FORBIDDEN);
             return;
         }
 
         File file = new File(path);
         if (file.isHidden() || !file.exists()) {
-            sendError(ctx, NOT_FOUND);
+            sendError(ctx, sequence, NOT_FOUND);
             return;
         }
         if (!file.isFile()) {
-            sendError(ctx, FORBIDDEN);
+            sendError(ctx, sequence, FORBIDDEN);
             return;
         }
 
-        RandomAccessFile raf;
+        final RandomAccessFile raf;
         try {
             raf = new RandomAccessFile(file, "r");
         } catch (FileNotFoundException fnfe) {
-            sendError(ctx, NOT_FOUND);
+            sendError(ctx, sequence, NOT_FOUND);
             return;
         }
 
-        long fileLength = raf.length();
+        final long fileLength = raf.length();
+        final Channel ch = ctx.channel();
+
+        write(ctx, sequence, new Runnable() {
+            @Override
+            public void run() {
+                writeFile(ch, raf, fileLength, path);
+            }
+        });
+    }
 
+    private void writeFile(Channel ch, RandomAccessFile raf, long fileLength,
+                           final String path) {
         HttpResponse response = new DefaultHttpResponse(HTTP_1_1, OK);
         setContentLength(response, fileLength);
 
-        Channel ch = ctx.channel();
-
         // Write the initial line and the header.
         ch.write(response);
 
@@ -215,7 +907,13 @@ public class ServletBridgeHandler extends IdleStateHandler {
         ChannelFuture writeFuture;
         if (isSslChannel(ch)) {
             // Cannot use zero-copy with HTTPS.
-            writeFuture = ch.write(new ChunkedFile(raf, 0, fileLength, 8192));
+            try {
+                writeFuture = ch.write(new ChunkedFile(raf, 0, fileLength, 8192));
+            } catch (IOException e) {
+                log.error("Failed to send static resource " + path, e);
+                ch.close();
+                return;
+            }
         } else {
             // No encryption - use zero-copy.
             final FileRegion region = new DefaultFileRegion(raf.getChannel(),
@@ -235,11 +933,33 @@ public class ServletBridgeHandler extends IdleStateHandler {
                 }
             });
         }
+        ch.flush();
 
     }
 
     @Override
     public void exceptionCaught(ChannelHandlerContext ctx, Throwable cause) {
+        handleException(ctx, currentSequence(ctx), cause);
+    }
+
+    /**
+     * Answers a request whose processing failed with an error, unless its
+     * deadline expired and it has been answered already. Finishing the
+     * deadline first keeps it from answering the request a second time.
+     */
+    private void failRequest(ChannelHandlerContext ctx, int sequence,
+                             HttpRequest request, RequestDeadline deadline,
+                             Throwable cause) {
+        if (deadline != null && !deadline.finish()) {
+            log.debug("Request {} failed after its deadline: {}",
+                    request.uri(), cause.toString());
+            return;
+        }
+        handleException(ctx, sequence, cause);
+    }
+
+    private void handleException(ChannelHandlerContext ctx, int sequence,
+                                 Throwable cause) {
         log.error("Unexpected exception from downstream.", cause);
 
         Channel ch = ctx.channel();
@@ -247,19 +967,38 @@ public class ServletBridgeHandler extends IdleStateHandler {
             ch.close();
         } else {
             if (cause instanceof TooLongFrameException) {
-                sendError(ctx, BAD_REQUEST);
+                sendError(ctx, sequence, BAD_REQUEST);
+                return;
+            }
+
+            if (isTooLarge(cause)) {
+                sendError(ctx, sequence, REQUEST_ENTITY_TOO_LARGE);
                 return;
             }
 
             if (ch.isActive()) {
-                sendError(ctx, INTERNAL_SERVER_ERROR);
+                sendError(ctx, sequence, INTERNAL_SERVER_ERROR);
             }
 
         }
 
     }
 
-    private void sendError(ChannelHandlerContext ctx, HttpResponseStatus status) {
+    /**
+     * Returns <code>true</code> if the request failed because its body
+     * exceeded a limit, also if the servlet wrapped the exception.
+     */
+    private static boolean isTooLarge(Throwable cause) {
+        for (int depth = 0; cause != null && depth < 8; depth++) {
+            if (cause instanceof RequestTooLargeException)
+                return true;
+            cause = cause.getCause();
+        }
+        return false;
+    }
+
+    private void sendError(ChannelHandlerContext ctx, int sequence,
+                           HttpResponseStatus status) {
         String text = "Failure: " + status.toString() + "\r\n";
         ByteBuf byteBuf = Unpooled.buffer();
         byte[] bytes = null;
@@ -269,7 +1008,7 @@ public class ServletBridgeHandler extends IdleStateHandler {
         } catch (UnsupportedEncodingException e) {
         }
 
-        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, OK, byteBuf);
+        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1, status, byteBuf);
         HttpHeaders headers = response.headers();
 
         headers.add(CONTENT_TYPE, "text/plain;charset=utf-8");
@@ -277,7 +1016,7 @@ public class ServletBridgeHandler extends IdleStateHandler {
         headers.add(PRAGMA, "No-cache");
         headers.add(SERVER, "eBay Server");
         headers.add(CONTENT_LENGTH, byteBuf.readableBytes());
-        ctx.writeAndFlush(response).addListener(ChannelFutureListener.CLOSE);
+        write(ctx, sequence, response, true);
     }
 
     private void interceptOnRequestReceived(ChannelHandlerContext ctx,
@@ -300,30 +1039,54 @@ public class ServletBridgeHandler extends IdleStateHandler {
 
     }
 
-    // private void interceptOnRequestFailed(ChannelHandlerContext ctx,
-    // ExceptionEvent e, HttpResponse response) {
-    // if (this.interceptors != null) {
-    // for (ServletBridgeInterceptor interceptor : this.interceptors) {
-    // interceptor.onRequestFailed(ctx, e, response);
-    // }
-    // }
-    //
-    // }
+    private void interceptOnRequestFailed(ChannelHandlerContext ctx,
+                                          Throwable e, HttpResponse response) {
+        if (interceptors != null) {
+            for (ServletBridgeInterceptor interceptor : interceptors) {
+                interceptor.onRequestFailed(ctx, e, response);
+            }
+        }
+
+    }
 
     protected HttpServletResponseImpl buildHttpServletResponse(
             FullHttpResponse response) {
-        return new HttpServletResponseImpl(response);
+        return HttpServletResponseImpl.newInstance(response);
     }
 
+    /**
+     * @deprecated use
+     * {@link #buildHttpServletRequest(HttpRequest, URIParser, RequestContext, RequestBody)}.
+     */
+    @Deprecated
     protected HttpServletRequestImpl buildHttpServletRequest(
             HttpRequest request, FilterChainImpl chain) {
-        return new HttpServletRequestImpl(request, chain);
+        return buildHttpServletRequest(request, newURIParser(request, chain),
+                RequestContext.fromThreadLocals(), null);
+    }
+
+    private static URIParser newURIParser(HttpRequest request,
+                                          FilterChainImpl chain) {
+        URIParser uriParser = new URIParser(chain);
+        uriParser.parse(request.uri());
+        return uriParser;
+    }
+
+    protected HttpServletRequestImpl buildHttpServletRequest(
+            HttpRequest request, URIParser uriParser, RequestContext context,
+            RequestBody body) {
+        return HttpServletRequestImpl.newInstance(webapp, request, uriParser,
+                context, body);
     }
 
     private boolean isSslChannel(Channel ch) {
         return ch.pipeline().get(SslHandler.class) != null;
     }
 
+    public ServletBridgeWebapp getWebapp() {
+        return webapp;
+    }
+
     public String getUriPrefix() {
         return uriPrefix;
     }
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge;
+
+import io.netty.handler.codec.http.HttpRequest;
+import net.javaforge.netty.servlet.bridge.util.HeaderNames;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Proxies whose <code>Forwarded</code> (RFC 7239) or
+ * <code>X-Forwarded-For</code>, <code>X-Forwarded-Proto</code>,
+ * <code>X-Forwarded-Host</code> and <code>X-Forwarded-Port</code> headers
+ * are believed. Headers of requests from other peers are ignored, as
+ * anybody can send them.
+ * <p/>
+ * The client is the rightmost forwarded address which is not a trusted proxy
+ * itself; scheme and host are the ones the trusted proxy in front of that
+ * client reports.
+ */
+public final class TrustedProxies {
+
+    private final byte[][] networks;
+
+    private final int[] prefixLengths;
+
+    /**
+     * @param proxies ip addresses (<code>10.0.0.1</code>, <code>::1</code>)
+     *                or networks in CIDR notation (<code>10.0.0.0/8</code>,
+     *                <code>fd00::/8</code>) of the trusted proxies
+     * @throws IllegalArgumentException if an entry is not an ip address
+     */
+    public TrustedProxies(String... proxies) {
+        this.networks = new byte[proxies.length][];
+        this.prefixLengths = new int[proxies.length];
+
+        for (int i = 0; i < proxies.length; i++) {
+            String proxy = proxies[i].trim();
+            int slash = proxy.indexOf('/');
+            byte[] network = parseAddress(slash < 0 ? proxy : proxy.substring(
+                    0, slash));
+            if (network == null)
+                throw new IllegalArgumentException("Not an ip address: '"
+                        + proxy + "'");
+
+            int prefixLength = network.length * 8;
+            if (slash >= 0) {
+                try {
+                    prefixLength = Integer.parseInt(proxy.substring(slash + 1));
+                } catch (NumberFormatException e) {
+                    prefixLength = -1;
+                }
+                if (prefixLength < 0 || prefixLength > network.length * 8)
+                    throw new IllegalArgumentException(
+                            "Invalid prefix length: '" + proxy + "'");
+            }
+
+            this.networks[i] = network;
+            this.prefixLengths[i] = prefixLength;
+        }
+    }
+
+    public boolean isTrusted(InetAddress address) {
+        return address != null && isTrusted(address.getAddress());
+    }
+
+    /**
+     * Returns <code>true</code> if the given ip address belongs to a trusted
+     * proxy. Host names are never looked up and not trusted.
+     */
+    public boolean isTrusted(String address) {
+        byte[] bytes = address != null ? parseAddress(address) : null;
+        return bytes != null && isTrusted(bytes);
+    }
+
+    private boolean isTrusted(byte[] address) {
+        for (int i = 0; i < networks.length; i++) {
+            if (matches(networks[i], prefixLengths[i], address))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Returns what the forwarding headers of the given request tell about
+     * its client, <code>null</code> if the request has none or was not
+     * received from a trusted proxy.
+     */
+    public Forwarded resolve(HttpRequest request, ConnectionAddresses connection) {
+        Peer peer = new Peer(connection);
+        if (!isTrusted(peer.address))
+            return null;
+
+        List<String> values = request.headers().getAll(HeaderNames.FORWARDED);
+        if (!values.isEmpty())
+            return resolveForwarded(values, peer);
+
+        List<String> forwardedFor = split(request.headers().getAll(
+                HeaderNames.X_FORWARDED_FOR));
+        List<String> protos = split(request.headers().getAll(
+                HeaderNames.X_FORWARDED_PROTO));
+        List<String> hosts = split(request.headers().getAll(
+                HeaderNames.X_FORWARDED_HOST));
+        List<String> ports = split(request.headers().getAll(
+                HeaderNames.X_FORWARDED_PORT));
+        if (forwardedFor.isEmpty() && protos.isEmpty() && hosts.isEmpty()
+                && ports.isEmpty())
+            return null;
+
+        int hops = forwardedFor.size();
+        int hop = hops - 1;
+        String addr = peer.addr;
+        int port = -1;
+        for (int i = hops - 1; i >= 0; i--) {
+            String nodeAddr = nodeAddress(forwardedFor.get(i));
+            byte[] bytes = parseAddress(nodeAddr);
+            if (bytes == null)
+                break;
+
+            addr = nodeAddr;
+            port = nodePort(forwardedFor.get(i));
+            hop = i;
+            if (!isTrusted(bytes))
+                break;
+        }
+
+        return new Forwarded(addr, port < 0 ? peer.port : port, select(protos,
+                hops, hop), select(hosts, hops, hop), parsePort(select(ports,
+                hops, hop)));
+    }
+
+    private Forwarded resolveForwarded(List<String> values, Peer peer) {
+        List<String[]> elements = new ArrayList<String[]>();
+        for (String value : values)
+            parseElements(value, elements);
+
+        String addr = peer.addr;
+        int port = -1;
+        String proto = null;
+        String host = null;
+        for (int i = elements.size() - 1; i >= 0; i--) {
+            String[] element = elements.get(i);
+            if (element[1] != null)
+                proto = element[1];
+            if (element[2] != null)
+                host = element[2];
+
+            String node = element[0];
+            String nodeAddr = node != null ? nodeAddress(node) : null;
+            byte[] bytes = nodeAddr != null ? parseAddress(nodeAddr) : null;
+            if (bytes == null)
+                break;
+
+            addr = nodeAddr;
+            port = nodePort(node);
+            if (!isTrusted(bytes))
+                break;
+        }
+
+        return new Forwarded(addr, port < 0 ? peer.port : port, proto, host,
+                -1);
+    }
+
+    /**
+     * Returns the address of a node like <code>192.0.2.43:47011</code> or
+     * <code>[2001:db8:cafe::17]:4711</code>, <code>null</code> if malformed.
+     */
+    private static String nodeAddress(String node) {
+        if (node.startsWith("[")) {
+            int end = node.indexOf(']');
+            return end > 0 ? node.substring(1, end) : null;
+        }
+
+        int colon = node.indexOf(':');
+        return colon >= 0 && colon == node.lastIndexOf(':') ? node.substring(
+                0, colon) : node;
+    }
+
+    /**
+     * Returns the port of a node, -1 if it has none or an obfuscated one.
+     */
+    private static int nodePort(String node) {
+        int colon = node.startsWith("[") ? node.indexOf("]:") + 1 : node
+                .indexOf(':');
+        if (colon <= 0 || node.indexOf(':', colon + 1) >= 0)
+            return -1;
+        return parsePort(node.substring(colon + 1));
+    }
+
+    /**
+     * Parses the <code>for</code>, <code>proto</code> and <code>host</code>
+     * parameters of the comma separated elements of a Forwarded header.
+     */
+    private static void parseElements(String value, List<String[]> elements) {
+        String[] element = new String[3];
+        int length = value.length();
+        int i = 0;
+        while (i < length) {
+            while (i < length && value.charAt(i) == ' ')
+                i++;
+
+            int nameStart = i;
+            while (i < length && "=;,".indexOf(value.charAt(i)) < 0)
+                i++;
+            String name = value.substring(nameStart, i).trim();
+
+            String parameter = null;
+            if (i < length && value.charAt(i) == '=') {
+                i++;
+                if (i < length && value.charAt(i) == '"') {
+                    StringBuilder quoted = new StringBuilder();
+                    for (i++; i < length && value.charAt(i) != '"'; i++) {
+                        char c = value.charAt(i);
+                        if (c == '\\' && i + 1 < length)
+                            c = value.charAt(++i);
+                        quoted.append(c);
+                    }
+                    parameter = quoted.toString();
+                    while (i < length && value.charAt(i) != ';'
+                            && value.charAt(i) != ',')
+                        i++;
+                } else {
+                    int valueStart = i;
+                    while (i < length && value.charAt(i) != ';'
+                            && value.charAt(i) != ',')
+                        i++;
+                    parameter = value.substring(valueStart, i).trim();
+                }
+            }
+
+            if (parameter != null) {
+                if (name.equalsIgnoreCase("for"))
+                    element[0] = parameter;
+                else if (name.equalsIgnoreCase("proto"))
+                    element[1] = parameter;
+                else if (name.equalsIgnoreCase("host"))
+                    element[2] = parameter;
+            }
+
+            if (i < length && value.charAt(i) == ',') {
+                elements.add(element);
+                element = new String[3];
+            }
+            i++;
+        }
+        elements.add(element);
+    }
+
+    private static List<String> split(List<String> values) {
+        List<String> tokens = new ArrayList<String>(values.size());
+        for (String value : values) {
+            int start = 0;
+            while (start <= value.length()) {
+                int end = value.indexOf(',', start);
+                if (end < 0)
+                    end = value.length();
+                String token = value.substring(start, end).trim();
+                if (token.length() > 0)
+                    tokens.add(token);
+                start = end + 1;
+            }
+        }
+        return tokens;
+    }
+
+    /**
+     * Returns the value reported for the given hop if every hop reported
+     * one, the value of the nearest proxy otherwise.
+     */
+    private static String select(List<String> values, int hops, int hop) {
+        if (values.isEmpty())
+            return null;
+        return values.size() == hops ? values.get(hop) : values.get(values
+                .size() - 1);
+    }
+
+    private static int parsePort(String port) {
+        if (port == null)
+            return -1;
+        try {
+            int value = Integer.parseInt(port);
+            return value > 0 && value < 65536 ? value : -1;
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    private static boolean matches(byte[] network, int prefixLength,
+                                   byte[] address) {
+        if (network.length != address.length)
+            return false;
+
+        int bytes = prefixLength / 8;
+        for (int i = 0; i < bytes; i++) {
+            if (network[i] != address[i])
+                return false;
+        }
+
+        int bits = prefixLength % 8;
+        if (bits == 0)
+            return true;
+
+        int mask = (0xFF << (8 - bits)) & 0xFF;
+        return (network[bytes] & mask) == (address[bytes] & mask);
+    }
+
+    /**
+     * Parses an ip address literal without ever looking up a host name,
+     * <code>null</code> if the given string is none.
+     */
+    static byte[] parseAddress(String address) {
+        if (address.indexOf(':') >= 0) {
+            if (!isIpv6Literal(address))
+                return null;
+            try {
+                return InetAddress.getByName(address).getAddress();
+            } catch (UnknownHostException e) {
+                return null;
+            }
+        }
+
+        byte[] bytes = new byte[4];
+        int part = 0;
+        int value = -1;
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c >= '0' && c <= '9') {
+                value = (value < 0 ? 0 : value * 10) + (c - '0');
+                if (value > 255)
+                    return null;
+            } else if (c == '.' && value >= 0 && part < 3) {
+                bytes[part++] = (byte) value;
+                value = -1;
+            } else {
+                return null;
+            }
+        }
+        if (part != 3 || value < 0)
+            return null;
+        bytes[3] = (byte) value;
+        return bytes;
+    }
+
+    /**
+     * Returns <code>true</code> if the given string can only be parsed as
+     * ipv6 literal, which {@link InetAddress#getByName(String)} then does
+     * without a name lookup: it starts with a hex digit or colon and consists
+     * of hex digits, colons, dots and a numeric scope only.
+     */
+    private static boolean isIpv6Literal(String address) {
+        if (address.isEmpty() || (address.charAt(0) != ':'
+                && Character.digit(address.charAt(0), 16) < 0))
+            return false;
+
+        for (int i = 0; i < address.length(); i++) {
+            char c = address.charAt(i);
+            if (c != ':' && c != '.' && c != '%'
+                    && Character.digit(c, 16) < 0)
+                return false;
+        }
+        return true;
+    }
+
+    private static final class Peer {
+
+        private final InetAddress address;
+
+        private final String addr;
+
+        private final int port;
+
+        private Peer(ConnectionAddresses connection) {
+            this.address = connection.getRemoteAddress() != null ? connection
+                    .getRemoteAddress().getAddress() : null;
+            this.addr = connection.getRemoteAddr();
+            this.port = connection.getRemotePort();
+        }
+    }
+
+    /**
+     * Client of a request as reported by trusted proxies.
+     */
+    public static final class Forwarded {
+
+        private final String remoteAddr;
+
+        private final int remotePort;
+
+        private final String scheme;
+
+        private final String host;
+
+        private final int port;
+
+        Forwarded(String remoteAddr, int remotePort, String proto,
+                  String host, int port) {
+            this.remoteAddr = remoteAddr;
+            this.remotePort = remotePort;
+            this.scheme = proto != null ? proto.toLowerCase(Locale.ENGLISH)
+                    : null;
+            this.host = host;
+            this.port = port;
+        }
+
+        public String getRemoteAddr() {
+            return remoteAddr;
+        }
+
+        public int getRemotePort() {
+            return remotePort;
+        }
+
+        /**
+         * Scheme the client used, <code>null</code> if not reported.
+         */
+        public String getScheme() {
+            return scheme;
+        }
+
+        /**
+         * Host header the client sent, <code>null</code> if not reported.
+         */
+        public String getHost() {
+            return host;
+        }
+
+        /**
+         * Port the client connected to, -1 if not reported.
+         */
+        public int getPort() {
+            return port;
+        }
+    }
+}
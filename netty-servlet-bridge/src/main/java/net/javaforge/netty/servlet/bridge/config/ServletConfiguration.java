@@ -18,27 +18,51 @@ package net.javaforge.netty.servlet.bridge.config;
 
 import net.javaforge.netty.servlet.bridge.impl.ServletConfigImpl;
 
+import javax.servlet.MultipartConfigElement;
 import javax.servlet.ServletException;
+import javax.servlet.annotation.MultipartConfig;
 import javax.servlet.http.HttpServlet;
+import java.util.concurrent.Executor;
 
 public class ServletConfiguration extends
         HttpComponentConfigurationAdapter<HttpServlet, ServletConfigImpl> {
 
+    private Executor executor;
+
+    private long deadline;
+
+    private long maxRequestSize;
+
+    private int requestBodyAggregation;
+
+    private MultipartConfigElement multipartConfig;
+
     public ServletConfiguration(Class<? extends HttpServlet> servletClazz,
                                 String... urlPatterns) {
         super(servletClazz, urlPatterns);
+        initMultipartConfig();
     }
 
     public ServletConfiguration(Class<? extends HttpServlet> componentClazz) {
         super(componentClazz);
+        initMultipartConfig();
     }
 
     public ServletConfiguration(HttpServlet component, String... urlPatterns) {
         super(component, urlPatterns);
+        initMultipartConfig();
     }
 
     public ServletConfiguration(HttpServlet servlet) {
         super(servlet);
+        initMultipartConfig();
+    }
+
+    private void initMultipartConfig() {
+        MultipartConfig annotation = this.component.getClass().getAnnotation(
+                MultipartConfig.class);
+        if (annotation != null)
+            this.multipartConfig = new MultipartConfigElement(annotation);
     }
 
     @Override
@@ -61,4 +85,78 @@ public class ServletConfiguration extends
         super.addConfigInitParameter(name, value);
         return this;
     }
+
+    /**
+     * Runs the requests of this servlet on the given executor, e.g. a
+     * {@link net.javaforge.netty.servlet.bridge.dispatch.Bulkhead}, instead
+     * of the default dispatch executor of the bridge.
+     */
+    public ServletConfiguration setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * Deadline of the requests of this servlet in milliseconds, overriding
+     * the default deadline of the bridge. Zero or less to use the default.
+     */
+    public ServletConfiguration setDeadline(long millis) {
+        this.deadline = millis;
+        return this;
+    }
+
+    public long getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * Maximum size of request bodies of this servlet in bytes, zero or less
+     * for no limit, or for
+     * {@link net.javaforge.netty.servlet.bridge.ServletBridgeHandler#DEFAULT_MAX_EVENT_LOOP_REQUEST_SIZE}
+     * if the servlet runs without an executor. Requests announcing a larger
+     * body are answered with 413 before the body is received.
+     */
+    public ServletConfiguration setMaxRequestSize(long maxRequestSize) {
+        this.maxRequestSize = maxRequestSize;
+        return this;
+    }
+
+    public long getMaxRequestSize() {
+        return maxRequestSize;
+    }
+
+    /**
+     * Receives request bodies completely before invoking this servlet
+     * instead of streaming them. Bodies larger than the given number of bytes
+     * are spilled to a temporary file. Zero or less to stream bodies.
+     */
+    public ServletConfiguration setRequestBodyAggregation(int memoryThreshold) {
+        this.requestBodyAggregation = memoryThreshold;
+        return this;
+    }
+
+    public int getRequestBodyAggregation() {
+        return requestBodyAggregation;
+    }
+
+    /**
+     * Decodes <code>multipart/form-data</code> requests of this servlet into
+     * parts as they are received, available through
+     * {@link javax.servlet.http.HttpServletRequest#getParts()}. Taken from
+     * the {@link MultipartConfig} annotation of the servlet by default,
+     * <code>null</code> to pass such requests on undecoded.
+     */
+    public ServletConfiguration setMultipartConfig(
+            MultipartConfigElement multipartConfig) {
+        this.multipartConfig = multipartConfig;
+        return this;
+    }
+
+    public MultipartConfigElement getMultipartConfig() {
+        return multipartConfig;
+    }
 }
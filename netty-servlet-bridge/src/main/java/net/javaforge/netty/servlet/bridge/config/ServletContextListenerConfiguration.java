@@ -21,6 +21,7 @@ import net.javaforge.netty.servlet.bridge.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.servlet.ServletContext;
 import javax.servlet.ServletContextEvent;
 import javax.servlet.ServletContextListener;
 
@@ -46,13 +47,22 @@ public class ServletContextListenerConfiguration {
         return listener;
     }
 
+    /**
+     * @deprecated use {@link #init(ServletContext)} with the servlet context
+     * of the webapp the listener belongs to.
+     */
+    @Deprecated
     public void init() {
+        this.init(ServletContextImpl.get());
+    }
+
+    public void init(ServletContext servletContext) {
         try {
 
             log.debug("Initializing listener: {}", this.listener.getClass());
 
             this.listener.contextInitialized(new ServletContextEvent(
-                    ServletContextImpl.get()));
+                    servletContext));
             this.initialized = true;
 
         } catch (Exception e) {
@@ -63,13 +73,22 @@ public class ServletContextListenerConfiguration {
         }
     }
 
+    /**
+     * @deprecated use {@link #destroy(ServletContext)} with the servlet
+     * context of the webapp the listener belongs to.
+     */
+    @Deprecated
     public void destroy() {
+        this.destroy(ServletContextImpl.get());
+    }
+
+    public void destroy(ServletContext servletContext) {
         try {
 
             log.debug("Destroying listener: {}", this.listener.getClass());
 
             this.listener.contextDestroyed(new ServletContextEvent(
-                    ServletContextImpl.get()));
+                    servletContext));
             this.initialized = false;
 
         } catch (Exception e) {
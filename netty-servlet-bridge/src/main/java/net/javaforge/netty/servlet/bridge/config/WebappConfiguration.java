@@ -26,6 +26,8 @@ public class WebappConfiguration {
 
     private String name;
 
+    private String contextPath = "";
+
     private int sessionTimeout = 60 * 60; // 1 hour
 
     private Map<String, String> contextParameters;
@@ -102,6 +104,27 @@ public class WebappConfiguration {
         return this.name;
     }
 
+    /**
+     * Sets the context path this webapp is mounted under, e.g. "/shop". The
+     * default "" mounts the webapp at the server root.
+     */
+    public WebappConfiguration setContextPath(String contextPath) {
+        if (contextPath == null || "/".equals(contextPath))
+            contextPath = "";
+
+        if (contextPath.length() > 0
+                && (!contextPath.startsWith("/") || contextPath.endsWith("/")))
+            throw new IllegalArgumentException("Context path '" + contextPath
+                    + "' must start and must not end with '/'!");
+
+        this.contextPath = contextPath;
+        return this;
+    }
+
+    public String getContextPath() {
+        return contextPath;
+    }
+
     public WebappConfiguration setSessionTimeout(int sessionTimeout) {
         this.sessionTimeout = sessionTimeout;
         return this;
@@ -0,0 +1,275 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge.dispatch;
+
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.DefaultFullHttpResponse;
+import io.netty.handler.codec.http.FullHttpResponse;
+import io.netty.handler.codec.http.HttpHeaders;
+import net.javaforge.netty.servlet.bridge.impl.ServletRoute;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static io.netty.handler.codec.http.HttpHeaders.Names.*;
+import static io.netty.handler.codec.http.HttpResponseStatus.SERVICE_UNAVAILABLE;
+import static io.netty.handler.codec.http.HttpVersion.HTTP_1_1;
+
+/**
+ * Limits the number of requests processed at the same time, globally and per
+ * servlet url pattern. Requests over a limit are answered right away with a
+ * prebuilt 503 response carrying a Retry-After header, before any session
+ * lookup or servlet code runs for them.
+ * <p/>
+ * Per pattern limits apply to the url pattern a request has been routed
+ * with, as mapped in the {@link net.javaforge.netty.servlet.bridge.config.ServletConfiguration},
+ * e.g. <code>/api/*</code> or <code>*.jsp</code>.
+ */
+public class AdmissionController {
+
+    private final int maxInFlight;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicLong admitted = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final ConcurrentMap<String, Limit> limits = new ConcurrentHashMap<String, Limit>();
+
+    private volatile FullHttpResponse keepAliveRejection;
+
+    private volatile FullHttpResponse closeRejection;
+
+    /**
+     * @param maxInFlight maximum number of requests in flight, zero or less
+     *                    for no global limit
+     */
+    public AdmissionController(int maxInFlight) {
+        this.maxInFlight = maxInFlight;
+        setRetryAfter(1);
+    }
+
+    /**
+     * Limits the requests in flight for the given url pattern. Limits have to
+     * be set up before the server starts.
+     */
+    public AdmissionController setLimit(String urlPattern, int maxInFlight) {
+        if (maxInFlight <= 0)
+            throw new IllegalArgumentException("Limit for '" + urlPattern
+                    + "' must be positive: " + maxInFlight);
+
+        this.limits.put(urlPattern, new Limit(urlPattern, maxInFlight));
+        return this;
+    }
+
+    /**
+     * Seconds clients are asked to wait before retrying a rejected request.
+     */
+    public AdmissionController setRetryAfter(int seconds) {
+        this.keepAliveRejection = newRejection(seconds, true);
+        this.closeRejection = newRejection(seconds, false);
+        return this;
+    }
+
+    private static FullHttpResponse newRejection(int retryAfter,
+                                                 boolean keepAlive) {
+        // the empty buffer can not be released, hence the response can be
+        // written over and over again
+        FullHttpResponse response = new DefaultFullHttpResponse(HTTP_1_1,
+                SERVICE_UNAVAILABLE, Unpooled.EMPTY_BUFFER);
+        HttpHeaders headers = response.headers();
+        headers.set(RETRY_AFTER, retryAfter);
+        headers.set(CONTENT_LENGTH, 0);
+        headers.set(CONNECTION, keepAlive ? HttpHeaders.Values.KEEP_ALIVE
+                : HttpHeaders.Values.CLOSE);
+        return response;
+    }
+
+    /**
+     * Admits a request routed with the given route, if neither the global
+     * limit nor the one of its url pattern is reached. Every admitted request
+     * has to be {@link #release(ServletRoute) released} once it is processed.
+     */
+    public boolean tryAcquire(ServletRoute route) {
+        if (!tryAcquire())
+            return false;
+
+        if (!tryAcquireRoute(route)) {
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Takes a place under the global limit, before the request is routed.
+     * It has to be followed by {@link #tryAcquireRoute(ServletRoute)} once
+     * the route is known, or given back with {@link #release()}.
+     */
+    public boolean tryAcquire() {
+        if (maxInFlight > 0 && inFlight.incrementAndGet() > maxInFlight) {
+            inFlight.decrementAndGet();
+            rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Admits a request holding a place under the global limit, if the limit
+     * of the url pattern it has been routed with is not reached. The global
+     * place is kept either way.
+     */
+    public boolean tryAcquireRoute(ServletRoute route) {
+        Limit limit = getLimit(route);
+        if (limit != null && !limit.tryAcquire()) {
+            rejected.incrementAndGet();
+            return false;
+        }
+
+        admitted.incrementAndGet();
+        return true;
+    }
+
+    public void release(ServletRoute route) {
+        release();
+
+        Limit limit = getLimit(route);
+        if (limit != null)
+            limit.inFlight.decrementAndGet();
+    }
+
+    /**
+     * Gives back the place under the global limit only.
+     */
+    public void release() {
+        if (maxInFlight > 0)
+            inFlight.decrementAndGet();
+    }
+
+    private Limit getLimit(ServletRoute route) {
+        if (limits.isEmpty() || route == null || route.getUrlPattern() == null)
+            return null;
+        return limits.get(route.getUrlPattern());
+    }
+
+    /**
+     * Returns the shared 503 response for a rejected request. It must not be
+     * modified.
+     */
+    public FullHttpResponse getRejection(boolean keepAlive) {
+        return keepAlive ? keepAliveRejection : closeRejection;
+    }
+
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * Number of requests in flight, only tracked if there is a global limit.
+     */
+    public int getInFlight() {
+        return inFlight.get();
+    }
+
+    public long getAdmittedCount() {
+        return admitted.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public Limit getLimit(String urlPattern) {
+        return limits.get(urlPattern);
+    }
+
+    public Collection<Limit> getLimits() {
+        return Collections.unmodifiableCollection(limits.values());
+    }
+
+    @Override
+    public String toString() {
+        return "AdmissionController[inFlight=" + getInFlight() + "/"
+                + maxInFlight + ", admitted=" + getAdmittedCount()
+                + ", rejected=" + getRejectedCount() + ", limits="
+                + limits.values() + "]";
+    }
+
+    /**
+     * Limit and counters of one url pattern.
+     */
+    public static final class Limit {
+
+        private final String urlPattern;
+
+        private final int maxInFlight;
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private final AtomicLong admitted = new AtomicLong();
+
+        private final AtomicLong rejected = new AtomicLong();
+
+        private Limit(String urlPattern, int maxInFlight) {
+            this.urlPattern = urlPattern;
+            this.maxInFlight = maxInFlight;
+        }
+
+        private boolean tryAcquire() {
+            if (inFlight.incrementAndGet() > maxInFlight) {
+                inFlight.decrementAndGet();
+                rejected.incrementAndGet();
+                return false;
+            }
+            admitted.incrementAndGet();
+            return true;
+        }
+
+        public String getUrlPattern() {
+            return urlPattern;
+        }
+
+        public int getMaxInFlight() {
+            return maxInFlight;
+        }
+
+        public int getInFlight() {
+            return inFlight.get();
+        }
+
+        public long getAdmittedCount() {
+            return admitted.get();
+        }
+
+        public long getRejectedCount() {
+            return rejected.get();
+        }
+
+        @Override
+        public String toString() {
+            return urlPattern + "[inFlight=" + getInFlight() + "/"
+                    + maxInFlight + ", admitted=" + getAdmittedCount()
+                    + ", rejected=" + getRejectedCount() + "]";
+        }
+    }
+}
@@ -0,0 +1,218 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge.dispatch;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounds the capacity one group of servlets may use, so that saturation of
+ * one route can not starve the others. At most <code>maxConcurrency</code>
+ * requests run at the same time, up to <code>queueCapacity</code> more wait
+ * and any further request is rejected, which the bridge answers with 503.
+ * <p/>
+ * A bulkhead either owns a dedicated pool of threads or limits the share a
+ * route may take of a shared executor, e.g. one starting a virtual thread
+ * per request. It is attached to a servlet via
+ * {@link net.javaforge.netty.servlet.bridge.config.ServletConfiguration#setExecutor(Executor)}.
+ */
+public class Bulkhead implements Executor {
+
+    private static final Logger log = LoggerFactory.getLogger(Bulkhead.class);
+
+    private final String name;
+
+    private final Executor delegate;
+
+    private final ThreadPoolExecutor pool;
+
+    private final int maxConcurrency;
+
+    private final int queueCapacity;
+
+    private final Queue<Runnable> queue = new ArrayDeque<Runnable>();
+
+    private int running;
+
+    private final AtomicLong submitted = new AtomicLong();
+
+    private final AtomicLong rejected = new AtomicLong();
+
+    private final AtomicLong completed = new AtomicLong();
+
+    /**
+     * Creates a bulkhead with a dedicated pool of
+     * <code>maxConcurrency</code> daemon threads named after it.
+     */
+    public Bulkhead(String name, int maxConcurrency, int queueCapacity) {
+        this(name, newPool(name, maxConcurrency), true, maxConcurrency,
+                queueCapacity);
+    }
+
+    /**
+     * Creates a bulkhead limiting its tasks on the given shared executor.
+     */
+    public Bulkhead(String name, Executor delegate, int maxConcurrency,
+                    int queueCapacity) {
+        this(name, delegate, false, maxConcurrency, queueCapacity);
+    }
+
+    private Bulkhead(String name, Executor delegate, boolean ownsDelegate,
+                     int maxConcurrency, int queueCapacity) {
+        if (maxConcurrency <= 0)
+            throw new IllegalArgumentException(
+                    "maxConcurrency must be positive: " + maxConcurrency);
+        if (queueCapacity < 0)
+            throw new IllegalArgumentException(
+                    "queueCapacity must not be negative: " + queueCapacity);
+
+        this.name = name;
+        this.delegate = delegate;
+        this.pool = ownsDelegate ? (ThreadPoolExecutor) delegate : null;
+        this.maxConcurrency = maxConcurrency;
+        this.queueCapacity = queueCapacity;
+    }
+
+    private static ThreadPoolExecutor newPool(String name, int threads) {
+        // never queues, the bulkhead does not submit more than it has threads
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, 60,
+                TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(),
+                new DefaultThreadFactory(name, true));
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        synchronized (this) {
+            if (running >= maxConcurrency) {
+                if (queue.size() >= queueCapacity) {
+                    rejected.incrementAndGet();
+                    throw new RejectedExecutionException("Bulkhead '" + name
+                            + "' is saturated: " + this);
+                }
+                queue.add(task);
+                submitted.incrementAndGet();
+                return;
+            }
+            running++;
+        }
+
+        try {
+            delegate.execute(new Worker(task));
+        } catch (RejectedExecutionException e) {
+            synchronized (this) {
+                running--;
+            }
+            rejected.incrementAndGet();
+            throw e;
+        }
+        submitted.incrementAndGet();
+    }
+
+    /**
+     * Shuts down the dedicated pool of this bulkhead, a shared executor is
+     * left alone.
+     */
+    public void shutdown() {
+        if (pool != null)
+            pool.shutdown();
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public int getMaxConcurrency() {
+        return maxConcurrency;
+    }
+
+    public int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    public synchronized int getActiveCount() {
+        return running;
+    }
+
+    public synchronized int getQueueDepth() {
+        return queue.size();
+    }
+
+    public long getSubmittedCount() {
+        return submitted.get();
+    }
+
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public long getCompletedCount() {
+        return completed.get();
+    }
+
+    @Override
+    public String toString() {
+        return name + "[active=" + getActiveCount() + "/" + maxConcurrency
+                + ", queued=" + getQueueDepth() + "/" + queueCapacity
+                + ", submitted=" + getSubmittedCount() + ", rejected="
+                + getRejectedCount() + ", completed=" + getCompletedCount()
+                + "]";
+    }
+
+    /**
+     * Runs the task it was started with and then the queued ones, until the
+     * queue is empty.
+     */
+    private final class Worker implements Runnable {
+
+        private final Runnable first;
+
+        private Worker(Runnable first) {
+            this.first = first;
+        }
+
+        @Override
+        public void run() {
+            Runnable task = first;
+            while (task != null) {
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.warn("Task of bulkhead '" + name + "' failed.", t);
+                }
+
+                completed.incrementAndGet();
+                synchronized (Bulkhead.this) {
+                    task = queue.poll();
+                    if (task == null)
+                        running--;
+                }
+            }
+        }
+    }
+}
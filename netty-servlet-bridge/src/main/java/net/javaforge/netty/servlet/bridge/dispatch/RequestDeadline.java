@@ -0,0 +1,143 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge.dispatch;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Deadline of one servlet request. Once it expires the request is answered
+ * with an error right away, the thread running the servlet is interrupted
+ * and the response the servlet produces later on is discarded.
+ */
+public class RequestDeadline {
+
+    private static final int QUEUED = 0;
+
+    private static final int RUNNING = 1;
+
+    private static final int DONE = 2;
+
+    private static final int EXPIRED = 3;
+
+    private final long timeoutMillis;
+
+    private int state = QUEUED;
+
+    private boolean started;
+
+    private Thread worker;
+
+    private ScheduledFuture<?> timer;
+
+    public RequestDeadline(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+    }
+
+    /**
+     * Schedules the expiration on the given event loop.
+     *
+     * @param onExpired invoked with the deadline once expired
+     */
+    public synchronized void schedule(EventExecutor eventLoop,
+                                      Runnable onExpired) {
+        if (state < DONE)
+            timer = eventLoop.schedule(onExpired, timeoutMillis,
+                    TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Called by the thread about to run the servlet, returns
+     * <code>false</code> if the deadline already expired and the request
+     * must not be processed anymore.
+     */
+    public synchronized boolean start() {
+        if (state != QUEUED)
+            return false;
+
+        state = RUNNING;
+        started = true;
+        worker = Thread.currentThread();
+        return true;
+    }
+
+    /**
+     * Called by the thread which ran the servlet once it returned. From now
+     * on the thread is not interrupted anymore, as it may serve other
+     * requests.
+     */
+    public void detach() {
+        synchronized (this) {
+            if (worker != Thread.currentThread())
+                return;
+            worker = null;
+        }
+        // a late interrupt must not hit the next request of this thread
+        Thread.interrupted();
+    }
+
+    /**
+     * Called before the response is written, returns <code>false</code> if
+     * the deadline expired and the response has to be discarded.
+     */
+    public synchronized boolean finish() {
+        if (state == EXPIRED)
+            return false;
+
+        state = DONE;
+        if (timer != null) {
+            timer.cancel(false);
+            timer = null;
+        }
+        return true;
+    }
+
+    /**
+     * Expires the deadline and interrupts the servlet thread, returns
+     * <code>false</code> if the response has been written in time.
+     */
+    public synchronized boolean expire() {
+        if (state >= DONE)
+            return false;
+
+        state = EXPIRED;
+        if (worker != null) {
+            worker.interrupt();
+            worker = null;
+        }
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the servlet was running when the deadline
+     * expired, <code>false</code> if the request was still waiting for a
+     * thread.
+     */
+    public synchronized boolean isStarted() {
+        return started;
+    }
+
+    public synchronized boolean isExpired() {
+        return state == EXPIRED;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+}
@@ -0,0 +1,223 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge.dispatch;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Runs the tasks of one connection one after another, in submission order,
+ * on the threads of shared executors.
+ * <p/>
+ * Tasks submitted while another one is running are queued. If a queued task
+ * targets the same executor as the one that just finished, it is picked up by
+ * the running worker, otherwise it is handed off to its own executor. Only
+ * the first task of a burst is handed to an executor from within
+ * {@link #execute(Runnable)}, so rejections of it happen synchronously;
+ * queued tasks learn about rejections through {@link Task#rejected}.
+ * <p/>
+ * A task that finishes its work later, e.g. an async request, keeps the
+ * following tasks waiting by calling {@link #suspend()} before it returns
+ * and {@link #resume()} once it is done.
+ */
+public class SerialExecutor implements Executor {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(SerialExecutor.class);
+
+    /**
+     * A task to be notified if its executor rejects it after it was queued.
+     */
+    public interface Task extends Runnable {
+
+        void rejected(RejectedExecutionException cause);
+
+    }
+
+    private final Executor delegate;
+
+    private final Queue<Entry> tasks = new ArrayDeque<Entry>();
+
+    private boolean active;
+
+    private boolean running;
+
+    private int suspensions;
+
+    public SerialExecutor(Executor delegate) {
+        this.delegate = delegate;
+    }
+
+    @Override
+    public void execute(Runnable task) {
+        execute(task, delegate);
+    }
+
+    /**
+     * Runs the task on the given executor once all tasks submitted before
+     * are done.
+     */
+    public void execute(Runnable task, Executor executor) {
+        synchronized (this) {
+            if (active) {
+                tasks.add(new Entry(task, executor));
+                return;
+            }
+            active = true;
+        }
+
+        try {
+            executor.execute(new Drainer(task, executor));
+        } catch (RejectedExecutionException e) {
+            next(null);
+            throw e;
+        }
+    }
+
+    /**
+     * Runs the task on the calling thread if no other task is running or
+     * queued, otherwise queues it for the given executor. The caller has to
+     * be a thread of the given executor.
+     */
+    public void run(Runnable task, Executor executor) {
+        synchronized (this) {
+            if (active) {
+                tasks.add(new Entry(task, executor));
+                return;
+            }
+            active = true;
+        }
+
+        new Drainer(task, executor).run();
+    }
+
+    /**
+     * Keeps the queued tasks waiting after the running task has returned,
+     * until {@link #resume()} is called. Has to be called by the running
+     * task.
+     */
+    public synchronized void suspend() {
+        suspensions++;
+    }
+
+    /**
+     * Lets the queued tasks run again, once every {@link #suspend()} has
+     * been matched by a call to this method and the suspending task has
+     * returned.
+     */
+    public void resume() {
+        synchronized (this) {
+            if (--suspensions > 0 || running)
+                return;
+        }
+        // hands off the next task to its executor
+        next(null);
+    }
+
+    /**
+     * Returns <code>true</code> while a task is running, suspended or
+     * queued.
+     */
+    public synchronized boolean isActive() {
+        return active;
+    }
+
+    /**
+     * Takes the next queued task and hands it off if it targets another
+     * executor than the given one. Returns it if it has to be run by the
+     * caller.
+     */
+    private Entry next(Executor current) {
+        while (true) {
+            Entry next;
+            synchronized (this) {
+                next = tasks.poll();
+                if (next == null) {
+                    active = false;
+                    return null;
+                }
+            }
+
+            if (next.executor == current)
+                return next;
+
+            try {
+                next.executor.execute(new Drainer(next.task, next.executor));
+                return null;
+            } catch (RejectedExecutionException e) {
+                if (next.task instanceof Task)
+                    ((Task) next.task).rejected(e);
+                else
+                    log.warn("Dropped rejected task: " + next.task, e);
+            }
+        }
+    }
+
+    private final class Drainer implements Runnable {
+
+        private final Runnable first;
+
+        private final Executor executor;
+
+        private Drainer(Runnable first, Executor executor) {
+            this.first = first;
+            this.executor = executor;
+        }
+
+        @Override
+        public void run() {
+            Runnable task = first;
+            while (task != null) {
+                synchronized (SerialExecutor.this) {
+                    running = true;
+                }
+                try {
+                    task.run();
+                } catch (Throwable t) {
+                    log.warn("Serial task failed.", t);
+                }
+                synchronized (SerialExecutor.this) {
+                    running = false;
+                    if (suspensions > 0)
+                        // continued by resume()
+                        return;
+                }
+
+                Entry next = next(executor);
+                task = next != null ? next.task : null;
+            }
+        }
+    }
+
+    private static final class Entry {
+
+        private final Runnable task;
+
+        private final Executor executor;
+
+        private Entry(Runnable task, Executor executor) {
+            this.task = task;
+            this.executor = executor;
+        }
+    }
+
+}
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge.dispatch;
+
+import io.netty.util.concurrent.DefaultThreadFactory;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Factory methods for executors servlet requests can be dispatched to.
+ */
+public final class ServletBridgeExecutors {
+
+    private ServletBridgeExecutors() {
+    }
+
+    /**
+     * Creates a pool of at most <code>threads</code> workers with a queue of
+     * <code>queueCapacity</code> waiting requests. Requests beyond that are
+     * rejected and answered with 503 by the bridge.
+     */
+    public static ExecutorService newBoundedExecutor(String name, int threads,
+                                                     int queueCapacity) {
+        ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads,
+                60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+                queueCapacity), new DefaultThreadFactory(name, true),
+                new ThreadPoolExecutor.AbortPolicy());
+        executor.allowCoreThreadTimeOut(true);
+        return executor;
+    }
+
+    /**
+     * Returns <code>true</code> if the running JVM supports virtual threads
+     * (Java 21 and later).
+     */
+    public static boolean isVirtualThreadSupported() {
+        try {
+            Thread.class.getMethod("ofVirtual");
+            return true;
+        } catch (NoSuchMethodException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Creates an executor starting a new virtual thread for every request, so
+     * blocking servlets (JDBC, remote calls) do not need a sized thread pool.
+     * The threads are named <code>name-0</code>, <code>name-1</code>, ...
+     * <p/>
+     * The bridge is built for older JVMs as well, hence the virtual thread
+     * API is looked up reflectively.
+     *
+     * @throws UnsupportedOperationException if the JVM has no virtual threads
+     */
+    public static ExecutorService newVirtualThreadPerTaskExecutor(String name) {
+        try {
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            Class<?> builderType = Class.forName("java.lang.Thread$Builder");
+            builder = builderType.getMethod("name", String.class, long.class)
+                    .invoke(builder, name + "-", 0L);
+            ThreadFactory threadFactory = (ThreadFactory) builderType
+                    .getMethod("factory").invoke(builder);
+
+            Method newThreadPerTaskExecutor = Executors.class.getMethod(
+                    "newThreadPerTaskExecutor", ThreadFactory.class);
+            return (ExecutorService) newThreadPerTaskExecutor.invoke(null,
+                    threadFactory);
+        } catch (NoSuchMethodException e) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads require Java 21 or later", e);
+        } catch (ClassNotFoundException e) {
+            throw new UnsupportedOperationException(
+                    "Virtual threads require Java 21 or later", e);
+        } catch (IllegalAccessException e) {
+            throw new IllegalStateException(e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalStateException(e.getCause());
+        }
+    }
+
+}
@@ -0,0 +1,271 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufAllocator;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.CompositeByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+/**
+ * Request body received completely before the servlet is invoked. Bodies up
+ * to the memory threshold are kept in the buffers they were received in,
+ * larger ones are spilled to a temporary file which is memory-mapped for
+ * reading.
+ */
+public class AggregatedRequestBody implements RequestBody {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(AggregatedRequestBody.class);
+
+    private final ByteBufAllocator alloc;
+
+    private final int memoryThreshold;
+
+    /**
+     * Maximum size of the body in bytes, zero or less for no limit.
+     */
+    private final long maxSize;
+
+    private long size;
+
+    private CompositeByteBuf memory;
+
+    private File file;
+
+    private FileChannel fileChannel;
+
+    private InputStream in;
+
+    private ByteBuf content;
+
+    private boolean received;
+
+    private boolean tooLarge;
+
+    private boolean discarded;
+
+    private IOException failure;
+
+    private Runnable onReceived;
+
+    public AggregatedRequestBody(ByteBufAllocator alloc, int memoryThreshold,
+                                 long maxSize) {
+        this.alloc = alloc;
+        this.memoryThreshold = memoryThreshold;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public void offer(HttpContent content) {
+        Runnable task = null;
+        synchronized (this) {
+            try {
+                if (!discarded && !tooLarge && failure == null)
+                    append(content.content());
+            } catch (IOException e) {
+                log.warn("Failed to spill request body to disk", e);
+                failure = e;
+                releaseData();
+            } finally {
+                content.release();
+            }
+
+            if (!received && (tooLarge || content instanceof LastHttpContent)) {
+                received = true;
+                task = onReceived;
+                onReceived = null;
+            }
+        }
+
+        if (task != null)
+            task.run();
+    }
+
+    private void append(ByteBuf buf) throws IOException {
+        int length = buf.readableBytes();
+        if (length == 0)
+            return;
+
+        size += length;
+        if (maxSize > 0 && size > maxSize) {
+            tooLarge = true;
+            releaseData();
+            return;
+        }
+
+        if (fileChannel == null && size <= memoryThreshold) {
+            if (memory == null)
+                memory = alloc.compositeBuffer(Integer.MAX_VALUE);
+            memory.addComponent(buf.retain());
+            memory.writerIndex(memory.writerIndex() + length);
+            return;
+        }
+
+        if (fileChannel == null) {
+            file = File.createTempFile("netty-servlet-bridge-", ".body");
+            fileChannel = new RandomAccessFile(file, "rw").getChannel();
+            if (memory != null) {
+                write(memory);
+                memory.release();
+                memory = null;
+            }
+        }
+        write(buf);
+    }
+
+    private void write(ByteBuf buf) throws IOException {
+        int index = buf.readerIndex();
+        int end = buf.writerIndex();
+        while (index < end)
+            index += buf.getBytes(index, fileChannel, end - index);
+    }
+
+    @Override
+    public void whenReceived(Runnable task) {
+        synchronized (this) {
+            if (!received) {
+                onReceived = task;
+                return;
+            }
+        }
+        task.run();
+    }
+
+    @Override
+    public synchronized boolean isTooLarge() {
+        return tooLarge;
+    }
+
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * Returns <code>true</code> if the body has been spilled to disk.
+     */
+    public synchronized boolean isSpilled() {
+        return file != null;
+    }
+
+    @Override
+    public void fail(IOException cause) {
+        synchronized (this) {
+            if (failure == null)
+                failure = cause;
+        }
+        discard();
+    }
+
+    @Override
+    public synchronized void discard() {
+        discarded = true;
+        onReceived = null;
+        releaseData();
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() {
+        if (in != null)
+            return in;
+
+        if (failure == null && getContent() != null) {
+            in = new ByteBufInputStream(content);
+            return in;
+        }
+
+        if (failure != null) {
+            final IOException cause = failure;
+            in = new InputStream() {
+                @Override
+                public int read() throws IOException {
+                    throw cause;
+                }
+            };
+        } else {
+            try {
+                // too large to be mapped at once
+                fileChannel.position(0);
+                in = Channels.newInputStream(fileChannel);
+            } catch (IOException e) {
+                log.warn("Failed to read spilled request body", e);
+                failure = e;
+                in = null;
+                return getInputStream();
+            }
+        }
+        return in;
+    }
+
+    @Override
+    public synchronized ByteBuf getContent() {
+        if (content != null || failure != null)
+            return content;
+
+        if (fileChannel == null) {
+            content = memory != null ? memory : Unpooled.EMPTY_BUFFER;
+        } else if (size <= Integer.MAX_VALUE) {
+            try {
+                MappedByteBuffer mapped = fileChannel.map(
+                        FileChannel.MapMode.READ_ONLY, 0, size);
+                content = Unpooled.wrappedBuffer(mapped);
+            } catch (IOException e) {
+                log.warn("Failed to map spilled request body", e);
+                failure = e;
+            }
+        }
+        return content;
+    }
+
+    private void releaseData() {
+        content = null;
+        if (memory != null) {
+            memory.release();
+            memory = null;
+        }
+
+        if (fileChannel != null) {
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                log.debug("Failed to close spilled request body", e);
+            }
+            fileChannel = null;
+        }
+
+        if (file != null) {
+            if (!file.delete())
+                log.warn("Failed to delete spilled request body {}", file);
+            file = null;
+        }
+    }
+
+}
@@ -0,0 +1,381 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge.impl;
+
+import io.netty.util.concurrent.EventExecutor;
+import io.netty.util.concurrent.ScheduledFuture;
+import net.javaforge.netty.servlet.bridge.util.Utils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServletResponse;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps a request open after the servlet returned. The response is written
+ * by whichever thread calls {@link #complete()}, timeouts are scheduled on
+ * the event loop of the request's channel and {@link #dispatch()} runs on the
+ * executor servlet requests are dispatched to.
+ */
+public class AsyncContextImpl implements AsyncContext {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(AsyncContextImpl.class);
+
+    public static final long DEFAULT_TIMEOUT = 30000;
+
+    private final HttpServletRequestImpl request;
+
+    private final EventExecutor eventLoop;
+
+    private final Executor dispatchExecutor;
+
+    private final Runnable onComplete;
+
+    private ServletRequest servletRequest;
+
+    private ServletResponse servletResponse;
+
+    private List<Listener> listeners = new ArrayList<Listener>();
+
+    private long timeout = DEFAULT_TIMEOUT;
+
+    private ScheduledFuture<?> timeoutFuture;
+
+    /**
+     * <code>true</code> while the container runs a servlet for this request.
+     */
+    private boolean inDispatch = true;
+
+    /**
+     * <code>true</code> if the last dispatch called startAsync.
+     */
+    private boolean started = true;
+
+    private boolean completeRequested;
+
+    private String dispatchPath;
+
+    private ServletContext dispatchContext;
+
+    private boolean completed;
+
+    AsyncContextImpl(HttpServletRequestImpl request,
+                     ServletRequest servletRequest, ServletResponse servletResponse,
+                     EventExecutor eventLoop, Executor dispatchExecutor,
+                     Runnable onComplete) {
+        this.request = request;
+        this.servletRequest = servletRequest;
+        this.servletResponse = servletResponse;
+        this.eventLoop = eventLoop;
+        this.dispatchExecutor = dispatchExecutor;
+        this.onComplete = onComplete;
+    }
+
+    /**
+     * Called if startAsync is invoked again during an async dispatch.
+     */
+    void restart(ServletRequest servletRequest, ServletResponse servletResponse) {
+        List<Listener> previous;
+        synchronized (this) {
+            if (!inDispatch || started || completed)
+                throw new IllegalStateException(
+                        "Async processing can not be started now!");
+
+            this.servletRequest = servletRequest;
+            this.servletResponse = servletResponse;
+            this.started = true;
+            this.timeout = DEFAULT_TIMEOUT;
+
+            // listeners have to register again, as per spec
+            previous = this.listeners;
+            this.listeners = new ArrayList<Listener>();
+        }
+
+        for (Listener listener : previous) {
+            try {
+                listener.listener.onStartAsync(listener.event(this));
+            } catch (Exception e) {
+                log.warn("Async listener failed on start async.", e);
+            }
+        }
+    }
+
+    synchronized boolean isStarted() {
+        return started && !completed;
+    }
+
+    /**
+     * Called by the container once the servlet it dispatched to returned.
+     */
+    public void dispatchReturned() {
+        boolean dispatch;
+        synchronized (this) {
+            inDispatch = false;
+            dispatch = dispatchPath != null;
+
+            if (!completeRequested && !dispatch && started) {
+                if (timeout > 0)
+                    timeoutFuture = eventLoop.schedule(new Runnable() {
+                        @Override
+                        public void run() {
+                            onTimeout();
+                        }
+                    }, timeout, TimeUnit.MILLISECONDS);
+                return;
+            }
+        }
+
+        if (dispatch)
+            startDispatch();
+        else
+            finish();
+    }
+
+    @Override
+    public ServletRequest getRequest() {
+        return servletRequest;
+    }
+
+    @Override
+    public ServletResponse getResponse() {
+        return servletResponse;
+    }
+
+    @Override
+    public boolean hasOriginalRequestAndResponse() {
+        return servletRequest == request
+                && servletResponse instanceof HttpServletResponseImpl;
+    }
+
+    @Override
+    public void dispatch() {
+        String path = request.getServletPath();
+        if (request.getPathInfo() != null)
+            path += request.getPathInfo();
+        dispatch(path.length() > 0 ? path : "/");
+    }
+
+    @Override
+    public void dispatch(String path) {
+        dispatch(request.getServletContext(), path);
+    }
+
+    @Override
+    public void dispatch(ServletContext context, String path) {
+        boolean dispatchNow;
+        synchronized (this) {
+            if (completed || completeRequested || dispatchPath != null)
+                throw new IllegalStateException(
+                        "Async request already completed or dispatched!");
+
+            dispatchPath = path;
+            dispatchContext = context;
+            dispatchNow = !inDispatch;
+        }
+
+        if (dispatchNow)
+            startDispatch();
+    }
+
+    @Override
+    public void complete() {
+        boolean completeNow;
+        synchronized (this) {
+            if (completed || completeRequested)
+                return;
+
+            completeRequested = true;
+            completeNow = !inDispatch;
+        }
+
+        if (completeNow)
+            finish();
+    }
+
+    @Override
+    public void start(Runnable run) {
+        dispatchExecutor.execute(run);
+    }
+
+    @Override
+    public void addListener(AsyncListener listener) {
+        addListener(listener, servletRequest, servletResponse);
+    }
+
+    @Override
+    public synchronized void addListener(AsyncListener listener,
+                                         ServletRequest servletRequest, ServletResponse servletResponse) {
+        listeners.add(new Listener(listener, servletRequest, servletResponse));
+    }
+
+    @Override
+    public <T extends AsyncListener> T createListener(Class<T> clazz)
+            throws ServletException {
+        try {
+            return Utils.newInstance(clazz);
+        } catch (RuntimeException e) {
+            throw new ServletException(e);
+        }
+    }
+
+    @Override
+    public synchronized void setTimeout(long timeout) {
+        if (!inDispatch)
+            throw new IllegalStateException(
+                    "Timeout can only be set before the servlet returns!");
+        this.timeout = timeout;
+    }
+
+    @Override
+    public synchronized long getTimeout() {
+        return timeout;
+    }
+
+    private void startDispatch() {
+        final String path;
+        final ServletContext context;
+        synchronized (this) {
+            cancelTimeout();
+            path = dispatchPath;
+            context = dispatchContext;
+            dispatchPath = null;
+            dispatchContext = null;
+            inDispatch = true;
+            started = false;
+        }
+
+        dispatchExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                request.setDispatcherType(DispatcherType.ASYNC);
+                try {
+                    context.getRequestDispatcher(path).forward(servletRequest,
+                            servletResponse);
+                } catch (Throwable t) {
+                    log.error("Async dispatch to '" + path + "' failed.", t);
+                    onError(t);
+                }
+                dispatchReturned();
+            }
+        });
+    }
+
+    private void onTimeout() {
+        List<Listener> notify;
+        synchronized (this) {
+            if (inDispatch || completed || completeRequested
+                    || dispatchPath != null)
+                return;
+            notify = new ArrayList<Listener>(listeners);
+        }
+
+        for (Listener listener : notify) {
+            try {
+                listener.listener.onTimeout(listener.event(this));
+            } catch (Exception e) {
+                log.warn("Async listener failed on timeout.", e);
+            }
+        }
+
+        synchronized (this) {
+            if (completeRequested || dispatchPath != null)
+                return;
+        }
+
+        // nobody took care of the request, answer it with an error
+        if (!servletResponse.isCommitted()
+                && servletResponse instanceof HttpServletResponse)
+            ((HttpServletResponse) servletResponse)
+                    .setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+        complete();
+    }
+
+    private void onError(Throwable t) {
+        List<Listener> notify;
+        synchronized (this) {
+            notify = new ArrayList<Listener>(listeners);
+            completeRequested = true;
+        }
+
+        for (Listener listener : notify) {
+            try {
+                listener.listener.onError(new AsyncEvent(this,
+                        listener.request, listener.response, t));
+            } catch (Exception e) {
+                log.warn("Async listener failed on error.", e);
+            }
+        }
+
+        if (!servletResponse.isCommitted()
+                && servletResponse instanceof HttpServletResponse)
+            ((HttpServletResponse) servletResponse)
+                    .setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    }
+
+    private void finish() {
+        List<Listener> notify;
+        synchronized (this) {
+            if (completed)
+                return;
+            completed = true;
+            cancelTimeout();
+            notify = listeners;
+        }
+
+        for (Listener listener : notify) {
+            try {
+                listener.listener.onComplete(listener.event(this));
+            } catch (Exception e) {
+                log.warn("Async listener failed on complete.", e);
+            }
+        }
+
+        onComplete.run();
+    }
+
+    private void cancelTimeout() {
+        if (timeoutFuture != null) {
+            timeoutFuture.cancel(false);
+            timeoutFuture = null;
+        }
+    }
+
+    private static final class Listener {
+
+        private final AsyncListener listener;
+
+        private final ServletRequest request;
+
+        private final ServletResponse response;
+
+        private Listener(AsyncListener listener, ServletRequest request,
+                         ServletResponse response) {
+            this.listener = listener;
+            this.request = request;
+            this.response = response;
+        }
+
+        private AsyncEvent event(AsyncContext context) {
+            return new AsyncEvent(context, request, response);
+        }
+    }
+}
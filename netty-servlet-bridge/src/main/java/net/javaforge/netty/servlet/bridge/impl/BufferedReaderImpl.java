@@ -0,0 +1,299 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge.impl;
+
+import io.netty.buffer.ByteBuf;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Reader of the request body, decoding the bytes with the charset of the
+ * request. A body kept in a buffer is decoded straight from it, a streamed
+ * body through a single byte array. Decoded characters are buffered once,
+ * large reads are decoded directly into the array of the caller.
+ * <p/>
+ * The decoders of the JDK for UTF-8, US-ASCII and ISO-8859-1 copy runs of
+ * ascii characters from a heap buffer in bulk, so they are fed the body's
+ * own array rather than bytes copied before. Malformed input is replaced,
+ * as by {@link java.io.InputStreamReader}.
+ */
+public class BufferedReaderImpl extends BufferedReader {
+
+    private static final int DEFAULT_BUFFER_SIZE = 8192;
+
+    private static final int MIN_BUFFER_SIZE = 16;
+
+    /**
+     * Placeholder for the reader of the super class, which is never used.
+     */
+    private static final Reader NO_READER = new StringReader("");
+
+    private final ServletInputStreamImpl inputStream;
+
+    /**
+     * Source of the bytes, <code>null</code> if the body is decoded from its
+     * buffer.
+     */
+    private final InputStream in;
+
+    private final ByteBuffer bytes;
+
+    private final CharsetDecoder decoder;
+
+    private final int bufferSize;
+
+    /**
+     * Decoded characters, allocated on first use as bulk reads bypass it.
+     */
+    private char[] chars;
+
+    private int pos;
+
+    private int limit;
+
+    private boolean endOfInput;
+
+    private boolean decoderFlushed;
+
+    /**
+     * Set after a line ended with '\r', so a following '\n' is skipped.
+     */
+    private boolean skipLF;
+
+    private boolean closed;
+
+    public BufferedReaderImpl(ServletInputStreamImpl inputStream,
+                              Charset charset) {
+        super(NO_READER, 1);
+        this.inputStream = inputStream;
+
+        ByteBuf content = inputStream.bufferedContent();
+        if (content != null && content.nioBufferCount() == 1) {
+            this.in = null;
+            this.bytes = content.nioBuffer();
+            this.endOfInput = true;
+            // the reader owns the rest of the body
+            content.skipBytes(content.readableBytes());
+        } else {
+            this.in = inputStream;
+            this.bytes = ByteBuffer.allocate(DEFAULT_BUFFER_SIZE);
+            this.bytes.flip();
+        }
+
+        this.decoder = charset.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+
+        int size = DEFAULT_BUFFER_SIZE;
+        if (this.in == null)
+            size = Math.max(MIN_BUFFER_SIZE, Math.min(size, this.bytes
+                    .remaining()));
+        this.bufferSize = size;
+    }
+
+    @Override
+    public int read() throws IOException {
+        ensureOpen();
+        if (!ensureChars())
+            return -1;
+        return chars[pos++];
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int len) throws IOException {
+        ensureOpen();
+        if (off < 0 || len < 0 || off + len > cbuf.length)
+            throw new IndexOutOfBoundsException();
+        if (len == 0)
+            return 0;
+
+        if (pos >= limit && !skipLF && len >= bufferSize)
+            return decode(cbuf, off, len);
+
+        if (!ensureChars())
+            return -1;
+
+        int n = Math.min(len, limit - pos);
+        System.arraycopy(chars, pos, cbuf, off, n);
+        pos += n;
+        return n;
+    }
+
+    @Override
+    public String readLine() throws IOException {
+        ensureOpen();
+        StringBuilder line = null;
+        while (ensureChars()) {
+            int start = pos;
+            while (pos < limit) {
+                char c = chars[pos];
+                if (c == '\n' || c == '\r')
+                    break;
+                pos++;
+            }
+
+            if (pos < limit) {
+                skipLF = chars[pos] == '\r';
+                int end = pos++;
+                if (line == null)
+                    return new String(chars, start, end - start);
+                return line.append(chars, start, end - start).toString();
+            }
+
+            if (line == null)
+                line = new StringBuilder(limit - start + 80);
+            line.append(chars, start, limit - start);
+        }
+        return line != null ? line.toString() : null;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        if (n < 0L)
+            throw new IllegalArgumentException("skip value is negative");
+
+        ensureOpen();
+        long skipped = 0;
+        while (skipped < n && ensureChars()) {
+            int count = (int) Math.min(n - skipped, limit - pos);
+            pos += count;
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public boolean ready() throws IOException {
+        ensureOpen();
+        return pos < limit || bytes.hasRemaining()
+                || (in != null && in.available() > 0);
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    @Override
+    public void mark(int readAheadLimit) throws IOException {
+        throw new IOException("mark() not supported");
+    }
+
+    @Override
+    public void reset() throws IOException {
+        throw new IOException("reset() not supported");
+    }
+
+    @Override
+    public void close() throws IOException {
+        if (closed)
+            return;
+
+        closed = true;
+        pos = limit = 0;
+        inputStream.close();
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed)
+            throw new IOException("Stream closed");
+    }
+
+    /**
+     * Makes sure decoded characters are available, skipping a line feed
+     * following a carriage return which ended a line.
+     *
+     * @return <code>false</code> at the end of the body
+     */
+    private boolean ensureChars() throws IOException {
+        while (true) {
+            if (pos >= limit) {
+                if (chars == null)
+                    chars = new char[bufferSize];
+                int n = decode(chars, 0, chars.length);
+                if (n < 0)
+                    return false;
+                pos = 0;
+                limit = n;
+            }
+            if (!skipLF)
+                return true;
+
+            skipLF = false;
+            if (chars[pos] == '\n')
+                pos++;
+        }
+    }
+
+    /**
+     * Decodes at least one character into the given array.
+     *
+     * @return the number of characters, -1 at the end of the body
+     */
+    private int decode(char[] dst, int off, int len) throws IOException {
+        while (true) {
+            int n = bytes.hasRemaining() ? decodeBytes(dst, off, len) : 0;
+            if (n > 0)
+                return n;
+            if (endOfInput)
+                return decodeEnd(dst, off, len);
+
+            // keep an incomplete sequence for the next read
+            bytes.compact();
+            int read = in.read(bytes.array(), bytes.arrayOffset()
+                    + bytes.position(), bytes.remaining());
+            if (read < 0)
+                endOfInput = true;
+            else
+                bytes.position(bytes.position() + read);
+            bytes.flip();
+        }
+    }
+
+    private int decodeBytes(char[] dst, int off, int len) {
+        CharBuffer out = CharBuffer.wrap(dst, off, len);
+        decoder.decode(bytes, out, false);
+        return out.position() - off;
+    }
+
+    /**
+     * Decodes an incomplete sequence left at the end of the body.
+     */
+    private int decodeEnd(char[] dst, int off, int len) {
+        if (decoderFlushed)
+            return -1;
+
+        CharBuffer out = CharBuffer.wrap(dst, off, len);
+        CoderResult result = decoder.decode(bytes, out, true);
+        if (!result.isOverflow()) {
+            decoder.flush(out);
+            decoderFlushed = true;
+        }
+        int n = out.position() - off;
+        return n > 0 ? n : -1;
+    }
+}
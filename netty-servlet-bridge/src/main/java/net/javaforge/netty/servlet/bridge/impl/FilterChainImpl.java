@@ -16,6 +16,7 @@
 
 package net.javaforge.netty.servlet.bridge.impl;
 
+import io.netty.util.Recycler;
 import net.javaforge.netty.servlet.bridge.config.FilterConfiguration;
 import net.javaforge.netty.servlet.bridge.config.ServletConfiguration;
 
@@ -24,38 +25,125 @@ import javax.servlet.ServletException;
 import javax.servlet.ServletRequest;
 import javax.servlet.ServletResponse;
 import java.io.IOException;
-import java.util.LinkedList;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
 
+/**
+ * Per request cursor over the precompiled filter array of a
+ * {@link ServletRoute}.
+ */
 public class FilterChainImpl implements FilterChain {
 
-    private LinkedList<FilterConfiguration> filterConfigurations;
+    private static final FilterConfiguration[] NO_FILTERS = new FilterConfiguration[0];
+
+    private static final AtomicIntegerFieldUpdater<FilterChainImpl> REF_CNT = AtomicIntegerFieldUpdater
+            .newUpdater(FilterChainImpl.class, "refCnt");
+
+    private static final Recycler<FilterChainImpl> RECYCLER = new Recycler<FilterChainImpl>() {
+        @Override
+        protected FilterChainImpl newObject(Handle<FilterChainImpl> handle) {
+            return new FilterChainImpl(handle);
+        }
+    };
+
+    private final Recycler.Handle<FilterChainImpl> handle;
+
+    private FilterConfiguration[] filterConfigurations;
+
+    private int position;
 
     private ServletConfiguration servletConfiguration;
 
+    private ServletRoute servletRoute;
+
+    /**
+     * Webapp that routed the request, <code>null</code> for chains created
+     * outside of one.
+     */
+    private ServletBridgeWebapp webapp;
+
+    private volatile ServletRouteIndex routeIndex;
+
+    private volatile int refCnt = 1;
+
+    /**
+     * Objects of the request processed through this chain, recycled along
+     * with it.
+     */
+    private URIParser uriParser;
+
+    private HttpServletRequestImpl request;
+
+    private HttpServletResponseImpl response;
+
     public FilterChainImpl(ServletConfiguration servletConfiguration) {
+        this.handle = null;
         this.servletConfiguration = servletConfiguration;
+        this.filterConfigurations = NO_FILTERS;
     }
 
-    public void addFilterConfiguration(FilterConfiguration config) {
+    public FilterChainImpl(ServletRoute servletRoute) {
+        this.handle = null;
+        this.init(servletRoute);
+    }
 
-        if (this.filterConfigurations == null)
-            this.filterConfigurations = new LinkedList<FilterConfiguration>();
+    FilterChainImpl(ServletBridgeWebapp webapp, ServletRoute servletRoute) {
+        this(servletRoute);
+        this.webapp = webapp;
+    }
 
-        this.filterConfigurations.add(config);
+    private FilterChainImpl(Recycler.Handle<FilterChainImpl> handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Returns a chain for the given route from the pool of the current
+     * thread. The parser of the request target is recycled along with it.
+     *
+     * @see #recycle()
+     */
+    static FilterChainImpl newInstance(ServletBridgeWebapp webapp,
+                                       ServletRoute servletRoute,
+                                       ServletRouteIndex routeIndex, URIParser uriParser) {
+        FilterChainImpl chain = Recycling.ENABLED ? RECYCLER.get()
+                : new FilterChainImpl((Recycler.Handle<FilterChainImpl>) null);
+        chain.init(servletRoute);
+        chain.webapp = webapp;
+        chain.routeIndex = routeIndex;
+        chain.uriParser = uriParser;
+        return chain;
+    }
+
+    private void init(ServletRoute servletRoute) {
+        this.servletRoute = servletRoute;
+        if (servletRoute != null) {
+            this.servletConfiguration = servletRoute.getServletConfiguration();
+            this.filterConfigurations = servletRoute.getFilters();
+        } else {
+            this.filterConfigurations = NO_FILTERS;
+        }
+    }
+
+    public void addFilterConfiguration(FilterConfiguration config) {
+        // route filter arrays are shared, never modify them in place
+        FilterConfiguration[] filters = Arrays.copyOf(
+                this.filterConfigurations, this.filterConfigurations.length + 1);
+        filters[filters.length - 1] = config;
+        this.filterConfigurations = filters;
     }
 
     @Override
     public void doFilter(ServletRequest request, ServletResponse response)
             throws IOException, ServletException {
 
-        FilterConfiguration config = filterConfigurations != null ? filterConfigurations
-                .poll()
-                : null;
+        if (this.filterConfigurations == null)
+            throw Recycling.recycled(this);
 
-        if (config != null)
+        if (this.position < this.filterConfigurations.length) {
+            FilterConfiguration config = this.filterConfigurations[this.position++];
             config.getHttpComponent().doFilter(request, response, this);
 
-        else if (this.servletConfiguration != null) {
+        } else if (this.servletConfiguration != null) {
 
             this.servletConfiguration.getHttpComponent().service(request,
                     response);
@@ -64,12 +152,83 @@ public class FilterChainImpl implements FilterChain {
 
     public boolean isValid() {
         return this.servletConfiguration != null
-                || (this.filterConfigurations != null && !this.filterConfigurations
-                .isEmpty());
+                || this.filterConfigurations.length > 0;
     }
 
     public ServletConfiguration getServletConfiguration() {
         return servletConfiguration;
     }
 
+    public ServletRoute getServletRoute() {
+        return servletRoute;
+    }
+
+    public ServletBridgeWebapp getWebapp() {
+        return webapp;
+    }
+
+    /**
+     * Keeps the routing snapshot pinned for one more {@link #release()},
+     * e.g. while an async request outlives the thread that dispatched it.
+     */
+    public void retain() {
+        REF_CNT.incrementAndGet(this);
+    }
+
+    /**
+     * Releases the routing snapshot this chain was built from, must be
+     * called once the request has been completely processed.
+     *
+     * @return <code>true</code> if this was the last reference and the
+     * request is done with
+     */
+    public boolean release() {
+        if (REF_CNT.decrementAndGet(this) != 0)
+            return false;
+
+        if (this.routeIndex != null) {
+            this.routeIndex.release();
+            this.routeIndex = null;
+        }
+        return true;
+    }
+
+    /**
+     * Sets the request and response passed through this chain, they are
+     * recycled along with it.
+     */
+    public void setRequest(HttpServletRequestImpl request,
+                           HttpServletResponseImpl response) {
+        this.request = request;
+        this.response = response;
+    }
+
+    /**
+     * Returns this chain and the request objects set on it to their pools,
+     * must only be called once the chain was released for the last time.
+     * The request objects of an async request are left to the garbage
+     * collector, the application may still hold its async context.
+     */
+    public void recycle() {
+        if (this.request == null || this.request.getAsyncContextImpl() == null) {
+            if (this.request != null)
+                this.request.recycle();
+            if (this.response != null)
+                this.response.recycle();
+            if (this.uriParser != null)
+                this.uriParser.recycle();
+        }
+        this.request = null;
+        this.response = null;
+        this.uriParser = null;
+        this.filterConfigurations = null;
+        this.position = 0;
+        this.servletConfiguration = null;
+        this.servletRoute = null;
+        this.webapp = null;
+        this.routeIndex = null;
+        this.refCnt = 1;
+        Recycling.recycle(this.handle, this);
+    }
+
 }
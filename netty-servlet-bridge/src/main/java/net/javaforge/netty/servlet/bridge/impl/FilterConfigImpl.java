@@ -21,6 +21,8 @@ import javax.servlet.ServletContext;
 
 public class FilterConfigImpl extends ConfigAdapter implements FilterConfig {
 
+    private ServletContextImpl servletContext;
+
     public FilterConfigImpl(String filterName) {
         super(filterName);
     }
@@ -32,7 +34,11 @@ public class FilterConfigImpl extends ConfigAdapter implements FilterConfig {
 
     @Override
     public ServletContext getServletContext() {
-        return ServletContextImpl.get();
+        return this.servletContext;
+    }
+
+    void setServletContext(ServletContextImpl servletContext) {
+        this.servletContext = servletContext;
     }
 
 }
@@ -0,0 +1,320 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.Channel;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.LastHttpContent;
+import net.javaforge.netty.servlet.bridge.ReadThrottle;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Request body fed by the {@link HttpContent} chunks following a request,
+ * so servlets can start working on the first bytes of an upload.
+ * <p/>
+ * Chunks are offered on the event loop and read on the servlet's thread.
+ * Once more than the high water mark is waiting to be read, reading from the
+ * channel is suspended until the consumer is down to the low water mark.
+ * Bodies nobody reads while they arrive, i.e. which are only consumed
+ * {@link #whenReceived(Runnable) once received}, are not throttled and kept
+ * in memory entirely; the bridge uses {@link AggregatedRequestBody} for
+ * those.
+ */
+public class HttpContentInputStream extends InputStream implements RequestBody {
+
+    public static final int DEFAULT_HIGH_WATER_MARK = 64 * 1024;
+
+    public static final int DEFAULT_LOW_WATER_MARK = 16 * 1024;
+
+    private final Channel channel;
+
+    private final int highWaterMark;
+
+    private final int lowWaterMark;
+
+    /**
+     * Maximum size of the body in bytes, zero or less for no limit.
+     */
+    private final long maxSize;
+
+    private long receivedBytes;
+
+    private boolean tooLarge;
+
+    /**
+     * Guards the state below. Not a monitor, so virtual threads waiting for
+     * the body do not pin their carrier thread.
+     */
+    private final ReentrantLock lock = new ReentrantLock();
+
+    private final Condition changed = lock.newCondition();
+
+    private final ArrayDeque<ByteBuf> chunks = new ArrayDeque<ByteBuf>();
+
+    private int queuedBytes;
+
+    private boolean last;
+
+    private boolean discarding;
+
+    private boolean suspended;
+
+    private IOException failure;
+
+    /**
+     * Run once the whole body is received, in which case the body is not
+     * throttled since nobody reads it before.
+     */
+    private Runnable onReceived;
+
+    public HttpContentInputStream(Channel channel) {
+        this(channel, 0);
+    }
+
+    public HttpContentInputStream(Channel channel, long maxSize) {
+        this(channel, DEFAULT_HIGH_WATER_MARK, DEFAULT_LOW_WATER_MARK, maxSize);
+    }
+
+    public HttpContentInputStream(Channel channel, int highWaterMark,
+                                  int lowWaterMark, long maxSize) {
+        this.channel = channel;
+        this.highWaterMark = highWaterMark;
+        this.lowWaterMark = lowWaterMark;
+        this.maxSize = maxSize;
+    }
+
+    @Override
+    public void offer(HttpContent content) {
+        boolean isLast = content instanceof LastHttpContent;
+        boolean suspend = false;
+        boolean resume = false;
+        Runnable received = null;
+
+        lock.lock();
+        try {
+            ByteBuf buf = content.content();
+            receivedBytes += buf.readableBytes();
+            if (!tooLarge && maxSize > 0 && receivedBytes > maxSize) {
+                tooLarge = true;
+                failure = new IOException(
+                        "Request body exceeds the limit of " + maxSize + " bytes");
+                discarding = true;
+                releaseChunks();
+                // nobody waits for the rest
+                isLast = true;
+            }
+
+            if (discarding || !buf.isReadable()) {
+                content.release();
+            } else {
+                chunks.add(buf);
+                queuedBytes += buf.readableBytes();
+            }
+
+            if (isLast) {
+                last = true;
+                received = onReceived;
+                onReceived = null;
+                // the data coming next belongs to the next request
+                resume = suspended;
+                suspended = false;
+            } else if (!suspended && onReceived == null && !discarding
+                    && queuedBytes > highWaterMark) {
+                suspended = suspend = true;
+            }
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+
+        if (suspend)
+            ReadThrottle.suspend(channel, this);
+        if (resume)
+            ReadThrottle.resume(channel, this);
+        if (received != null)
+            received.run();
+    }
+
+    @Override
+    public void whenReceived(Runnable task) {
+        lock.lock();
+        try {
+            if (!last && !tooLarge) {
+                onReceived = task;
+                return;
+            }
+        } finally {
+            lock.unlock();
+        }
+        task.run();
+    }
+
+    public boolean isReceived() {
+        lock.lock();
+        try {
+            return last;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean isTooLarge() {
+        lock.lock();
+        try {
+            return tooLarge;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream() {
+        return this;
+    }
+
+    @Override
+    public ByteBuf getContent() {
+        return null;
+    }
+
+    @Override
+    public void fail(IOException cause) {
+        lock.lock();
+        try {
+            if (failure == null)
+                failure = cause;
+        } finally {
+            lock.unlock();
+        }
+        discard();
+    }
+
+    @Override
+    public void discard() {
+        boolean resume;
+        lock.lock();
+        try {
+            discarding = true;
+            onReceived = null;
+            releaseChunks();
+            resume = suspended;
+            suspended = false;
+            changed.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        if (resume)
+            resumeReading();
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        return read(b, 0, 1) == -1 ? -1 : b[0] & 0xff;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0)
+            return 0;
+
+        int n;
+        boolean resume = false;
+        lock.lock();
+        try {
+            ByteBuf buf;
+            while ((buf = chunks.peek()) == null) {
+                if (failure != null)
+                    throw failure;
+                if (last || discarding)
+                    return -1;
+                if (channel.eventLoop().inEventLoop())
+                    throw new IOException(
+                            "Request body not received yet, cannot block the event loop");
+                try {
+                    changed.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+            }
+
+            n = Math.min(len, buf.readableBytes());
+            buf.readBytes(b, off, n);
+            queuedBytes -= n;
+            if (!buf.isReadable())
+                chunks.poll().release();
+
+            if (suspended && queuedBytes <= lowWaterMark) {
+                suspended = false;
+                resume = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (resume)
+            resumeReading();
+        return n;
+    }
+
+    @Override
+    public int available() {
+        lock.lock();
+        try {
+            return queuedBytes;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void close() {
+        discard();
+    }
+
+    private void releaseChunks() {
+        ByteBuf buf;
+        while ((buf = chunks.poll()) != null)
+            buf.release();
+        queuedBytes = 0;
+    }
+
+    private void resumeReading() {
+        if (channel.eventLoop().inEventLoop()) {
+            ReadThrottle.resume(channel, this);
+            return;
+        }
+
+        channel.eventLoop().execute(new Runnable() {
+            @Override
+            public void run() {
+                ReadThrottle.resume(channel, HttpContentInputStream.this);
+            }
+        });
+    }
+
+}
@@ -16,25 +16,33 @@
 
 package net.javaforge.netty.servlet.bridge.impl;
 
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.AsciiString;
 import io.netty.handler.codec.http.*;
-import io.netty.handler.codec.http.HttpHeaders.Names;
-import io.netty.handler.ssl.SslHandler;
-import net.javaforge.netty.servlet.bridge.ChannelThreadLocal;
-import net.javaforge.netty.servlet.bridge.HttpSessionThreadLocal;
+import io.netty.util.CharsetUtil;
+import io.netty.util.Recycler;
+import io.netty.util.concurrent.EventExecutor;
+import net.javaforge.netty.servlet.bridge.RequestContext;
+import net.javaforge.netty.servlet.bridge.config.ServletConfiguration;
+import net.javaforge.netty.servlet.bridge.util.AcceptLanguage;
+import net.javaforge.netty.servlet.bridge.util.FormDecoder;
+import net.javaforge.netty.servlet.bridge.util.HeaderNames;
+import net.javaforge.netty.servlet.bridge.util.HttpDateParser;
 import net.javaforge.netty.servlet.bridge.util.Utils;
 
-import javax.servlet.RequestDispatcher;
-import javax.servlet.ServletInputStream;
+import javax.servlet.*;
 import javax.servlet.http.Cookie;
 import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
 import javax.servlet.http.HttpSession;
+import javax.servlet.http.Part;
 import java.io.BufferedReader;
 import java.io.IOException;
-import java.io.InputStreamReader;
 import java.io.UnsupportedEncodingException;
-import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
 import java.security.Principal;
 import java.util.*;
+import java.util.concurrent.Executor;
 
 import static io.netty.handler.codec.http.HttpHeaders.Names.*;
 
@@ -43,119 +51,340 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 
     private static final Locale DEFAULT_LOCALE = Locale.getDefault();
 
+    /**
+     * Largest form body decoded into parameters if the servlet has no
+     * maximal request size, 2 MB like the default of most containers.
+     *
+     * @see net.javaforge.netty.servlet.bridge.config.ServletConfiguration#setMaxRequestSize(long)
+     */
+    public static final int DEFAULT_MAX_FORM_SIZE = 2 * 1024 * 1024;
+
+    private static final Recycler<HttpServletRequestImpl> RECYCLER = new Recycler<HttpServletRequestImpl>() {
+        @Override
+        protected HttpServletRequestImpl newObject(
+                Handle<HttpServletRequestImpl> handle) {
+            return new HttpServletRequestImpl(handle);
+        }
+    };
+
+    /**
+     * Headers read by the bridge itself or most servlets, looked up once per
+     * request.
+     */
+    private static final AsciiString[] CACHED_HEADERS = {
+            HeaderNames.CONTENT_TYPE, HeaderNames.HOST, HeaderNames.COOKIE};
+
+    private static final String UNRESOLVED = new String("unresolved");
+
+    private final Recycler.Handle<HttpServletRequestImpl> handle;
+
+    private final String[] cachedHeaders = new String[CACHED_HEADERS.length];
+
+    private ServletBridgeWebapp webapp;
+
     private URIParser uriParser;
 
     private HttpRequest originalRequest;
 
     private ServletInputStreamImpl inputStream;
 
+    /**
+     * Body received separately from the request, <code>null</code> if the
+     * request came with its body.
+     */
+    private RequestBody body;
+
     private BufferedReader reader;
 
-    private QueryStringDecoder queryStringDecoder;
+    /**
+     * Set once the servlet called {@link #getInputStream()}, the body can
+     * then no longer be read with {@link #getReader()}.
+     */
+    private boolean inputStreamUsed;
+
+    /**
+     * Query and form parameters, decoded on first access.
+     */
+    private Map<String, String[]> parameters;
+
+    /**
+     * Set once the servlet accessed the body, form parameters are not read
+     * from it afterwards.
+     */
+    private boolean bodyAccessed;
 
     private Map<String, Object> attributes;
 
+    private RequestCookies cookies;
+
     private Principal userPrincipal;
 
 //    private ServerCookieDecoder cookieDecoder = new ServerCookieDecoder();
 
     private String characterEncoding;
 
+    /**
+     * Set once the character encoding was taken from the content type or
+     * set explicitly, so the header is parsed at most once.
+     */
+    private boolean characterEncodingResolved;
+
+    private RequestContext context;
+
+    /**
+     * Host name the client addressed, <code>null</code> until resolved.
+     */
+    private String serverName;
+
+    private int serverPort;
+
+    private DispatcherType dispatcherType = DispatcherType.REQUEST;
+
+    private ServletResponse response;
+
+    private EventExecutor eventLoop;
+
+    private Executor dispatchExecutor;
+
+    private Runnable onAsyncComplete;
+
+    private AsyncContextImpl asyncContext;
+
     public HttpServletRequestImpl(HttpRequest request, FilterChainImpl chain) {
-        this.originalRequest = request;
+        this(request, new URIParser(chain));
+        this.uriParser.parse(request.uri());
+    }
 
-        if (request instanceof FullHttpRequest) {
-            this.inputStream = new ServletInputStreamImpl((FullHttpRequest) request);
-        } else {
-            this.inputStream = new ServletInputStreamImpl(request);
+    /**
+     * @param uriParser parser created for the chain of a webapp, see
+     *                  {@link URIParser#URIParser(FilterChainImpl)}
+     */
+    public HttpServletRequestImpl(HttpRequest request, URIParser uriParser) {
+        this(webappOf(uriParser.getChain()), request, uriParser);
+    }
+
+    public HttpServletRequestImpl(ServletBridgeWebapp webapp,
+                                  HttpRequest request, URIParser uriParser) {
+        this(webapp, request, uriParser, RequestContext.fromThreadLocals());
+    }
+
+    public HttpServletRequestImpl(ServletBridgeWebapp webapp,
+                                  HttpRequest request, URIParser uriParser,
+                                  RequestContext context) {
+        this(webapp, request, uriParser, context, null);
+    }
+
+    /**
+     * @param body body of the request if it is received separately,
+     *             <code>null</code> otherwise
+     */
+    public HttpServletRequestImpl(ServletBridgeWebapp webapp,
+                                  HttpRequest request, URIParser uriParser,
+                                  RequestContext context, RequestBody body) {
+        this.handle = null;
+        this.init(webapp, request, uriParser, context, body);
+    }
+
+    private static ServletBridgeWebapp webappOf(FilterChainImpl chain) {
+        if (chain == null || chain.getWebapp() == null)
+            throw new IllegalArgumentException(
+                    "Request is not routed by a webapp, pass the webapp explicitly!");
+        return chain.getWebapp();
+    }
+
+    private HttpServletRequestImpl(Recycler.Handle<HttpServletRequestImpl> handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Returns a request from the pool of the current thread, to be returned
+     * with {@link #recycle()}.
+     *
+     * @see Recycling
+     */
+    public static HttpServletRequestImpl newInstance(ServletBridgeWebapp webapp,
+                                                     HttpRequest request, URIParser uriParser,
+                                                     RequestContext context, RequestBody body) {
+        if (!Recycling.ENABLED)
+            return new HttpServletRequestImpl(webapp, request, uriParser,
+                    context, body);
+
+        HttpServletRequestImpl req = RECYCLER.get();
+        req.init(webapp, request, uriParser, context, body);
+        return req;
+    }
+
+    private void init(ServletBridgeWebapp webapp, HttpRequest request,
+                      URIParser uriParser, RequestContext context, RequestBody body) {
+        this.webapp = webapp;
+        this.context = context;
+        this.originalRequest = request;
+        this.uriParser = uriParser;
+
+        this.body = body;
+        Arrays.fill(this.cachedHeaders, UNRESOLVED);
+    }
+
+    /**
+     * Clears this request once it is completely processed and returns it to
+     * its pool. Requests which went async are left alone, their async
+     * context may still be referenced by the application.
+     */
+    public void recycle() {
+        if (this.asyncContext != null || this.originalRequest == null)
+            return;
+
+        this.webapp = null;
+        this.uriParser = null;
+        this.originalRequest = null;
+        this.inputStream = null;
+        this.body = null;
+        this.reader = null;
+        this.inputStreamUsed = false;
+        this.parameters = null;
+        this.cookies = null;
+        this.bodyAccessed = false;
+        if (this.attributes != null)
+            this.attributes.clear();
+        this.userPrincipal = null;
+        this.characterEncoding = null;
+        this.characterEncodingResolved = false;
+        this.context = null;
+        this.serverName = null;
+        this.dispatcherType = DispatcherType.REQUEST;
+        this.response = null;
+        this.eventLoop = null;
+        this.dispatchExecutor = null;
+        this.onAsyncComplete = null;
+        Recycling.recycle(this.handle, this);
+    }
+
+    /**
+     * Returns the value of the given header, from the cache for the headers
+     * in {@link #CACHED_HEADERS}.
+     */
+    private String header(CharSequence name) {
+        HttpHeaders headers = this.request().headers();
+        for (int i = 0; i < CACHED_HEADERS.length; i++) {
+            if (CACHED_HEADERS[i] == name) {
+                String value = this.cachedHeaders[i];
+                if (value == UNRESOLVED) {
+                    value = headers.get(name);
+                    this.cachedHeaders[i] = value;
+                }
+                return value;
+            }
         }
-        this.reader = new BufferedReader(new InputStreamReader(inputStream));
-        this.queryStringDecoder = new QueryStringDecoder(request.getUri());
-        this.uriParser = new URIParser(chain);
-        this.uriParser.parse(request.getUri());
-        this.characterEncoding = Utils
-                .getCharsetFromContentType(getContentType());
+        return headers.get(name);
+    }
 
+    private HttpRequest request() {
+        if (this.originalRequest == null)
+            throw Recycling.recycled(this);
+        return this.originalRequest;
+    }
+
+    private URIParser uriParser() {
+        if (this.uriParser == null)
+            throw Recycling.recycled(this);
+        return this.uriParser;
+    }
+
+    private RequestContext context() {
+        if (this.context == null)
+            throw Recycling.recycled(this);
+        return this.context;
+    }
+
+    private Map<String, Object> attributes(boolean create) {
+        if (this.originalRequest == null)
+            throw Recycling.recycled(this);
+        if (this.attributes == null && create)
+            this.attributes = new HashMap<String, Object>();
+        return this.attributes;
     }
 
     public HttpRequest getOriginalRequest() {
         return originalRequest;
     }
 
+    public RequestContext getRequestContext() {
+        return context;
+    }
+
     @Override
     public String getContextPath() {
-        return ServletContextImpl.get().getContextPath();
+        return this.webapp.getContextPath();
     }
 
     @Override
     public Cookie[] getCookies() {
-        String cookieString = this.originalRequest.headers().get(COOKIE);
-        if (cookieString != null) {
-            Set<io.netty.handler.codec.http.Cookie> cookies = CookieDecoder
-                    .decode(cookieString);
-            if (!cookies.isEmpty()) {
-                Cookie[] cookiesArray = new Cookie[cookies.size()];
-                int indx = 0;
-                for (io.netty.handler.codec.http.Cookie c : cookies) {
-                    Cookie cookie = new Cookie(c.getName(), c.getValue());
-                    cookie.setComment(c.getComment());
-                    cookie.setDomain(c.getDomain());
-                    cookie.setMaxAge((int) c.getMaxAge());
-                    cookie.setPath(c.getPath());
-                    cookie.setSecure(c.isSecure());
-                    cookie.setVersion(c.getVersion());
-                    cookiesArray[indx] = cookie;
-                    indx++;
-                }
-                return cookiesArray;
-
-            }
+        return this.getRequestCookies().toServletCookies();
+    }
+
+    /**
+     * Returns the cookies of this request, shared with the interceptors
+     * through the request context.
+     */
+    public RequestCookies getRequestCookies() {
+        if (this.cookies == null) {
+            RequestContext context = this.context;
+            HttpRequest request = this.request();
+            this.cookies = context != null && context.getRequest() == request
+                    ? context.getCookies()
+                    : RequestCookies.parse(request);
         }
-        return null;
+        return this.cookies;
     }
 
     @Override
     public long getDateHeader(String name) {
-        String longVal = getHeader(name);
-        if (longVal == null)
+        String value = getHeader(name);
+        if (value == null)
             return -1;
 
-        return Long.parseLong(longVal);
+        long date = HttpDateParser.parse(value);
+        if (date == HttpDateParser.INVALID)
+            throw new IllegalArgumentException("Header '" + name
+                    + "' is not a valid HTTP date: " + value);
+        return date;
     }
 
     @Override
     public String getHeader(String name) {
-        return HttpHeaders.getHeader(this.originalRequest, name);
+        return this.header(HeaderNames.of(name));
     }
 
     @Override
     public Enumeration getHeaderNames() {
-        return Utils.enumeration(this.originalRequest.headers().names());
+        return Utils.enumeration(this.request().headers().names());
     }
 
     @Override
     public Enumeration getHeaders(String name) {
-        return Utils.enumeration(this.originalRequest.headers().getAll(name));
+        return Utils.enumeration(this.request().headers().getAll(
+                HeaderNames.of(name)));
     }
 
     @Override
     public int getIntHeader(String name) {
-        return HttpHeaders.getIntHeader(this.originalRequest, name, -1);
+        return HttpHeaders.getIntHeader(this.request(), HeaderNames.of(name),
+                -1);
     }
 
     @Override
     public String getMethod() {
-        return this.originalRequest.method().name();
+        return this.request().method().name();
     }
 
     @Override
     public String getQueryString() {
-        return this.uriParser.getQueryString();
+        return this.uriParser().getQueryString();
     }
 
     @Override
     public String getRequestURI() {
-        return this.uriParser.getRequestUri();
+        return this.uriParser().getRequestUri();
     }
 
     @Override
@@ -186,22 +415,47 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 
     @Override
     public int getContentLength() {
-        return (int) HttpHeaders.getContentLength(this.originalRequest, -1);
+        return (int) HttpHeaders.getContentLength(this.request(), -1);
     }
 
     @Override
     public String getContentType() {
-        return HttpHeaders.getHeader(this.originalRequest,
-                HttpHeaders.Names.CONTENT_TYPE);
+        return this.header(HeaderNames.CONTENT_TYPE);
     }
 
     @Override
     public ServletInputStream getInputStream() throws IOException {
+        if (this.reader != null)
+            throw new IllegalStateException(
+                    "getReader() has already been called for this request");
+        this.inputStreamUsed = true;
+        this.bodyAccessed = true;
+        return this.getServletInputStream();
+    }
+
+    private ServletInputStreamImpl getServletInputStream() {
+        if (this.inputStream == null) {
+            HttpRequest request = this.request();
+            if (this.body != null) {
+                this.inputStream = new ServletInputStreamImpl(request,
+                        this.body);
+            } else if (request instanceof FullHttpRequest) {
+                this.inputStream = new ServletInputStreamImpl(
+                        (FullHttpRequest) request);
+            } else {
+                this.inputStream = new ServletInputStreamImpl(request);
+            }
+        }
         return this.inputStream;
     }
 
     @Override
     public String getCharacterEncoding() {
+        if (!this.characterEncodingResolved) {
+            this.characterEncoding = Utils
+                    .getCharsetFromContentType(getContentType());
+            this.characterEncodingResolved = true;
+        }
         return this.characterEncoding;
     }
 
@@ -213,131 +467,319 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 
     @Override
     public Map getParameterMap() {
-        return this.queryStringDecoder.parameters();
+        return getParameters();
     }
 
     @Override
     public Enumeration getParameterNames() {
-        return Utils.enumerationFromKeys(this.queryStringDecoder
-                .parameters());
+        return Utils.enumerationFromKeys(getParameters());
     }
 
     @Override
     public String[] getParameterValues(String name) {
-        List<String> values = this.queryStringDecoder.parameters().get(name);
-        if (values == null || values.isEmpty())
-            return null;
-        return values.toArray(new String[values.size()]);
+        return getParameters().get(name);
+    }
+
+    /**
+     * Returns the query string parameters followed by the parameters of a
+     * form posted in the body, decoded on first access.
+     */
+    private Map<String, String[]> getParameters() {
+        if (this.parameters != null)
+            return this.parameters;
+
+        Map<String, List<String>> query = this.uriParser().getParameters();
+        Map<String, List<String>> merged = query;
+        boolean form = isFormPost();
+        if (form || this.body instanceof MultipartRequestBody) {
+            merged = new LinkedHashMap<String, List<String>>();
+            for (Map.Entry<String, List<String>> e : query.entrySet())
+                merged.put(e.getKey(), new ArrayList<String>(e.getValue()));
+            if (form)
+                readFormParameters(merged);
+            else
+                readPartParameters(merged);
+        }
+
+        Map<String, String[]> parameters = new LinkedHashMap<String, String[]>(
+                merged.size() * 4 / 3 + 1);
+        for (Map.Entry<String, List<String>> e : merged.entrySet()) {
+            List<String> values = e.getValue();
+            if (!values.isEmpty())
+                parameters.put(e.getKey(),
+                        values.toArray(new String[values.size()]));
+        }
+        this.parameters = Collections.unmodifiableMap(parameters);
+        return this.parameters;
+    }
+
+    private boolean isFormPost() {
+        if (this.bodyAccessed
+                || !HttpMethod.POST.equals(this.request().method()))
+            return false;
+
+        String contentType = getContentType();
+        return contentType != null
+                && contentType.regionMatches(true, 0,
+                "application/x-www-form-urlencoded", 0, 33);
+    }
+
+    /**
+     * Adds the form fields of a multipart request, file uploads are only
+     * available as parts.
+     */
+    private void readPartParameters(Map<String, List<String>> parameters) {
+        try {
+            for (PartImpl part : ((MultipartRequestBody) this.body).getParts()) {
+                if (!part.isFile()) {
+                    List<String> values = parameters.get(part.getName());
+                    if (values == null) {
+                        values = new ArrayList<String>(1);
+                        parameters.put(part.getName(), values);
+                    }
+                    values.add(part.getString());
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to read form parameters", e);
+        }
+    }
+
+    /**
+     * Adds the fields of a posted form. Forms larger than the maximal request
+     * size of the servlet, {@link #DEFAULT_MAX_FORM_SIZE} if it has none, are
+     * rejected with a {@link RequestTooLargeException}. An unknown character
+     * encoding falls back to UTF-8.
+     */
+    private void readFormParameters(Map<String, List<String>> parameters) {
+        this.bodyAccessed = true;
+        int maxSize = this.getMaxFormSize();
+        if (HttpHeaders.getContentLength(this.request(), 0) > maxSize)
+            throw formTooLarge(maxSize);
+
+        try {
+            ByteBuf content = this.getServletInputStream().readContent(
+                    maxSize + 1);
+            try {
+                if (content.readableBytes() > maxSize)
+                    throw formTooLarge(maxSize);
+                FormDecoder.decode(content, this.getFormCharset(), parameters);
+            } finally {
+                content.release();
+            }
+        } catch (IOException e) {
+            if (this.body != null && this.body.isTooLarge())
+                throw formTooLarge(maxSize);
+            throw new IllegalStateException("Failed to read form parameters", e);
+        }
+    }
+
+    /**
+     * Returns the form limit of the servlet, the default one if the request
+     * is only mapped to filters.
+     */
+    private int getMaxFormSize() {
+        ServletRoute route = this.uriParser().getServletRoute();
+        ServletConfiguration servlet = route != null ? route
+                .getServletConfiguration() : null;
+        long maxSize = servlet != null ? servlet.getMaxRequestSize() : 0;
+        if (maxSize <= 0)
+            return DEFAULT_MAX_FORM_SIZE;
+        return (int) Math.min(maxSize, Integer.MAX_VALUE - 1);
+    }
+
+    private static RequestTooLargeException formTooLarge(int maxSize) {
+        return new RequestTooLargeException("Form exceeds the limit of "
+                + maxSize + " bytes", maxSize);
+    }
+
+    private Charset getFormCharset() {
+        String encoding = this.getCharacterEncoding();
+        if (encoding != null) {
+            try {
+                return Charset.forName(encoding);
+            } catch (IllegalArgumentException e) {
+                // unknown or illegal charset name, decode as without one
+            }
+        }
+        return CharsetUtil.UTF_8;
     }
 
     @Override
     public String getProtocol() {
-        return this.originalRequest.getProtocolVersion().toString();
+        return this.request().getProtocolVersion().toString();
     }
 
     @Override
     public Object getAttribute(String name) {
+        Map<String, Object> attributes = this.attributes(false);
         if (attributes != null)
-            return this.attributes.get(name);
+            return attributes.get(name);
 
         return null;
     }
 
     @Override
     public Enumeration getAttributeNames() {
-        return Utils.enumerationFromKeys(this.attributes);
+        return Utils.enumerationFromKeys(this.attributes(false));
     }
 
     @Override
     public void removeAttribute(String name) {
-        if (this.attributes != null)
-            this.attributes.remove(name);
+        Map<String, Object> attributes = this.attributes(false);
+        if (attributes != null)
+            attributes.remove(name);
     }
 
     @Override
     public void setAttribute(String name, Object o) {
-        if (this.attributes == null)
-            this.attributes = new HashMap<String, Object>();
-
-        this.attributes.put(name, o);
+        this.attributes(true).put(name, o);
     }
 
+    /**
+     * Returns a reader decoding the body with the character encoding of the
+     * request, ISO-8859-1 if it has none (servlet specification 3.0, section
+     * 3.10).
+     */
     @Override
     public BufferedReader getReader() throws IOException {
+        if (this.inputStreamUsed)
+            throw new IllegalStateException(
+                    "getInputStream() has already been called for this request");
+        this.bodyAccessed = true;
+        if (this.reader == null) {
+            String encoding = this.getCharacterEncoding();
+            Charset charset = CharsetUtil.ISO_8859_1;
+            if (encoding != null) {
+                try {
+                    charset = Charset.forName(encoding);
+                } catch (IllegalArgumentException e) {
+                    throw new UnsupportedEncodingException(encoding);
+                }
+            }
+            this.reader = new BufferedReaderImpl(this.getServletInputStream(),
+                    charset);
+        }
         return this.reader;
     }
 
     @Override
     public String getRequestedSessionId() {
-        HttpSessionImpl session = HttpSessionThreadLocal.get();
+        HttpSessionImpl session = getSessionImpl(false);
         return session != null ? session.getId() : null;
     }
 
     @Override
     public HttpSession getSession() {
-        HttpSession s = HttpSessionThreadLocal.getOrCreate();
-        return s;
+        return getSessionImpl(true);
     }
 
     @Override
     public HttpSession getSession(boolean create) {
-        HttpSession session = HttpSessionThreadLocal.get();
-        if (session == null && create) {
-            session = HttpSessionThreadLocal.getOrCreate();
+        return getSessionImpl(create);
+    }
+
+    /**
+     * Returns the session of this request, also if called from a thread
+     * other than the one the request was received on.
+     */
+    public HttpSessionImpl getSessionImpl(boolean create) {
+        HttpSessionImpl session = this.context().getSession();
+        if (session != null) {
+            session.touch();
+        } else if (create) {
+            session = this.webapp.createSession();
+            this.context().setSession(session);
         }
         return session;
     }
 
     @Override
     public String getPathInfo() {
-        return this.uriParser.getPathInfo();
+        return this.uriParser().getPathInfo();
     }
 
     @Override
     public Locale getLocale() {
-        String locale = HttpHeaders.getHeader(this.originalRequest,
-                Names.ACCEPT_LANGUAGE, DEFAULT_LOCALE.toString());
-        return new Locale(locale);
+        List<Locale> locales = AcceptLanguage.getLocales(this
+                .header(HeaderNames.ACCEPT_LANGUAGE));
+        return locales.isEmpty() ? DEFAULT_LOCALE : locales.get(0);
     }
 
     @Override
     public String getRemoteAddr() {
-        InetSocketAddress addr = (InetSocketAddress) ChannelThreadLocal.get()
-                .remoteAddress();
-        return addr.getAddress().getHostAddress();
+        return this.context().getRemoteAddr();
     }
 
+    /**
+     * Returns the ip address of the client unless a reverse lookup of its
+     * connection has completed, lookups are never done on the calling thread.
+     *
+     * @see net.javaforge.netty.servlet.bridge.ServletBridgeHandler#setRemoteHostLookups(boolean)
+     */
     @Override
     public String getRemoteHost() {
-        InetSocketAddress addr = (InetSocketAddress) ChannelThreadLocal.get()
-                .remoteAddress();
-        return addr.getHostName();
+        return this.context().getRemoteHost();
     }
 
     @Override
     public int getRemotePort() {
-        InetSocketAddress addr = (InetSocketAddress) ChannelThreadLocal.get()
-                .remoteAddress();
-        return addr.getPort();
+        return this.context().getRemotePort();
     }
 
+    /**
+     * Returns the host of the Host header, as forwarded by a trusted proxy
+     * if any, or the local ip address for requests without one.
+     */
     @Override
     public String getServerName() {
-        InetSocketAddress addr = (InetSocketAddress) ChannelThreadLocal.get()
-                .localAddress();
-        return addr.getHostName();
+        if (this.serverName == null)
+            this.resolveServer();
+        return this.serverName;
     }
 
     @Override
     public int getServerPort() {
-        InetSocketAddress addr = (InetSocketAddress) ChannelThreadLocal.get()
-                .localAddress();
-        return addr.getPort();
+        if (this.serverName == null)
+            this.resolveServer();
+        return this.serverPort;
+    }
+
+    private void resolveServer() {
+        RequestContext context = this.context();
+        String host = context.getForwardedHost();
+        if (host == null)
+            host = this.header(HeaderNames.HOST);
+
+        String name = host;
+        int port = -1;
+        if (host != null) {
+            int colon = host.lastIndexOf(':');
+            if (colon > host.lastIndexOf(']')) {
+                name = host.substring(0, colon);
+                try {
+                    port = Integer.parseInt(host.substring(colon + 1));
+                } catch (NumberFormatException e) {
+                    port = -1;
+                }
+            }
+        }
+
+        if (port < 0)
+            port = context.getForwardedPort();
+        if (port < 0 && context.isForwarded())
+            port = context.isSecure() ? 443 : 80;
+        if (port < 0)
+            port = context.getConnection().getLocalPort();
+
+        this.serverPort = port;
+        this.serverName = name != null && name.length() > 0 ? name : context
+                .getConnection().getLocalAddr();
     }
 
     @Override
     public String getServletPath() {
-        String servletPath = this.uriParser.getServletPath();
+        String servletPath = this.uriParser().getServletPath();
         if (servletPath.equals("/"))
             return "";
 
@@ -346,12 +788,12 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 
     @Override
     public String getScheme() {
-        return this.isSecure() ? "https" : "http";
+        return this.context().getScheme();
     }
 
     @Override
     public boolean isSecure() {
-        return ChannelThreadLocal.get().pipeline().get(SslHandler.class) != null;
+        return this.context().isSecure();
     }
 
     @Override
@@ -361,38 +803,36 @@ public class HttpServletRequestImpl implements HttpServletRequest {
 
     @Override
     public String getLocalAddr() {
-        InetSocketAddress addr = (InetSocketAddress) ChannelThreadLocal.get()
-                .localAddress();
-        return addr.getAddress().getHostAddress();
+        return this.context().getConnection().getLocalAddr();
     }
 
+    /**
+     * Returns the local ip address, the local host name is not looked up.
+     */
     @Override
     public String getLocalName() {
-        return getServerName();
+        return this.context().getConnection().getLocalAddr();
     }
 
     @Override
     public int getLocalPort() {
-        return getServerPort();
+        return this.context().getConnection().getLocalPort();
     }
 
     @Override
     public void setCharacterEncoding(String env)
             throws UnsupportedEncodingException {
         this.characterEncoding = env;
+        this.characterEncodingResolved = true;
     }
 
     @Override
     public Enumeration getLocales() {
-        Collection<Locale> locales = Utils
-                .parseAcceptLanguageHeader(HttpHeaders
-                        .getHeader(this.originalRequest,
-                                HttpHeaders.Names.ACCEPT_LANGUAGE));
-
-        if (locales == null || locales.isEmpty()) {
-            locales = new ArrayList<Locale>();
-            locales.add(Locale.getDefault());
-        }
+        List<Locale> locales = AcceptLanguage.getLocales(this
+                .header(HeaderNames.ACCEPT_LANGUAGE));
+
+        if (locales.isEmpty())
+            locales = Collections.singletonList(DEFAULT_LOCALE);
         return Utils.enumeration(locales);
     }
 
@@ -453,4 +893,122 @@ public class HttpServletRequestImpl implements HttpServletRequest {
                 "Method 'getRequestDispatcher' not yet implemented!");
     }
 
+    @Override
+    public ServletContext getServletContext() {
+        return this.webapp.getServletContext();
+    }
+
+    /**
+     * Enables {@link #startAsync()} for this request.
+     *
+     * @param response         the response of this request
+     * @param eventLoop        event loop of the request's channel, used for
+     *                         async timeouts
+     * @param dispatchExecutor executor running async dispatches
+     * @param onComplete       writes the response once the async request is
+     *                         completed
+     */
+    public void setAsyncSupport(ServletResponse response,
+                                EventExecutor eventLoop, Executor dispatchExecutor,
+                                Runnable onComplete) {
+        this.response = response;
+        this.eventLoop = eventLoop;
+        this.dispatchExecutor = dispatchExecutor;
+        this.onAsyncComplete = onComplete;
+    }
+
+    @Override
+    public AsyncContext startAsync() {
+        return startAsync(this, this.response);
+    }
+
+    @Override
+    public AsyncContext startAsync(ServletRequest servletRequest,
+                                   ServletResponse servletResponse) {
+        if (!isAsyncSupported())
+            throw new IllegalStateException(
+                    "Async processing is not supported for this request!");
+
+        if (this.asyncContext == null) {
+            this.asyncContext = new AsyncContextImpl(this, servletRequest,
+                    servletResponse, this.eventLoop, this.dispatchExecutor,
+                    this.onAsyncComplete);
+        } else {
+            this.asyncContext.restart(servletRequest, servletResponse);
+        }
+        return this.asyncContext;
+    }
+
+    @Override
+    public boolean isAsyncStarted() {
+        return this.asyncContext != null && this.asyncContext.isStarted();
+    }
+
+    @Override
+    public boolean isAsyncSupported() {
+        return this.onAsyncComplete != null;
+    }
+
+    @Override
+    public AsyncContext getAsyncContext() {
+        if (!isAsyncStarted())
+            throw new IllegalStateException("Async processing not started!");
+        return this.asyncContext;
+    }
+
+    /**
+     * Returns the async context of this request, <code>null</code> if
+     * {@link #startAsync()} was never called.
+     */
+    public AsyncContextImpl getAsyncContextImpl() {
+        return this.asyncContext;
+    }
+
+    @Override
+    public DispatcherType getDispatcherType() {
+        return this.dispatcherType;
+    }
+
+    void setDispatcherType(DispatcherType dispatcherType) {
+        this.dispatcherType = dispatcherType;
+    }
+
+    @Override
+    public boolean authenticate(HttpServletResponse response)
+            throws IOException, ServletException {
+        throw new IllegalStateException(
+                "Method 'authenticate' not yet implemented!");
+    }
+
+    @Override
+    public void login(String username, String password)
+            throws ServletException {
+        throw new IllegalStateException(
+                "Method 'login' not yet implemented!");
+    }
+
+    @Override
+    public void logout() throws ServletException {
+        throw new IllegalStateException(
+                "Method 'logout' not yet implemented!");
+    }
+
+    @Override
+    public Collection<Part> getParts() throws IOException, ServletException {
+        if (!(this.body instanceof MultipartRequestBody))
+            throw new ServletException(
+                    "Not a multipart/form-data request or no multipart config for the servlet");
+        return Collections.<Part>unmodifiableList(((MultipartRequestBody) this.body)
+                .getParts());
+    }
+
+    @Override
+    public Part getPart(String name) throws IOException, ServletException {
+        for (Part part : getParts()) {
+            if (part.getName().equals(name))
+                return part;
+        }
+        return null;
+    }
+
 }
@@ -18,7 +18,9 @@ package net.javaforge.netty.servlet.bridge.impl;
 
 import io.netty.handler.codec.http.*;
 import io.netty.handler.codec.http.HttpHeaders.Names;
+import io.netty.util.Recycler;
 import net.javaforge.netty.servlet.bridge.ServletBridgeRuntimeException;
+import net.javaforge.netty.servlet.bridge.util.HeaderNames;
 
 import javax.servlet.ServletOutputStream;
 import javax.servlet.http.Cookie;
@@ -27,22 +29,82 @@ import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
 import java.net.URLEncoder;
+import java.util.Collection;
 import java.util.Locale;
 
 import static io.netty.handler.codec.http.HttpHeaders.Names.LOCATION;
 import static io.netty.handler.codec.http.HttpHeaders.Names.SET_COOKIE;
 
 public class HttpServletResponseImpl implements HttpServletResponse {
-    private HttpResponse originalResponse;
+    private static final Recycler<HttpServletResponseImpl> RECYCLER = new Recycler<HttpServletResponseImpl>() {
+        @Override
+        protected HttpServletResponseImpl newObject(
+                Handle<HttpServletResponseImpl> handle) {
+            return new HttpServletResponseImpl(handle);
+        }
+    };
+
+    private final Recycler.Handle<HttpServletResponseImpl> handle;
+    private FullHttpResponse originalResponse;
     private ServletOutputStreamImpl outputStream;
     private PrintWriterImpl writer;
     private boolean responseCommited = false;
     private Locale locale = null;
 
     public HttpServletResponseImpl(FullHttpResponse response) {
+        this.handle = null;
         this.originalResponse = response;
-        this.outputStream = new ServletOutputStreamImpl(response);
-        this.writer = new PrintWriterImpl(this.outputStream);
+    }
+
+    private HttpServletResponseImpl(Recycler.Handle<HttpServletResponseImpl> handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Returns a response from the pool of the current thread, to be returned
+     * with {@link #recycle()}. Its output stream and writer are reused as
+     * well.
+     *
+     * @see Recycling
+     */
+    public static HttpServletResponseImpl newInstance(FullHttpResponse response) {
+        if (!Recycling.ENABLED)
+            return new HttpServletResponseImpl(response);
+
+        HttpServletResponseImpl resp = RECYCLER.get();
+        resp.originalResponse = response;
+        if (resp.outputStream != null)
+            resp.outputStream.init(response);
+        return resp;
+    }
+
+    /**
+     * Clears this response once it is written and returns it to its pool.
+     * The writer is only kept if it does not hold characters which never
+     * made it into the written response.
+     */
+    public void recycle() {
+        if (this.originalResponse == null)
+            return;
+
+        this.originalResponse = null;
+        this.responseCommited = false;
+        this.locale = null;
+        if (this.outputStream != null)
+            this.outputStream.init(null);
+        if (this.writer != null) {
+            if (this.writer.isReusable() && !Recycling.CHECK)
+                this.writer.reset();
+            else
+                this.writer = null;
+        }
+        Recycling.recycle(this.handle, this);
+    }
+
+    private FullHttpResponse response() {
+        if (this.originalResponse == null)
+            throw Recycling.recycled(this);
+        return this.originalResponse;
     }
 
     public HttpResponse getOriginalResponse() {
@@ -52,32 +114,32 @@ public class HttpServletResponseImpl implements HttpServletResponse {
     @Override
     public void addCookie(Cookie cookie) {
         String result = ServerCookieEncoder.encode(new io.netty.handler.codec.http.DefaultCookie(cookie.getName(), cookie.getValue()));
-        HttpHeaders.addHeader(this.originalResponse, SET_COOKIE, result);
+        HttpHeaders.addHeader(this.response(), SET_COOKIE, result);
     }
 
     @Override
     public void addDateHeader(String name, long date) {
-        HttpHeaders.addHeader(this.originalResponse, name, date);
+        HttpHeaders.addHeader(this.response(), name, date);
     }
 
     @Override
     public void addHeader(String name, String value) {
-        HttpHeaders.addHeader(this.originalResponse, name, value);
+        HttpHeaders.addHeader(this.response(), name, value);
     }
 
     @Override
     public void addIntHeader(String name, int value) {
-        HttpHeaders.addIntHeader(this.originalResponse, name, value);
+        HttpHeaders.addIntHeader(this.response(), name, value);
     }
 
     @Override
     public boolean containsHeader(String name) {
-        return this.originalResponse.headers().contains(name);
+        return this.response().headers().contains(name);
     }
 
     @Override
     public void sendError(int sc) throws IOException {
-        this.originalResponse.setStatus(HttpResponseStatus.valueOf(sc));
+        this.response().setStatus(HttpResponseStatus.valueOf(sc));
     }
 
     @Override
@@ -93,7 +155,7 @@ public class HttpServletResponseImpl implements HttpServletResponse {
             msg = msg.replace('\r', ' ');
             msg = msg.replace('\n', ' ');
         }
-        this.originalResponse.setStatus(new HttpResponseStatus(sc, msg));
+        this.response().setStatus(new HttpResponseStatus(sc, msg));
     }
 
     @Override
@@ -104,55 +166,95 @@ public class HttpServletResponseImpl implements HttpServletResponse {
 
     @Override
     public void setDateHeader(String name, long date) {
-        HttpHeaders.setHeader(this.originalResponse, name, date);
+        HttpHeaders.setHeader(this.response(), name, date);
     }
 
     @Override
     public void setHeader(String name, String value) {
-        HttpHeaders.setHeader(this.originalResponse, name, value);
+        HttpHeaders.setHeader(this.response(), name, value);
     }
 
     @Override
     public void setIntHeader(String name, int value) {
-        HttpHeaders.setIntHeader(this.originalResponse, name, value);
+        HttpHeaders.setIntHeader(this.response(), name, value);
 
     }
 
     @Override
     public ServletOutputStream getOutputStream() throws IOException {
-        return this.outputStream;
+        return this.getOutputStreamImpl();
     }
 
     @Override
     public PrintWriter getWriter() throws IOException {
+        ServletOutputStreamImpl out = this.getOutputStreamImpl();
+        if (this.writer == null)
+            this.writer = new PrintWriterImpl(out);
         return this.writer;
     }
 
+    private ServletOutputStreamImpl getOutputStreamImpl() {
+        FullHttpResponse response = this.response();
+        if (this.outputStream == null)
+            this.outputStream = new ServletOutputStreamImpl(response);
+        return this.outputStream;
+    }
+
+    /**
+     * Flushes the writer into the response content, if the servlet ever
+     * asked for one. Responses written through the output stream only (or
+     * not at all) never allocate the writer's encoder buffers.
+     */
+    public void flushWriter() {
+        if (this.writer != null)
+            this.writer.flush();
+    }
+
     @Override
     public void setStatus(int sc) {
-        this.originalResponse.setStatus(HttpResponseStatus.valueOf(sc));
+        this.response().setStatus(HttpResponseStatus.valueOf(sc));
     }
 
     @Override
     public void setStatus(int sc, String sm) {
-        this.originalResponse.setStatus(new HttpResponseStatus(sc, sm));
+        this.response().setStatus(new HttpResponseStatus(sc, sm));
+    }
+
+    @Override
+    public int getStatus() {
+        return this.response().status().code();
+    }
+
+    @Override
+    public String getHeader(String name) {
+        return HttpHeaders.getHeader(this.response(), name);
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name) {
+        return this.response().headers().getAll(name);
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        return this.response().headers().names();
     }
 
     @Override
     public String getContentType() {
-        return HttpHeaders.getHeader(this.originalResponse,
-                HttpHeaders.Names.CONTENT_TYPE);
+        return HttpHeaders.getHeader(this.response(),
+                HeaderNames.CONTENT_TYPE);
     }
 
     @Override
     public void setContentType(String type) {
-        HttpHeaders.setHeader(this.originalResponse,
-                HttpHeaders.Names.CONTENT_TYPE, type);
+        HttpHeaders.setHeader(this.response(),
+                HeaderNames.CONTENT_TYPE, type);
     }
 
     @Override
     public void setContentLength(int len) {
-        HttpHeaders.setContentLength(this.originalResponse, len);
+        HttpHeaders.setContentLength(this.response(), len);
     }
 
     @Override
@@ -165,7 +267,7 @@ public class HttpServletResponseImpl implements HttpServletResponse {
         if (isCommitted())
             throw new IllegalStateException("Response already commited!");
 
-        this.originalResponse.headers().clear();
+        this.response().headers().clear();
         this.resetBuffer();
     }
 
@@ -174,18 +276,18 @@ public class HttpServletResponseImpl implements HttpServletResponse {
         if (isCommitted())
             throw new IllegalStateException("Response already commited!");
 
-        this.outputStream.resetBuffer();
+        this.response().content().clear();
     }
 
     @Override
     public void flushBuffer() throws IOException {
-        this.getWriter().flush();
+        this.flushWriter();
         this.responseCommited = true;
     }
 
     @Override
     public int getBufferSize() {
-        return this.outputStream.getBufferSize();
+        return this.response().content().capacity();
     }
 
     @Override
@@ -219,13 +321,13 @@ public class HttpServletResponseImpl implements HttpServletResponse {
 
     @Override
     public String getCharacterEncoding() {
-        return HttpHeaders.getHeader(this.originalResponse,
+        return HttpHeaders.getHeader(this.response(),
                 Names.CONTENT_ENCODING);
     }
 
     @Override
     public void setCharacterEncoding(String charset) {
-        HttpHeaders.setHeader(this.originalResponse,
+        HttpHeaders.setHeader(this.response(),
                 Names.CONTENT_ENCODING, charset);
     }
 
@@ -42,6 +42,8 @@ public class HttpSessionImpl implements HttpSession {
 
     private Map<String, Object> attributes;
 
+    private ServletContext servletContext;
+
     public HttpSessionImpl(String id) {
         this.id = id;
         this.creationTime = System.currentTimeMillis();
@@ -75,7 +77,11 @@ public class HttpSessionImpl implements HttpSession {
 
     @Override
     public ServletContext getServletContext() {
-        return ServletContextImpl.get();
+        return this.servletContext;
+    }
+
+    void setServletContext(ServletContext servletContext) {
+        this.servletContext = servletContext;
     }
 
     @Override
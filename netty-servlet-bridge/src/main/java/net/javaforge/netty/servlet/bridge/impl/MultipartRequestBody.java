@@ -0,0 +1,200 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.buffer.Unpooled;
+import io.netty.handler.codec.http.HttpContent;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.LastHttpContent;
+import io.netty.handler.codec.http.multipart.DefaultHttpDataFactory;
+import io.netty.handler.codec.http.multipart.HttpData;
+import io.netty.handler.codec.http.multipart.HttpPostRequestDecoder;
+import io.netty.handler.codec.http.multipart.InterfaceHttpData;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import javax.servlet.MultipartConfigElement;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * A <code>multipart/form-data</code> request body, decoded into parts as
+ * its chunks arrive. Parts up to the file size threshold of the multipart
+ * config (16 KB if there is none) are kept in memory, larger ones are
+ * written to temporary files, so the memory needed does not depend on the
+ * size of the uploaded files.
+ */
+public class MultipartRequestBody implements RequestBody {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(MultipartRequestBody.class);
+
+    private final MultipartConfigElement config;
+
+    /**
+     * Maximum size of the body in bytes, zero or less for no limit.
+     */
+    private final long maxSize;
+
+    private HttpPostRequestDecoder decoder;
+
+    private final List<PartImpl> parts = new ArrayList<PartImpl>();
+
+    private long size;
+
+    private boolean received;
+
+    private boolean tooLarge;
+
+    private Exception failure;
+
+    private Runnable onReceived;
+
+    public MultipartRequestBody(HttpRequest request,
+                                MultipartConfigElement config, long maxSize) {
+        this.config = config;
+        if (config.getMaxRequestSize() > 0
+                && (maxSize <= 0 || config.getMaxRequestSize() < maxSize))
+            maxSize = config.getMaxRequestSize();
+        this.maxSize = maxSize;
+
+        DefaultHttpDataFactory factory = new DefaultHttpDataFactory(
+                config.getFileSizeThreshold() > 0 ? config
+                        .getFileSizeThreshold() : DefaultHttpDataFactory.MINSIZE);
+        if (config.getMaxFileSize() > 0)
+            factory.setMaxLimit(config.getMaxFileSize());
+        this.decoder = new HttpPostRequestDecoder(factory, request);
+    }
+
+    /**
+     * Returns <code>true</code> if the given request is to be decoded into
+     * parts.
+     */
+    public static boolean isMultipart(HttpRequest request) {
+        return HttpPostRequestDecoder.isMultipart(request);
+    }
+
+    @Override
+    public void offer(HttpContent content) {
+        Runnable task = null;
+        synchronized (this) {
+            try {
+                size += content.content().readableBytes();
+                if (maxSize > 0 && size > maxSize && !tooLarge) {
+                    tooLarge = true;
+                    destroy();
+                }
+
+                if (decoder != null && failure == null) {
+                    decoder.offer(content);
+                    while (decoder.hasNext()) {
+                        InterfaceHttpData data = decoder.next();
+                        if (data instanceof HttpData)
+                            parts.add(new PartImpl((HttpData) data,
+                                    config.getLocation()));
+                    }
+                }
+            } catch (HttpPostRequestDecoder.EndOfDataDecoderException e) {
+                // all parts decoded
+            } catch (RuntimeException e) {
+                log.debug("Failed to decode multipart request", e);
+                failure = e;
+                destroy();
+            } finally {
+                content.release();
+            }
+
+            if (!received && (tooLarge || content instanceof LastHttpContent)) {
+                received = true;
+                task = onReceived;
+                onReceived = null;
+            }
+        }
+
+        if (task != null)
+            task.run();
+    }
+
+    @Override
+    public void whenReceived(Runnable task) {
+        synchronized (this) {
+            if (!received) {
+                onReceived = task;
+                return;
+            }
+        }
+        task.run();
+    }
+
+    @Override
+    public synchronized boolean isTooLarge() {
+        return tooLarge;
+    }
+
+    /**
+     * Returns the decoded parts.
+     *
+     * @throws IOException if the body could not be decoded
+     */
+    public synchronized List<PartImpl> getParts() throws IOException {
+        if (failure != null)
+            throw new IOException("Failed to decode multipart request", failure);
+        return Collections.unmodifiableList(parts);
+    }
+
+    @Override
+    public void fail(IOException cause) {
+        synchronized (this) {
+            if (failure == null)
+                failure = cause;
+        }
+        discard();
+    }
+
+    @Override
+    public synchronized void discard() {
+        onReceived = null;
+        destroy();
+    }
+
+    /**
+     * The body has been decoded into parts, it cannot be read as a whole.
+     */
+    @Override
+    public InputStream getInputStream() {
+        return new ByteBufInputStream(Unpooled.EMPTY_BUFFER);
+    }
+
+    @Override
+    public ByteBuf getContent() {
+        return Unpooled.EMPTY_BUFFER;
+    }
+
+    private void destroy() {
+        if (decoder != null) {
+            decoder.destroy();
+            decoder = null;
+        }
+    }
+
+}
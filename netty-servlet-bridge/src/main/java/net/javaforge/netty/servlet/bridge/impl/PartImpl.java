@@ -0,0 +1,152 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.impl;
+
+import io.netty.buffer.ByteBufInputStream;
+import io.netty.handler.codec.http.multipart.FileUpload;
+import io.netty.handler.codec.http.multipart.HttpData;
+
+import javax.servlet.http.Part;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+
+/**
+ * {@link Part} backed by a decoded attribute or file upload of a
+ * {@link MultipartRequestBody}.
+ */
+public class PartImpl implements Part {
+
+    private static final String CONTENT_DISPOSITION = "content-disposition";
+
+    private static final String CONTENT_TYPE = "content-type";
+
+    private final HttpData data;
+
+    /**
+     * Directory relative file names passed to {@link #write(String)} are
+     * resolved against, may be empty.
+     */
+    private final String location;
+
+    public PartImpl(HttpData data, String location) {
+        this.data = data;
+        this.location = location;
+    }
+
+    /**
+     * Returns <code>true</code> if this part is a file upload rather than a
+     * form field.
+     */
+    public boolean isFile() {
+        return data instanceof FileUpload;
+    }
+
+    /**
+     * Returns the file name of an uploaded file, <code>null</code> for form
+     * fields.
+     */
+    public String getFilename() {
+        return isFile() ? ((FileUpload) data).getFilename() : null;
+    }
+
+    /**
+     * Returns the value of a form field.
+     */
+    public String getString() throws IOException {
+        return data.getString(data.getCharset());
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if (data.isInMemory())
+            return new ByteBufInputStream(data.getByteBuf().duplicate());
+        return new FileInputStream(data.getFile());
+    }
+
+    @Override
+    public String getContentType() {
+        return isFile() ? ((FileUpload) data).getContentType() : null;
+    }
+
+    @Override
+    public String getName() {
+        return data.getName();
+    }
+
+    @Override
+    public long getSize() {
+        return data.length();
+    }
+
+    @Override
+    public void write(String fileName) throws IOException {
+        File file = new File(fileName);
+        if (!file.isAbsolute() && location != null && location.length() > 0)
+            file = new File(location, fileName);
+
+        if (!data.renameTo(file))
+            throw new IOException("Failed to write part " + getName()
+                    + " to " + file);
+    }
+
+    @Override
+    public void delete() throws IOException {
+        data.delete();
+    }
+
+    @Override
+    public String getHeader(String name) {
+        String lowerCase = name.toLowerCase();
+        if (CONTENT_DISPOSITION.equals(lowerCase)) {
+            String disposition = "form-data; name=\"" + getName() + "\"";
+            return isFile() ? disposition + "; filename=\"" + getFilename()
+                    + "\"" : disposition;
+        }
+        if (CONTENT_TYPE.equals(lowerCase))
+            return getContentType();
+        return null;
+    }
+
+    @Override
+    public Collection<String> getHeaders(String name) {
+        String value = getHeader(name);
+        return value != null ? Collections.singletonList(value) : Collections
+                .<String>emptyList();
+    }
+
+    @Override
+    public Collection<String> getHeaderNames() {
+        Collection<String> names = new ArrayList<String>(2);
+        names.add(CONTENT_DISPOSITION);
+        if (getContentType() != null)
+            names.add(CONTENT_TYPE);
+        return names;
+    }
+
+    @Override
+    public String toString() {
+        return "Part " + getName() + (isFile() ? " (" + getFilename() + ", "
+                + getSize() + " bytes)" : "");
+    }
+
+}
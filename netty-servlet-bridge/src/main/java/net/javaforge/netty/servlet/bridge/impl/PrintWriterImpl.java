@@ -14,6 +14,7 @@
  *    limitations under the License.
  */
 
+
 package net.javaforge.netty.servlet.bridge.impl;
 
 import java.io.OutputStream;
@@ -23,17 +24,70 @@ public class PrintWriterImpl extends PrintWriter {
 
     private boolean flushed = false;
 
+    /**
+     * Set while characters may be buffered in the writer, not yet written
+     * to the output stream.
+     */
+    private boolean pending = false;
+
+    private boolean closed = false;
+
     public PrintWriterImpl(OutputStream out) {
         super(out);
     }
 
+    @Override
+    public void write(int c) {
+        this.pending = true;
+        super.write(c);
+    }
+
+    @Override
+    public void write(char[] buf, int off, int len) {
+        this.pending = true;
+        super.write(buf, off, len);
+    }
+
+    @Override
+    public void write(String s, int off, int len) {
+        this.pending = true;
+        super.write(s, off, len);
+    }
+
+    @Override
+    public void println() {
+        this.pending = true;
+        super.println();
+    }
+
     @Override
     public void flush() {
         super.flush();
         this.flushed = true;
+        this.pending = false;
+    }
+
+    @Override
+    public void close() {
+        super.close();
+        this.closed = true;
     }
 
     public boolean isFlushed() {
         return flushed;
     }
+
+    /**
+     * Returns <code>true</code> if this writer can be handed to the next
+     * response using the same output stream, i.e. it neither holds
+     * characters of the previous one nor was closed.
+     */
+    boolean isReusable() {
+        return !this.pending && !this.closed;
+    }
+
+    void reset() {
+        this.flushed = false;
+        this.clearError();
+    }
 }
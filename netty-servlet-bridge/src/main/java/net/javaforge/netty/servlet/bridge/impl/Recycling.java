@@ -0,0 +1,66 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.impl;
+
+import io.netty.util.Recycler;
+import io.netty.util.internal.SystemPropertyUtil;
+
+/**
+ * Settings of the per thread pools of the objects created for every
+ * request: {@link HttpServletRequestImpl}, {@link HttpServletResponseImpl}
+ * with its output stream and writer, {@link FilterChainImpl} and
+ * {@link URIParser}. They are taken from the pool of the thread creating
+ * them and returned once the request is completely processed.
+ * <p/>
+ * Pooling is off by default and switched on with
+ * <code>-Dnet.javaforge.netty.servlet.bridge.recycle=true</code>. Servlets,
+ * filters and listeners must then not use a request, response, their
+ * streams or the filter chain after the request has been answered, e.g.
+ * from a thread they started, as the objects are already serving another
+ * request by then. Async requests are answered when their
+ * {@link javax.servlet.AsyncContext} completes. With
+ * <code>-Dnet.javaforge.netty.servlet.bridge.recycle.check=true</code>
+ * pooled objects are not reused but poisoned instead, every later use
+ * throws an {@link IllegalStateException}. This finds servlets keeping a
+ * request or response beyond its processing before pooling is enabled.
+ */
+public final class Recycling {
+
+    public static final boolean ENABLED = SystemPropertyUtil.getBoolean(
+            "net.javaforge.netty.servlet.bridge.recycle", false);
+
+    public static final boolean CHECK = SystemPropertyUtil.getBoolean(
+            "net.javaforge.netty.servlet.bridge.recycle.check", false);
+
+    private Recycling() {
+    }
+
+    /**
+     * Returns the given object to its pool, unless it was not taken from
+     * one or use after recycle is checked.
+     */
+    static <T> void recycle(Recycler.Handle<T> handle, T object) {
+        if (handle != null && !CHECK)
+            handle.recycle(object);
+    }
+
+    static IllegalStateException recycled(Object object) {
+        return new IllegalStateException(object.getClass().getSimpleName()
+                + " used after it was recycled, it must not be kept beyond the processing of its request!");
+    }
+}
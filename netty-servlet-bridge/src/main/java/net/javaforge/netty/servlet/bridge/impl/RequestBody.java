@@ -0,0 +1,70 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.impl;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.handler.codec.http.HttpContent;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Body of a request received in separate {@link HttpContent} chunks.
+ * Chunks are offered on the event loop, the body is read on the servlet's
+ * thread.
+ */
+public interface RequestBody {
+
+    /**
+     * Adds the next chunk of the body, taking over its reference. To be
+     * called on the event loop.
+     */
+    void offer(HttpContent content);
+
+    /**
+     * Runs the given task on the event loop once the whole body is received
+     * or it turned out to be too large. To be called on the event loop.
+     */
+    void whenReceived(Runnable task);
+
+    /**
+     * Returns <code>true</code> if the body exceeds the size limit, its
+     * content is dropped then.
+     */
+    boolean isTooLarge();
+
+    /**
+     * Fails pending and future reads, e.g. because the connection is lost.
+     */
+    void fail(IOException cause);
+
+    /**
+     * Releases the unread part of the body and drops the rest of it as it
+     * arrives.
+     */
+    void discard();
+
+    InputStream getInputStream();
+
+    /**
+     * Returns the unread part of the body if it is kept in a buffer,
+     * <code>null</code> if it is only available as a stream.
+     */
+    ByteBuf getContent();
+
+}
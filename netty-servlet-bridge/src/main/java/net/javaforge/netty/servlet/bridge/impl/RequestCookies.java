@@ -0,0 +1,225 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.impl;
+
+import io.netty.handler.codec.http.HttpRequest;
+import net.javaforge.netty.servlet.bridge.RequestContext;
+import net.javaforge.netty.servlet.bridge.util.HeaderNames;
+
+import javax.servlet.http.Cookie;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The cookies of a request, parsed once and shared by the session layer and
+ * the servlet. Parsing only records where the names and values are in the
+ * Cookie header; strings and {@link Cookie} objects are created for the
+ * cookies someone asks for. Several Cookie headers are joined into one.
+ */
+public final class RequestCookies {
+
+    private static final int[] NO_OFFSETS = new int[0];
+
+    private final String header;
+
+    /**
+     * Start and end of name and value of every cookie, <code>null</code>
+     * until the header is scanned.
+     */
+    private int[] offsets;
+
+    private int size;
+
+    private Cookie[] servletCookies;
+
+    public RequestCookies(String header) {
+        this.header = header;
+    }
+
+    /**
+     * Returns the cookies of the given request, the ones cached in the
+     * current {@link RequestContext} if it belongs to this request.
+     */
+    public static RequestCookies of(HttpRequest request) {
+        RequestContext context = RequestContext.current();
+        if (context != null && context.getRequest() == request)
+            return context.getCookies();
+
+        return parse(request);
+    }
+
+    public static RequestCookies parse(HttpRequest request) {
+        List<String> headers = request.headers().getAll(HeaderNames.COOKIE);
+        if (headers.size() <= 1)
+            return new RequestCookies(headers.isEmpty() ? null : headers.get(0));
+
+        // HTTP/2 gateways and some clients send a header per cookie
+        StringBuilder joined = new StringBuilder();
+        for (String header : headers) {
+            if (joined.length() > 0)
+                joined.append("; ");
+            joined.append(header);
+        }
+        return new RequestCookies(joined.toString());
+    }
+
+    public int size() {
+        scan();
+        return size;
+    }
+
+    public boolean isNamed(int index, String name) {
+        scan();
+        int start = offsets[index * 4];
+        int length = offsets[index * 4 + 1] - start;
+        return length == name.length()
+                && header.regionMatches(start, name, 0, length);
+    }
+
+    public String getName(int index) {
+        scan();
+        return header.substring(offsets[index * 4], offsets[index * 4 + 1]);
+    }
+
+    public String getValue(int index) {
+        scan();
+        return header.substring(offsets[index * 4 + 2], offsets[index * 4 + 3]);
+    }
+
+    /**
+     * Returns the value of the first cookie with the given name,
+     * <code>null</code> if there is none.
+     */
+    public String getValue(String name) {
+        for (int i = 0; i < size(); i++) {
+            if (isNamed(i, name))
+                return getValue(i);
+        }
+        return null;
+    }
+
+    /**
+     * Returns <code>true</code> if there is a cookie with the given name and
+     * value.
+     */
+    public boolean contains(String name, String value) {
+        for (int i = 0; i < size(); i++) {
+            if (isNamed(i, name)) {
+                int start = offsets[i * 4 + 2];
+                int length = offsets[i * 4 + 3] - start;
+                if (length == value.length()
+                        && header.regionMatches(start, value, 0, length))
+                    return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the cookies as servlet cookies, <code>null</code> if there
+     * are none. Cookies with names the servlet API rejects are left out.
+     */
+    public Cookie[] toServletCookies() {
+        if (servletCookies == null && size() > 0) {
+            Cookie[] cookies = new Cookie[size];
+            int count = 0;
+            for (int i = 0; i < size; i++) {
+                try {
+                    cookies[count] = new Cookie(getName(i), getValue(i));
+                    count++;
+                } catch (IllegalArgumentException e) {
+                    // reserved or invalid name
+                }
+            }
+            servletCookies = count == size ? cookies : Arrays.copyOf(
+                    cookies, count);
+        }
+        return servletCookies != null && servletCookies.length > 0 ? servletCookies
+                : null;
+    }
+
+    /**
+     * Records the offsets of the <code>name=value</code> pairs separated by
+     * ';'. Attributes of RFC 2965 cookies such as <code>$Path</code> are
+     * skipped, quotes around values are dropped.
+     */
+    private void scan() {
+        if (offsets != null)
+            return;
+        if (header == null) {
+            offsets = NO_OFFSETS;
+            return;
+        }
+
+        int[] result = new int[32];
+        int count = 0;
+        int len = header.length();
+        int i = 0;
+        while (i < len) {
+            while (i < len && isSpace(header.charAt(i)))
+                i++;
+            int nameStart = i;
+            while (i < len && header.charAt(i) != '='
+                    && header.charAt(i) != ';')
+                i++;
+            int nameEnd = trimEnd(nameStart, i);
+
+            int valueStart = i;
+            int valueEnd = i;
+            if (i < len && header.charAt(i) == '=') {
+                i++;
+                while (i < len && isSpace(header.charAt(i)))
+                    i++;
+                valueStart = i;
+                while (i < len && header.charAt(i) != ';')
+                    i++;
+                valueEnd = trimEnd(valueStart, i);
+                if (valueEnd - valueStart >= 2
+                        && header.charAt(valueStart) == '"'
+                        && header.charAt(valueEnd - 1) == '"') {
+                    valueStart++;
+                    valueEnd--;
+                }
+            }
+            i++;
+
+            if (nameEnd == nameStart || header.charAt(nameStart) == '$')
+                continue;
+
+            if (count * 4 == result.length)
+                result = Arrays.copyOf(result, result.length * 2);
+            result[count * 4] = nameStart;
+            result[count * 4 + 1] = nameEnd;
+            result[count * 4 + 2] = valueStart;
+            result[count * 4 + 3] = valueEnd;
+            count++;
+        }
+        offsets = result;
+        size = count;
+    }
+
+    private int trimEnd(int start, int end) {
+        while (end > start && isSpace(header.charAt(end - 1)))
+            end--;
+        return end;
+    }
+
+    private static boolean isSpace(char c) {
+        return c == ' ' || c == '\t';
+    }
+}
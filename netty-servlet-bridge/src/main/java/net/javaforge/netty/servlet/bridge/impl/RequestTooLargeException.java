@@ -0,0 +1,44 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.impl;
+
+/**
+ * Thrown when a servlet reads more of a request body than its limit allows,
+ * e.g. a form too large to be decoded into parameters. The bridge answers
+ * the request with 413 (Request Entity Too Large) if the servlet lets it
+ * propagate.
+ */
+public class RequestTooLargeException extends IllegalStateException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long maxSize;
+
+    public RequestTooLargeException(String message, long maxSize) {
+        super(message);
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the limit in bytes the request exceeded.
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+}
@@ -18,21 +18,62 @@ package net.javaforge.netty.servlet.bridge.impl;
 
 import io.netty.channel.group.ChannelGroup;
 import net.javaforge.netty.servlet.bridge.config.FilterConfiguration;
+import net.javaforge.netty.servlet.bridge.config.HttpComponentConfigurationAdapter;
 import net.javaforge.netty.servlet.bridge.config.ServletConfiguration;
 import net.javaforge.netty.servlet.bridge.config.ServletContextListenerConfiguration;
 import net.javaforge.netty.servlet.bridge.config.WebappConfiguration;
+import net.javaforge.netty.servlet.bridge.session.DefaultServletBridgeHttpSessionStore;
+import net.javaforge.netty.servlet.bridge.session.ServletBridgeHttpSessionStore;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 
 import java.io.File;
-import java.util.Map;
+import java.util.*;
 
+/**
+ * A web application mounted under its own context path, with its own
+ * servlet context, session store and routing table. Several webapps can be
+ * served by one server and share its event loops.
+ */
 public class ServletBridgeWebapp {
 
+    private static final Logger log = LoggerFactory
+            .getLogger(ServletBridgeWebapp.class);
+
     private static ServletBridgeWebapp instance;
 
     private WebappConfiguration webappConfig;
 
     private ChannelGroup sharedChannelGroup;
 
+    private ServletContextImpl servletContext;
+
+    private ServletBridgeHttpSessionStore sessionStore;
+
+    /**
+     * Current routing snapshot, replaced as a whole on reconfiguration and
+     * read without locking by the request threads.
+     */
+    private volatile ServletRouteIndex servletRoutes;
+
+    /**
+     * Number of routing snapshots each servlet and filter is part of, the
+     * current one and those still in use by requests. A component is
+     * destroyed once no such snapshot is left. Guarded by this webapp.
+     */
+    private final Map<HttpComponentConfigurationAdapter<?, ?>, Integer> componentReferences = new HashMap<HttpComponentConfigurationAdapter<?, ?>, Integer>();
+
+    private String contextPath = "";
+
+    /**
+     * Returns the root webapp, or the first one initialized if none is
+     * mounted at the server root.
+     *
+     * @deprecated several webapps may be served at once, keep a reference
+     * to the webapp instead.
+     */
+    @Deprecated
     public static ServletBridgeWebapp get() {
 
         if (instance == null)
@@ -41,21 +82,45 @@ public class ServletBridgeWebapp {
         return instance;
     }
 
-    private ServletBridgeWebapp() {
+    public ServletBridgeWebapp() {
     }
 
     public void init(WebappConfiguration webapp, ChannelGroup sharedChannelGroup) {
+        this.init(webapp, sharedChannelGroup,
+                new DefaultServletBridgeHttpSessionStore());
+    }
+
+    public void init(WebappConfiguration webapp,
+                     ChannelGroup sharedChannelGroup,
+                     ServletBridgeHttpSessionStore sessionStore) {
         this.webappConfig = webapp;
         this.sharedChannelGroup = sharedChannelGroup;
+        this.sessionStore = sessionStore;
+        this.contextPath = webapp.getContextPath();
+
+        if (instance == null || instance.webappConfig == null
+                || (contextPath.length() == 0 && instance.contextPath.length() > 0))
+            instance = this;
+
         this.initServletContext();
         this.initContextListeners();
         this.initFilters();
         this.initServlets();
+        ServletRouteIndex routes = ServletRouteIndex.build(
+                webapp.getServletConfigurations(),
+                webapp.getFilterConfigurations());
+        synchronized (this) {
+            this.reference(routes);
+        }
+        this.servletRoutes = routes;
     }
 
     public void destroy() {
-        this.destroyServlets();
-        this.destroyFilters();
+        synchronized (this) {
+            this.destroyServlets();
+            this.destroyFilters();
+            this.componentReferences.clear();
+        }
         this.destroyContextListeners();
     }
 
@@ -63,7 +128,7 @@ public class ServletBridgeWebapp {
         if (webappConfig.getServletContextListenerConfigurations() != null) {
             for (ServletContextListenerConfiguration ctx : webappConfig
                     .getServletContextListenerConfigurations()) {
-                ctx.init();
+                ctx.init(this.servletContext);
             }
         }
     }
@@ -72,31 +137,34 @@ public class ServletBridgeWebapp {
         if (webappConfig.getServletContextListenerConfigurations() != null) {
             for (ServletContextListenerConfiguration ctx : webappConfig
                     .getServletContextListenerConfigurations()) {
-                ctx.destroy();
+                ctx.destroy(this.servletContext);
             }
         }
     }
 
+    /**
+     * Destroys the servlets of all routing snapshots, including the ones of
+     * snapshots not drained yet.
+     */
     private void destroyServlets() {
-        if (webappConfig.getServletConfigurations() != null) {
-            for (ServletConfiguration servlet : webappConfig
-                    .getServletConfigurations()) {
-                servlet.destroy();
-            }
+        for (HttpComponentConfigurationAdapter<?, ?> component : this.componentReferences
+                .keySet()) {
+            if (component instanceof ServletConfiguration)
+                component.destroy();
         }
     }
 
     private void destroyFilters() {
-        if (webappConfig.getFilterConfigurations() != null) {
-            for (FilterConfiguration filter : webappConfig
-                    .getFilterConfigurations()) {
-                filter.destroy();
-            }
+        for (HttpComponentConfigurationAdapter<?, ?> component : this.componentReferences
+                .keySet()) {
+            if (component instanceof FilterConfiguration)
+                component.destroy();
         }
     }
 
     protected void initServletContext() {
-        ServletContextImpl ctx = ServletContextImpl.get();
+        ServletContextImpl ctx = new ServletContextImpl(this);
+        this.servletContext = ctx;
         ctx.setServletContextName(this.webappConfig.getName());
         if (webappConfig.getContextParameters() != null) {
             for (Map.Entry<String, String> entry : webappConfig
@@ -110,6 +178,7 @@ public class ServletBridgeWebapp {
         if (webappConfig.getFilterConfigurations() != null) {
             for (FilterConfiguration filter : webappConfig
                     .getFilterConfigurations()) {
+                filter.getConfig().setServletContext(this.servletContext);
                 filter.init();
             }
         }
@@ -119,39 +188,216 @@ public class ServletBridgeWebapp {
         if (webappConfig.hasServletConfigurations()) {
             for (ServletConfiguration servlet : webappConfig
                     .getServletConfigurations()) {
+                servlet.getConfig().setServletContext(this.servletContext);
                 servlet.init();
             }
         }
     }
 
     public FilterChainImpl initializeChain(String uri) {
-        ServletConfiguration servletConfiguration = this.findServlet(uri);
-        FilterChainImpl chain = new FilterChainImpl(servletConfiguration);
+        return new FilterChainImpl(this, this.findServlet(uri));
+    }
 
-        if (this.webappConfig.hasFilterConfigurations()) {
-            for (FilterConfiguration s : this.webappConfig
-                    .getFilterConfigurations()) {
-                if (s.matchesUrlPattern(uri))
-                    chain.addFilterConfiguration(s);
+    /**
+     * Routes the request and pins the current routing snapshot until
+     * {@link FilterChainImpl#release()} is called. The parser is recycled
+     * along with the returned chain.
+     */
+    public FilterChainImpl initializeChain(URIParser uriParser) {
+        ServletRouteIndex routes = this.acquireRoutes();
+        return FilterChainImpl.newInstance(this, uriParser.route(routes,
+                this.contextPath.length()), routes, uriParser);
+    }
+
+    private ServletRouteIndex acquireRoutes() {
+        while (true) {
+            // a snapshot can only fail to be acquired after a newer one has
+            // been published, so this does not spin
+            ServletRouteIndex routes = this.servletRoutes;
+            if (routes.acquire())
+                return routes;
+        }
+    }
+
+    public synchronized void addServlet(ServletConfiguration servlet) {
+        List<ServletConfiguration> servlets = new ArrayList<ServletConfiguration>(
+                this.servletRoutes.getServletConfigurations());
+        servlets.add(servlet);
+        this.reconfigure(servlets, this.servletRoutes.getFilterConfigurations());
+    }
+
+    public synchronized void removeServlet(ServletConfiguration servlet) {
+        List<ServletConfiguration> servlets = new ArrayList<ServletConfiguration>(
+                this.servletRoutes.getServletConfigurations());
+        servlets.remove(servlet);
+        this.reconfigure(servlets, this.servletRoutes.getFilterConfigurations());
+    }
+
+    public synchronized void replaceServlet(ServletConfiguration oldServlet,
+                                            ServletConfiguration newServlet) {
+        List<ServletConfiguration> servlets = new ArrayList<ServletConfiguration>(
+                this.servletRoutes.getServletConfigurations());
+        int indx = servlets.indexOf(oldServlet);
+        if (indx == -1)
+            throw new IllegalArgumentException("Servlet configuration '"
+                    + oldServlet + "' is not registered!");
+
+        servlets.set(indx, newServlet);
+        this.reconfigure(servlets, this.servletRoutes.getFilterConfigurations());
+    }
+
+    public synchronized void addFilter(FilterConfiguration filter) {
+        List<FilterConfiguration> filters = new ArrayList<FilterConfiguration>(
+                this.servletRoutes.getFilterConfigurations());
+        filters.add(filter);
+        this.reconfigure(this.servletRoutes.getServletConfigurations(), filters);
+    }
+
+    public synchronized void removeFilter(FilterConfiguration filter) {
+        List<FilterConfiguration> filters = new ArrayList<FilterConfiguration>(
+                this.servletRoutes.getFilterConfigurations());
+        filters.remove(filter);
+        this.reconfigure(this.servletRoutes.getServletConfigurations(), filters);
+    }
+
+    public synchronized void replaceFilter(FilterConfiguration oldFilter,
+                                           FilterConfiguration newFilter) {
+        List<FilterConfiguration> filters = new ArrayList<FilterConfiguration>(
+                this.servletRoutes.getFilterConfigurations());
+        int indx = filters.indexOf(oldFilter);
+        if (indx == -1)
+            throw new IllegalArgumentException("Filter configuration '"
+                    + oldFilter + "' is not registered!");
+
+        filters.set(indx, newFilter);
+        this.reconfigure(this.servletRoutes.getServletConfigurations(), filters);
+    }
+
+    /**
+     * Replaces the servlets and filters of this webapp at runtime. Added
+     * components are initialized before the new routing snapshot is
+     * published. Removed ones are destroyed once the last request routed
+     * with any snapshot containing them has finished; a component added
+     * again before is neither destroyed nor initialized twice.
+     */
+    public synchronized void reconfigure(
+            Collection<ServletConfiguration> servlets,
+            Collection<FilterConfiguration> filters) {
+
+        final ServletRouteIndex previous = this.servletRoutes;
+
+        for (FilterConfiguration filter : filters) {
+            if (!this.componentReferences.containsKey(filter)) {
+                filter.getConfig().setServletContext(this.servletContext);
+                filter.init();
             }
         }
+        for (ServletConfiguration servlet : servlets) {
+            if (!this.componentReferences.containsKey(servlet)) {
+                servlet.getConfig().setServletContext(this.servletContext);
+                servlet.init();
+            }
+        }
+
+        ServletRouteIndex routes = ServletRouteIndex.build(servlets, filters);
+        this.reference(routes);
+        this.servletRoutes = routes;
+
+        int removed = 0;
+        for (ServletConfiguration servlet : previous.getServletConfigurations()) {
+            if (!routes.getServletConfigurations().contains(servlet))
+                removed++;
+        }
+        for (FilterConfiguration filter : previous.getFilterConfigurations()) {
+            if (!routes.getFilterConfigurations().contains(filter))
+                removed++;
+        }
+
+        log.info("Reconfigured webapp '{}': {} servlets, {} filters, {} removed",
+                new Object[]{this.contextPath, servlets.size(),
+                        filters.size(), removed});
+
+        previous.retire(new Runnable() {
+            @Override
+            public void run() {
+                unreference(previous);
+            }
+        });
+    }
 
-        return chain;
+    private void reference(ServletRouteIndex routes) {
+        for (ServletConfiguration servlet : routes.getServletConfigurations())
+            this.reference(servlet);
+        for (FilterConfiguration filter : routes.getFilterConfigurations())
+            this.reference(filter);
     }
 
-    private ServletConfiguration findServlet(String uri) {
+    private void reference(HttpComponentConfigurationAdapter<?, ?> component) {
+        Integer count = this.componentReferences.get(component);
+        this.componentReferences.put(component, count != null ? count + 1 : 1);
+    }
 
-        if (!this.webappConfig.hasServletConfigurations()) {
-            return null;
+    /**
+     * Releases the components of a drained snapshot, destroying the ones no
+     * other snapshot contains. Servlets are destroyed before filters.
+     */
+    private synchronized void unreference(ServletRouteIndex routes) {
+        List<HttpComponentConfigurationAdapter<?, ?>> unused = new ArrayList<HttpComponentConfigurationAdapter<?, ?>>();
+        for (ServletConfiguration servlet : routes.getServletConfigurations()) {
+            if (this.unreference(servlet))
+                unused.add(servlet);
+        }
+        for (FilterConfiguration filter : routes.getFilterConfigurations()) {
+            if (this.unreference(filter))
+                unused.add(filter);
         }
 
-        for (ServletConfiguration s : this.webappConfig
-                .getServletConfigurations()) {
-            if (s.matchesUrlPattern(uri))
-                return s;
+        for (HttpComponentConfigurationAdapter<?, ?> component : unused)
+            component.destroy();
+    }
+
+    private boolean unreference(HttpComponentConfigurationAdapter<?, ?> component) {
+        Integer count = this.componentReferences.get(component);
+        if (count == null)
+            // the webapp has been destroyed meanwhile
+            return false;
+
+        if (count > 1) {
+            this.componentReferences.put(component, count - 1);
+            return false;
         }
+        this.componentReferences.remove(component);
+        return true;
+    }
+
+    /**
+     * Returns <code>true</code> if the given request uri lies within the
+     * context path of this webapp.
+     */
+    public boolean matchesContextPath(String uri) {
+        int length = this.contextPath.length();
+        if (length == 0)
+            return true;
+
+        if (!uri.startsWith(this.contextPath))
+            return false;
+
+        if (uri.length() == length)
+            return true;
 
-        return null;
+        char c = uri.charAt(length);
+        return c == '/' || c == '?';
+    }
+
+    public HttpSessionImpl createSession() {
+        HttpSessionImpl session = this.sessionStore.createSession();
+        session.setServletContext(this.servletContext);
+        session.setMaxInactiveInterval(this.webappConfig.getSessionTimeout());
+        return session;
+    }
+
+    public ServletRoute findServlet(String uri) {
+        return this.servletRoutes.match(uri);
     }
 
     public File getStaticResourcesFolder() {
@@ -162,6 +408,30 @@ public class ServletBridgeWebapp {
         return webappConfig;
     }
 
+    /**
+     * Returns the servlets currently served, which differ from the ones of
+     * the {@link WebappConfiguration} after a reconfiguration.
+     */
+    public List<ServletConfiguration> getServletConfigurations() {
+        return this.servletRoutes.getServletConfigurations();
+    }
+
+    public List<FilterConfiguration> getFilterConfigurations() {
+        return this.servletRoutes.getFilterConfigurations();
+    }
+
+    public String getContextPath() {
+        return contextPath;
+    }
+
+    public ServletContextImpl getServletContext() {
+        return servletContext;
+    }
+
+    public ServletBridgeHttpSessionStore getSessionStore() {
+        return sessionStore;
+    }
+
     public ChannelGroup getSharedChannelGroup() {
         return sharedChannelGroup;
     }
@@ -21,6 +21,8 @@ import javax.servlet.ServletContext;
 
 public class ServletConfigImpl extends ConfigAdapter implements ServletConfig {
 
+    private ServletContextImpl servletContext;
+
     public ServletConfigImpl(String servletName) {
         super(servletName);
     }
@@ -32,7 +34,11 @@ public class ServletConfigImpl extends ConfigAdapter implements ServletConfig {
 
     @Override
     public ServletContext getServletContext() {
-        return ServletContextImpl.get();
+        return this.servletContext;
+    }
+
+    void setServletContext(ServletContextImpl servletContext) {
+        this.servletContext = servletContext;
     }
 
 }
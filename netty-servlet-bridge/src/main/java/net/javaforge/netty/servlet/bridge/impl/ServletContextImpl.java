@@ -21,10 +21,8 @@ import net.javaforge.netty.servlet.bridge.util.Utils;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.servlet.RequestDispatcher;
-import javax.servlet.Servlet;
-import javax.servlet.ServletContext;
-import javax.servlet.ServletException;
+import javax.servlet.*;
+import javax.servlet.descriptor.JspConfigDescriptor;
 import javax.servlet.http.HttpServlet;
 import java.io.File;
 import java.io.IOException;
@@ -39,21 +37,24 @@ public class ServletContextImpl extends ConfigAdapter implements ServletContext
     private static final Logger log = LoggerFactory
             .getLogger(ServletContextImpl.class);
 
-    private static ServletContextImpl instance;
+    private final ServletBridgeWebapp webapp;
 
     private Map<String, Object> attributes;
 
     private String servletContextName;
 
+    /**
+     * @deprecated every webapp has its own servlet context, use
+     * {@link ServletBridgeWebapp#getServletContext()} instead.
+     */
+    @Deprecated
     public static ServletContextImpl get() {
-        if (instance == null)
-            instance = new ServletContextImpl();
-
-        return instance;
+        return ServletBridgeWebapp.get().getServletContext();
     }
 
-    private ServletContextImpl() {
+    ServletContextImpl(ServletBridgeWebapp webapp) {
         super("Netty Servlet Bridge");
+        this.webapp = webapp;
     }
 
     @Override
@@ -68,17 +69,27 @@ public class ServletContextImpl extends ConfigAdapter implements ServletContext
 
     @Override
     public String getContextPath() {
-        return "";
+        return this.webapp.getContextPath();
     }
 
     @Override
     public int getMajorVersion() {
-        return 2;
+        return 3;
     }
 
     @Override
     public int getMinorVersion() {
-        return 4;
+        return 0;
+    }
+
+    @Override
+    public int getEffectiveMajorVersion() {
+        return getMajorVersion();
+    }
+
+    @Override
+    public int getEffectiveMinorVersion() {
+        return getMinorVersion();
     }
 
     @Override
@@ -171,7 +182,7 @@ public class ServletContextImpl extends ConfigAdapter implements ServletContext
 
     @Override
     public RequestDispatcher getNamedDispatcher(String name) {
-        Collection<ServletConfiguration> colls = ServletBridgeWebapp.get().getWebappConfig().getServletConfigurations();
+        Collection<ServletConfiguration> colls = this.webapp.getServletConfigurations();
         HttpServlet servlet = null;
         for (ServletConfiguration configuration : colls) {
             if (configuration.getConfig().getServletName().equals(name)) {
@@ -201,17 +212,161 @@ public class ServletContextImpl extends ConfigAdapter implements ServletContext
 
     @Override
     public RequestDispatcher getRequestDispatcher(String path) {
-        Collection<ServletConfiguration> colls = ServletBridgeWebapp.get().getWebappConfig().getServletConfigurations();
+        ServletRoute route = this.webapp.findServlet(path);
         HttpServlet servlet = null;
         String servletName = null;
-        for (ServletConfiguration configuration : colls) {
-            if (configuration.matchesUrlPattern(path)) {
-                servlet = configuration.getHttpComponent();
-                servletName = configuration.getHttpComponent().getServletName();
-            }
+        if (route != null && route.getServletConfiguration() != null) {
+            servlet = route.getServletConfiguration().getHttpComponent();
+            servletName = servlet.getServletName();
         }
 
         return new RequestDispatcherImpl(servletName, path, servlet);
     }
 
+    @Override
+    public boolean setInitParameter(String name, String value) {
+        throw new IllegalStateException(
+                "Method 'setInitParameter' not yet implemented!");
+    }
+
+    @Override
+    public ServletRegistration.Dynamic addServlet(String servletName, String className) {
+        throw new IllegalStateException(
+                "Method 'addServlet' not yet implemented!");
+    }
+
+    @Override
+    public ServletRegistration.Dynamic addServlet(String servletName, Servlet servlet) {
+        throw new IllegalStateException(
+                "Method 'addServlet' not yet implemented!");
+    }
+
+    @Override
+    public ServletRegistration.Dynamic addServlet(String servletName,
+                                                  Class<? extends Servlet> servletClass) {
+        throw new IllegalStateException(
+                "Method 'addServlet' not yet implemented!");
+    }
+
+    @Override
+    public <T extends Servlet> T createServlet(Class<T> clazz)
+            throws ServletException {
+        throw new IllegalStateException(
+                "Method 'createServlet' not yet implemented!");
+    }
+
+    @Override
+    public ServletRegistration getServletRegistration(String servletName) {
+        throw new IllegalStateException(
+                "Method 'getServletRegistration' not yet implemented!");
+    }
+
+    @Override
+    public Map<String, ? extends ServletRegistration> getServletRegistrations() {
+        throw new IllegalStateException(
+                "Method 'getServletRegistrations' not yet implemented!");
+    }
+
+    @Override
+    public FilterRegistration.Dynamic addFilter(String filterName, String className) {
+        throw new IllegalStateException(
+                "Method 'addFilter' not yet implemented!");
+    }
+
+    @Override
+    public FilterRegistration.Dynamic addFilter(String filterName, Filter filter) {
+        throw new IllegalStateException(
+                "Method 'addFilter' not yet implemented!");
+    }
+
+    @Override
+    public FilterRegistration.Dynamic addFilter(String filterName,
+                                                Class<? extends Filter> filterClass) {
+        throw new IllegalStateException(
+                "Method 'addFilter' not yet implemented!");
+    }
+
+    @Override
+    public <T extends Filter> T createFilter(Class<T> clazz)
+            throws ServletException {
+        throw new IllegalStateException(
+                "Method 'createFilter' not yet implemented!");
+    }
+
+    @Override
+    public FilterRegistration getFilterRegistration(String filterName) {
+        throw new IllegalStateException(
+                "Method 'getFilterRegistration' not yet implemented!");
+    }
+
+    @Override
+    public Map<String, ? extends FilterRegistration> getFilterRegistrations() {
+        throw new IllegalStateException(
+                "Method 'getFilterRegistrations' not yet implemented!");
+    }
+
+    @Override
+    public SessionCookieConfig getSessionCookieConfig() {
+        throw new IllegalStateException(
+                "Method 'getSessionCookieConfig' not yet implemented!");
+    }
+
+    @Override
+    public void setSessionTrackingModes(
+            Set<SessionTrackingMode> sessionTrackingModes) {
+        throw new IllegalStateException(
+                "Method 'setSessionTrackingModes' not yet implemented!");
+    }
+
+    @Override
+    public Set<SessionTrackingMode> getDefaultSessionTrackingModes() {
+        return EnumSet.of(SessionTrackingMode.COOKIE);
+    }
+
+    @Override
+    public Set<SessionTrackingMode> getEffectiveSessionTrackingModes() {
+        return getDefaultSessionTrackingModes();
+    }
+
+    @Override
+    public void addListener(String className) {
+        throw new IllegalStateException(
+                "Method 'addListener' not yet implemented!");
+    }
+
+    @Override
+    public <T extends EventListener> void addListener(T t) {
+        throw new IllegalStateException(
+                "Method 'addListener' not yet implemented!");
+    }
+
+    @Override
+    public void addListener(Class<? extends EventListener> listenerClass) {
+        throw new IllegalStateException(
+                "Method 'addListener' not yet implemented!");
+    }
+
+    @Override
+    public <T extends EventListener> T createListener(Class<T> clazz)
+            throws ServletException {
+        throw new IllegalStateException(
+                "Method 'createListener' not yet implemented!");
+    }
+
+    @Override
+    public JspConfigDescriptor getJspConfigDescriptor() {
+        return null;
+    }
+
+    @Override
+    public ClassLoader getClassLoader() {
+        return ServletContextImpl.class.getClassLoader();
+    }
+
+    @Override
+    public void declareRoles(String... roleNames) {
+        throw new IllegalStateException(
+                "Method 'declareRoles' not yet implemented!");
+    }
+
 }
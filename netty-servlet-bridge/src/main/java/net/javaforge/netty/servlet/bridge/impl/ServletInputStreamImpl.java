@@ -16,6 +16,7 @@
 
 package net.javaforge.netty.servlet.bridge.impl;
 
+import io.netty.buffer.ByteBuf;
 import io.netty.buffer.ByteBufInputStream;
 import io.netty.buffer.Unpooled;
 import io.netty.handler.codec.http.FullHttpRequest;
@@ -23,23 +24,49 @@ import io.netty.handler.codec.http.HttpRequest;
 
 import javax.servlet.ServletInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 public class ServletInputStreamImpl extends ServletInputStream {
 
     private HttpRequest request;
 
-    private ByteBufInputStream in;
+    private InputStream in;
+
+    /**
+     * The body if it is kept in a buffer, <code>null</code> if it is only
+     * available as a stream. Reading the stream advances its reader index.
+     */
+    private ByteBuf content;
 
     public ServletInputStreamImpl(FullHttpRequest request) {
+        this(request, request.content());
+    }
+
+    public ServletInputStreamImpl(HttpRequest request) {
+        this(request, Unpooled.EMPTY_BUFFER);
+    }
+
+    public ServletInputStreamImpl(HttpRequest request, ByteBuf content) {
         this.request = request;
+        this.content = content;
 
-        this.in = new ByteBufInputStream(request.content());
+        this.in = new ByteBufInputStream(content);
     }
 
-    public ServletInputStreamImpl(HttpRequest request) {
+    public ServletInputStreamImpl(HttpRequest request, RequestBody body) {
+        this.request = request;
+        this.content = body.getContent();
+
+        this.in = body.getInputStream();
+    }
+
+    /**
+     * @param in body of the request, e.g. a {@link HttpContentInputStream}
+     */
+    public ServletInputStreamImpl(HttpRequest request, InputStream in) {
         this.request = request;
 
-        this.in = new ByteBufInputStream(Unpooled.buffer(0));
+        this.in = in;
     }
 
 
@@ -58,4 +85,45 @@ public class ServletInputStreamImpl extends ServletInputStream {
         return this.in.read(buf, offset, len);
     }
 
+    /**
+     * Reads the rest of the body at once. The returned buffer has to be
+     * released by the caller.
+     *
+     * @param maxLength maximum number of bytes to read, the rest is left
+     */
+    public ByteBuf readContent(int maxLength) throws IOException {
+        if (this.content != null) {
+            int length = Math.min(this.content.readableBytes(), maxLength);
+            return this.content.readSlice(length).retain();
+        }
+
+        ByteBuf buf = Unpooled.buffer(Math.min(Math.max(this.in.available(),
+                256), maxLength));
+        while (buf.readableBytes() < maxLength) {
+            buf.ensureWritable(Math.min(4096, maxLength - buf.readableBytes()));
+            int n = buf.writeBytes(this.in, buf.writableBytes());
+            if (n == -1)
+                break;
+        }
+        return buf;
+    }
+
+    /**
+     * Returns the unread part of the body if it is kept in a buffer,
+     * <code>null</code> if it is only available as a stream.
+     */
+    ByteBuf bufferedContent() {
+        return this.content;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return this.in.available();
+    }
+
+    @Override
+    public void close() throws IOException {
+        this.in.close();
+    }
+
 }
@@ -14,50 +14,61 @@
  *    limitations under the License.
  */
 
+
 package net.javaforge.netty.servlet.bridge.impl;
 
-import io.netty.buffer.ByteBufOutputStream;
+import io.netty.buffer.ByteBuf;
 import io.netty.handler.codec.http.FullHttpResponse;
 
 import javax.servlet.ServletOutputStream;
 import java.io.IOException;
 
+/**
+ * Writes directly into the content of the response. Pooled along with its
+ * {@link HttpServletResponseImpl}, which points it to the next response.
+ */
 public class ServletOutputStreamImpl extends ServletOutputStream {
 
     private FullHttpResponse response;
 
-    private ByteBufOutputStream out;
+    private ByteBuf out;
 
     private boolean flushed = false;
 
     public ServletOutputStreamImpl(FullHttpResponse response) {
+        this.init(response);
+    }
+
+    void init(FullHttpResponse response) {
         this.response = response;
-        this.out = new ByteBufOutputStream(response.content());
+        this.out = response != null ? response.content() : null;
+        this.flushed = false;
     }
 
     @Override
     public void write(int b) throws IOException {
-        this.out.write(b);
+        this.buffer().writeByte(b);
     }
 
     @Override
     public void write(byte[] b) throws IOException {
-        this.out.write(b);
+        this.buffer().writeBytes(b);
     }
 
     @Override
     public void write(byte[] b, int offset, int len) throws IOException {
-        this.out.write(b, offset, len);
+        this.buffer().writeBytes(b, offset, len);
     }
 
     @Override
     public void flush() throws IOException {
 //        this.response.setContent(out.buffer());
+        this.buffer();
         this.flushed = true;
     }
 
     public void resetBuffer() {
-        this.out.buffer().clear();
+        this.buffer().clear();
     }
 
     public boolean isFlushed() {
@@ -65,6 +76,12 @@ public class ServletOutputStreamImpl extends ServletOutputStream {
     }
 
     public int getBufferSize() {
-        return this.out.buffer().capacity();
+        return this.buffer().capacity();
+    }
+
+    private ByteBuf buffer() {
+        if (this.out == null)
+            throw Recycling.recycled(this);
+        return this.out;
     }
 }
@@ -0,0 +1,102 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge.impl;
+
+import net.javaforge.netty.servlet.bridge.config.FilterConfiguration;
+import net.javaforge.netty.servlet.bridge.config.ServletConfiguration;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Result of a {@link ServletRouteIndex} lookup: the servlet mapped to a
+ * request path, the url pattern that selected it and the filters to apply,
+ * in the order they have to be invoked.
+ */
+public final class ServletRoute {
+
+    public enum Type {
+        EXACT, PREFIX, EXTENSION, DEFAULT
+    }
+
+    private final ServletConfiguration servletConfiguration;
+
+    private final String urlPattern;
+
+    private final Type type;
+
+    /**
+     * Length of the servlet path for PREFIX routes, i.e. the url pattern
+     * without the trailing "/*".
+     */
+    private final int prefixLength;
+
+    private final FilterConfiguration[] filters;
+
+    ServletRoute(ServletConfiguration servletConfiguration, String urlPattern,
+                 Type type, FilterConfiguration[] filters) {
+        this.servletConfiguration = servletConfiguration;
+        this.urlPattern = urlPattern;
+        this.type = type;
+        this.prefixLength = type == Type.PREFIX ? urlPattern.length() - 2 : -1;
+        this.filters = filters;
+    }
+
+    /**
+     * Returns the index at which the servlet path of the given request path
+     * ends and the path info begins.
+     *
+     * @param uri   request uri
+     * @param start index of the first path character (after the context path)
+     * @param end   index after the last path character (before the query)
+     */
+    public int getServletPathEnd(String uri, int start, int end) {
+        if (type == null)
+            return start;
+
+        return type == Type.PREFIX ? start + prefixLength : end;
+    }
+
+    public ServletConfiguration getServletConfiguration() {
+        return servletConfiguration;
+    }
+
+    public String getUrlPattern() {
+        return urlPattern;
+    }
+
+    public Type getType() {
+        return type;
+    }
+
+    public List<FilterConfiguration> getFilterConfigurations() {
+        return Collections.unmodifiableList(Arrays.asList(filters));
+    }
+
+    FilterConfiguration[] getFilters() {
+        return filters;
+    }
+
+    @Override
+    public String toString() {
+        String servlet = servletConfiguration != null ? servletConfiguration
+                .getHttpComponent().getClass().getName() : null;
+        return type + " " + urlPattern + " -> " + servlet + " ("
+                + filters.length + " filters)";
+    }
+}
@@ -0,0 +1,554 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge.impl;
+
+import net.javaforge.netty.servlet.bridge.config.FilterConfiguration;
+import net.javaforge.netty.servlet.bridge.config.ServletConfiguration;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Immutable servlet and filter mapping index following the servlet
+ * specification precedence: exact match, longest path prefix, extension,
+ * default servlet.
+ * <p/>
+ * Path prefixes are kept in a trie of path segments, so the lookup cost
+ * depends on the length of the request path and not on the number of
+ * mappings. Every trie node carries the {@link ServletRoute}s, including
+ * their ordered filter arrays, computed once when the index is built.
+ * Lookups work on index ranges of the request uri and do not allocate.
+ * <p/>
+ * An index is also the unit of hot reconfiguration: requests
+ * {@link #acquire()} the index they are routed with and {@link #release()}
+ * it when done, so the components dropped by a newer index can be destroyed
+ * once the last request using the old one has finished.
+ */
+public final class ServletRouteIndex {
+
+    private static final Logger log = LoggerFactory
+            .getLogger(ServletRouteIndex.class);
+
+    private static final FilterConfiguration[] NO_FILTERS = new FilterConfiguration[0];
+
+    private final Node root;
+
+    private final boolean hasExtensions;
+
+    private final List<ServletConfiguration> servlets;
+
+    private final List<FilterConfiguration> filters;
+
+    private final AtomicInteger inFlight = new AtomicInteger();
+
+    private final AtomicReference<Runnable> onDrained = new AtomicReference<Runnable>();
+
+    private volatile boolean retired;
+
+    private ServletRouteIndex(Node root, boolean hasExtensions,
+                              List<ServletConfiguration> servlets,
+                              List<FilterConfiguration> filters) {
+        this.root = root;
+        this.hasExtensions = hasExtensions;
+        this.servlets = servlets;
+        this.filters = filters;
+    }
+
+    public static ServletRouteIndex build(
+            Collection<ServletConfiguration> servlets) {
+        return build(servlets, null);
+    }
+
+    public static ServletRouteIndex build(
+            Collection<ServletConfiguration> servlets,
+            Collection<FilterConfiguration> filters) {
+
+        Mappings mappings = new Mappings();
+
+        if (servlets != null) {
+            for (ServletConfiguration servlet : servlets) {
+                for (String urlPattern : servlet.getUrlPatterns())
+                    mappings.addServlet(servlet, urlPattern);
+            }
+        }
+
+        if (filters != null) {
+            for (FilterConfiguration filter : filters) {
+                mappings.filters.add(filter);
+                for (String urlPattern : filter.getUrlPatterns())
+                    mappings.addFilter(filter, urlPattern);
+            }
+        }
+
+        mappings.root.compile(mappings, "", null,
+                new HashSet<FilterConfiguration>());
+
+        List<ServletConfiguration> servletList = servlets != null ? new ArrayList<ServletConfiguration>(
+                servlets) : new ArrayList<ServletConfiguration>();
+        return new ServletRouteIndex(mappings.root,
+                !mappings.extensions().isEmpty(),
+                Collections.unmodifiableList(servletList),
+                Collections.unmodifiableList(mappings.filters));
+    }
+
+    public List<ServletConfiguration> getServletConfigurations() {
+        return servlets;
+    }
+
+    public List<FilterConfiguration> getFilterConfigurations() {
+        return filters;
+    }
+
+    /**
+     * Registers a request routed with this index. Fails if the index has
+     * been retired meanwhile, the caller has to use the current one then.
+     */
+    public boolean acquire() {
+        inFlight.incrementAndGet();
+        if (retired) {
+            release();
+            return false;
+        }
+        return true;
+    }
+
+    public void release() {
+        if (inFlight.decrementAndGet() == 0 && retired)
+            drained();
+    }
+
+    /**
+     * Marks this index as replaced. The given callback runs exactly once, as
+     * soon as no request routed with this index is in flight any more.
+     */
+    void retire(Runnable callback) {
+        onDrained.set(callback);
+        retired = true;
+        if (inFlight.get() == 0)
+            drained();
+    }
+
+    private void drained() {
+        Runnable callback = onDrained.getAndSet(null);
+        if (callback != null)
+            callback.run();
+    }
+
+    /**
+     * Finds the route for the path part of the given request uri, ignoring
+     * the query string.
+     */
+    public ServletRoute match(String uri) {
+        int indx = uri.indexOf('?');
+        return match(uri, 0, indx != -1 ? indx : uri.length());
+    }
+
+    /**
+     * Finds the route for the request path located between
+     * <code>start</code> (inclusive) and <code>end</code> (exclusive) of the
+     * given uri. Returns <code>null</code> if neither a servlet nor a filter
+     * is mapped to the path.
+     */
+    public ServletRoute match(String uri, int start, int end) {
+
+        Node node = this.root;
+
+        int pos = start < end && uri.charAt(start) == '/' ? start + 1 : start;
+        int pathStart = pos;
+        boolean consumed = pos == end;
+
+        while (!consumed) {
+            int segmentEnd = indexOf(uri, '/', pos, end);
+            Node child = node.child(uri, pos, segmentEnd);
+            if (child == null)
+                break;
+
+            node = child;
+            if (segmentEnd == end)
+                consumed = true;
+            else
+                pos = segmentEnd + 1;
+        }
+
+        if (consumed && node.exactRoute != null)
+            return node.exactRoute;
+
+        if (hasExtensions) {
+            int slash = lastIndexOf(uri, '/', pathStart, end);
+            int dot = lastIndexOf(uri, '.', slash != -1 ? slash + 1
+                    : pathStart, end);
+            if (dot != -1) {
+                ServletRoute route = node.extensionRoutes.get(uri, dot + 1,
+                        end);
+                if (route != null)
+                    return route;
+            }
+        }
+
+        return node.route;
+    }
+
+    static String normalizeUrlPattern(String urlPattern) {
+        if ("*".equals(urlPattern))
+            return "/*";
+
+        if (urlPattern.length() > 0 && !urlPattern.startsWith("/")
+                && !urlPattern.startsWith("*.")) {
+            log.warn("Url pattern '{}' does not start with '/', mapping it as '/{}'",
+                    urlPattern, urlPattern);
+            return "/" + urlPattern;
+        }
+
+        return urlPattern;
+    }
+
+    static ServletRoute.Type getPatternType(String pattern) {
+        if ("/".equals(pattern))
+            return ServletRoute.Type.DEFAULT;
+
+        if (pattern.startsWith("*.") && pattern.indexOf('/') == -1)
+            return ServletRoute.Type.EXTENSION;
+
+        if (pattern.endsWith("/*") && pattern.indexOf('*') == pattern.length() - 1)
+            return ServletRoute.Type.PREFIX;
+
+        if (pattern.indexOf('*') != -1)
+            log.warn("Url pattern '{}' is not a servlet specification pattern, "
+                    + "it will be matched literally", pattern);
+
+        return ServletRoute.Type.EXACT;
+    }
+
+    private static String getExtension(String path) {
+        int dot = path.lastIndexOf('.');
+        return dot > path.lastIndexOf('/') ? path.substring(dot + 1) : null;
+    }
+
+    private static int indexOf(String s, char c, int from, int end) {
+        for (int i = from; i < end; i++) {
+            if (s.charAt(i) == c)
+                return i;
+        }
+        return end;
+    }
+
+    private static int lastIndexOf(String s, char c, int from, int end) {
+        for (int i = end - 1; i >= from; i--) {
+            if (s.charAt(i) == c)
+                return i;
+        }
+        return -1;
+    }
+
+    /**
+     * Mutable mapping tables, only used while the index is built.
+     */
+    private static final class Mappings {
+
+        private final Node root = new Node();
+
+        private final List<FilterConfiguration> filters = new ArrayList<FilterConfiguration>();
+
+        private final Map<String, ServletRoute> servletExtensions = new LinkedHashMap<String, ServletRoute>();
+
+        private final Map<String, Set<FilterConfiguration>> filterExtensions = new LinkedHashMap<String, Set<FilterConfiguration>>();
+
+        private ServletRoute defaultServlet;
+
+        void addServlet(ServletConfiguration servlet, String urlPattern) {
+            String pattern = normalizeUrlPattern(urlPattern);
+            ServletRoute.Type type = getPatternType(pattern);
+            ServletRoute mapping = new ServletRoute(servlet, pattern, type,
+                    NO_FILTERS);
+
+            switch (type) {
+                case DEFAULT:
+                    if (defaultServlet == null)
+                        defaultServlet = mapping;
+                    break;
+                case EXTENSION:
+                    String extension = pattern.substring(2);
+                    if (!servletExtensions.containsKey(extension))
+                        servletExtensions.put(extension, mapping);
+                    break;
+                case PREFIX:
+                    Node prefixNode = root.getOrCreate(pattern.substring(0,
+                            pattern.length() - 2));
+                    if (prefixNode.prefixServlet == null)
+                        prefixNode.prefixServlet = mapping;
+                    break;
+                default:
+                    Node exactNode = root.getOrCreate(pattern);
+                    if (exactNode.exactServlet == null)
+                        exactNode.exactServlet = mapping;
+                    break;
+            }
+        }
+
+        void addFilter(FilterConfiguration filter, String urlPattern) {
+            String pattern = normalizeUrlPattern(urlPattern);
+
+            switch (getPatternType(pattern)) {
+                case EXTENSION:
+                    String extension = pattern.substring(2);
+                    Set<FilterConfiguration> set = filterExtensions
+                            .get(extension);
+                    if (set == null) {
+                        set = new HashSet<FilterConfiguration>();
+                        filterExtensions.put(extension, set);
+                    }
+                    set.add(filter);
+                    break;
+                case PREFIX:
+                    root.getOrCreate(pattern.substring(0, pattern.length() - 2))
+                            .prefixFilters.add(filter);
+                    break;
+                default:
+                    // for filters "/" only matches the context root
+                    root.getOrCreate(pattern).exactFilters.add(filter);
+                    break;
+            }
+        }
+
+        Set<String> extensions() {
+            Set<String> extensions = new LinkedHashSet<String>(
+                    servletExtensions.keySet());
+            extensions.addAll(filterExtensions.keySet());
+            return extensions;
+        }
+
+        /**
+         * Builds the route for the given servlet mapping and matching
+         * filters, keeping the filters in declaration order.
+         */
+        ServletRoute route(ServletRoute servlet,
+                           Set<FilterConfiguration> matching) {
+
+            FilterConfiguration[] chain = NO_FILTERS;
+            if (!matching.isEmpty()) {
+                List<FilterConfiguration> ordered = new ArrayList<FilterConfiguration>();
+                for (FilterConfiguration filter : filters) {
+                    if (matching.contains(filter))
+                        ordered.add(filter);
+                }
+                chain = ordered.toArray(new FilterConfiguration[ordered.size()]);
+            }
+
+            if (servlet == null)
+                return chain.length > 0 ? new ServletRoute(null, null, null,
+                        chain) : null;
+
+            return new ServletRoute(servlet.getServletConfiguration(),
+                    servlet.getUrlPattern(), servlet.getType(), chain);
+        }
+
+        ServletRoute extensionServlet(String extension) {
+            ServletRoute servlet = extension != null ? servletExtensions
+                    .get(extension) : null;
+            return servlet != null ? servlet : defaultServlet;
+        }
+
+        void addExtensionFilters(String extension,
+                                 Set<FilterConfiguration> matching) {
+            Set<FilterConfiguration> set = extension != null ? filterExtensions
+                    .get(extension) : null;
+            if (set != null)
+                matching.addAll(set);
+        }
+    }
+
+    /**
+     * Trie node, one per path segment.
+     */
+    private static final class Node {
+
+        private Map<String, Node> children = new LinkedHashMap<String, Node>();
+
+        private ServletRoute exactServlet;
+
+        private ServletRoute prefixServlet;
+
+        private List<FilterConfiguration> exactFilters = new ArrayList<FilterConfiguration>();
+
+        private List<FilterConfiguration> prefixFilters = new ArrayList<FilterConfiguration>();
+
+        private SegmentMap<Node> index;
+
+        /**
+         * Route for a path ending exactly at this node, if any exact mapping
+         * exists for it.
+         */
+        private ServletRoute exactRoute;
+
+        /**
+         * Routes for paths below this node, by extension of the last segment.
+         */
+        private SegmentMap<ServletRoute> extensionRoutes;
+
+        /**
+         * Route for paths below this node not covered by the routes above.
+         */
+        private ServletRoute route;
+
+        Node getOrCreate(String path) {
+            Node node = this;
+            for (String segment : splitPath(path)) {
+                Node child = node.children.get(segment);
+                if (child == null) {
+                    child = new Node();
+                    node.children.put(segment, child);
+                }
+                node = child;
+            }
+            return node;
+        }
+
+        Node child(String uri, int start, int end) {
+            return index.get(uri, start, end);
+        }
+
+        void compile(Mappings mappings, String path,
+                     ServletRoute inheritedServlet,
+                     Set<FilterConfiguration> inheritedFilters) {
+
+            ServletRoute prefix = prefixServlet != null ? prefixServlet
+                    : inheritedServlet;
+            Set<FilterConfiguration> filters = new HashSet<FilterConfiguration>(
+                    inheritedFilters);
+            filters.addAll(prefixFilters);
+
+            this.route = mappings.route(prefix != null ? prefix
+                    : mappings.extensionServlet(null), filters);
+
+            Map<String, ServletRoute> byExtension = new LinkedHashMap<String, ServletRoute>();
+            for (String extension : mappings.extensions()) {
+                Set<FilterConfiguration> matching = new HashSet<FilterConfiguration>(
+                        filters);
+                mappings.addExtensionFilters(extension, matching);
+                byExtension.put(extension, mappings.route(prefix != null ? prefix
+                        : mappings.extensionServlet(extension), matching));
+            }
+            this.extensionRoutes = new SegmentMap<ServletRoute>(byExtension);
+
+            if (exactServlet != null || !exactFilters.isEmpty()) {
+                String extension = getExtension(path);
+                Set<FilterConfiguration> matching = new HashSet<FilterConfiguration>(
+                        filters);
+                matching.addAll(exactFilters);
+                mappings.addExtensionFilters(extension, matching);
+
+                ServletRoute servlet = exactServlet;
+                if (servlet == null)
+                    servlet = prefix != null ? prefix : mappings
+                            .extensionServlet(extension);
+
+                this.exactRoute = mappings.route(servlet, matching);
+            }
+
+            for (Map.Entry<String, Node> child : children.entrySet())
+                child.getValue().compile(mappings,
+                        path + "/" + child.getKey(), prefix, filters);
+
+            this.index = new SegmentMap<Node>(children);
+            this.children = null;
+            this.exactFilters = null;
+            this.prefixFilters = null;
+        }
+
+        private static List<String> splitPath(String path) {
+            List<String> segments = new ArrayList<String>();
+            int pos = path.startsWith("/") ? 1 : 0;
+            if (pos == path.length())
+                return segments;
+
+            while (true) {
+                int slash = path.indexOf('/', pos);
+                if (slash == -1) {
+                    segments.add(path.substring(pos));
+                    return segments;
+                }
+                segments.add(path.substring(pos, slash));
+                pos = slash + 1;
+            }
+        }
+    }
+
+    /**
+     * Immutable open addressing hash map whose lookups take a range of a
+     * string, so no substring has to be created for the key.
+     */
+    static final class SegmentMap<V> {
+
+        private final String[] keys;
+
+        private final Object[] values;
+
+        private final int mask;
+
+        private final int size;
+
+        SegmentMap(Map<String, V> source) {
+            int capacity = 2;
+            while (capacity < source.size() * 2)
+                capacity <<= 1;
+
+            this.keys = new String[capacity];
+            this.values = new Object[capacity];
+            this.mask = capacity - 1;
+            this.size = source.size();
+
+            for (Map.Entry<String, V> entry : source.entrySet()) {
+                String key = entry.getKey();
+                int i = hash(key, 0, key.length()) & mask;
+                while (keys[i] != null)
+                    i = (i + 1) & mask;
+
+                keys[i] = key;
+                values[i] = entry.getValue();
+            }
+        }
+
+        @SuppressWarnings("unchecked")
+        V get(String s, int start, int end) {
+            int length = end - start;
+            for (int i = hash(s, start, end) & mask; ; i = (i + 1) & mask) {
+                String key = keys[i];
+                if (key == null)
+                    return null;
+
+                if (key.length() == length
+                        && key.regionMatches(0, s, start, length))
+                    return (V) values[i];
+            }
+        }
+
+        boolean isEmpty() {
+            return size == 0;
+        }
+
+        private static int hash(String s, int start, int end) {
+            int h = 0;
+            for (int i = start; i < end; i++)
+                h = 31 * h + s.charAt(i);
+
+            return h ^ (h >>> 16);
+        }
+    }
+}
@@ -16,11 +16,41 @@
 
 package net.javaforge.netty.servlet.bridge.impl;
 
+import io.netty.handler.codec.http.QueryStringDecoder;
+import io.netty.util.Recycler;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Single pass request target parser. Only the offsets of the path, servlet
+ * path, path info and query string are recorded while parsing, the strings
+ * themselves are created when a getter asks for them.
+ */
 public class URIParser {
 
+    private static final Recycler<URIParser> RECYCLER = new Recycler<URIParser>() {
+        @Override
+        protected URIParser newObject(Handle<URIParser> handle) {
+            return new URIParser(handle);
+        }
+    };
+
+    private final Recycler.Handle<URIParser> handle;
+
     private FilterChainImpl chain;
 
+    private String uri;
+
+    private int pathStart;
+
+    private int pathEnd;
+
+    private int servletPathEnd;
+
+    private ServletRoute servletRoute;
+
     private String servletPath;
 
     private String requestUri;
@@ -29,51 +59,163 @@ public class URIParser {
 
     private String queryString;
 
+    private Map<String, List<String>> parameters;
+
     public URIParser(FilterChainImpl chain) {
+        this.handle = null;
         this.chain = chain;
     }
 
+    public URIParser(String uri) {
+        this.handle = null;
+        this.parse(uri);
+    }
+
+    private URIParser(Recycler.Handle<URIParser> handle) {
+        this.handle = handle;
+    }
+
+    /**
+     * Returns a parser for the given request target from the pool of the
+     * current thread, to be returned with {@link #recycle()}.
+     *
+     * @see Recycling
+     */
+    public static URIParser newInstance(String uri) {
+        if (!Recycling.ENABLED)
+            return new URIParser(uri);
+
+        URIParser parser = RECYCLER.get();
+        parser.parse(uri);
+        return parser;
+    }
+
+    public void recycle() {
+        this.chain = null;
+        this.servletRoute = null;
+        this.uri = null;
+        this.servletPath = null;
+        this.requestUri = null;
+        this.pathInfo = null;
+        this.queryString = null;
+        this.parameters = null;
+        Recycling.recycle(this.handle, this);
+    }
+
     public void parse(String uri) {
+        this.uri = uri;
+        this.servletPath = null;
+        this.requestUri = null;
+        this.pathInfo = null;
+        this.queryString = null;
+        this.parameters = null;
 
         int indx = uri.indexOf('?');
-        this.servletPath = this.chain.getServletConfiguration()
-                .getMatchingUrlPattern(uri);
-        if (!this.servletPath.startsWith("/"))
-            this.servletPath = "/" + this.servletPath;
-
-        if (indx != -1) {
-            this.pathInfo = uri.substring(servletPath.length(), indx);
-            this.queryString = uri.substring(indx + 1);
-            this.requestUri = uri.substring(0, indx);
-        } else {
-            this.pathInfo = uri.substring(servletPath.length());
-            this.requestUri = uri;
-        }
+        this.pathEnd = indx != -1 ? indx : uri.length();
 
-        if (this.requestUri.endsWith("/"))
-            this.requestUri.substring(0, this.requestUri.length() - 1);
+        this.pathStart = 0;
+        this.servletPathEnd = 0;
+        this.servletRoute = null;
+        if (this.chain != null)
+            this.setServletRoute(this.chain.getServletRoute());
+    }
+
+    /**
+     * Applies the route matched for this request target, which already knows
+     * where the servlet path ends, so the url pattern is never matched a
+     * second time.
+     */
+    public void setServletRoute(ServletRoute route) {
+        this.servletRoute = route;
+        this.servletPathEnd = route != null ? route.getServletPathEnd(uri,
+                pathStart, pathEnd) : pathStart;
+        this.servletPath = null;
+        this.pathInfo = null;
+    }
+
+    public ServletRoute route(ServletRouteIndex index) {
+        return route(index, 0);
+    }
 
-        if (this.pathInfo.equals(""))
-            this.pathInfo = null;
-        else if (!this.pathInfo.startsWith("/"))
-            this.pathInfo = "/" + this.pathInfo;
+    /**
+     * Matches the path following the context path of the given length
+     * against the route index.
+     */
+    public ServletRoute route(ServletRouteIndex index, int contextPathLength) {
+        this.pathStart = contextPathLength;
+        ServletRoute route = index.match(uri, pathStart, pathEnd);
+        this.setServletRoute(route);
+        return route;
+    }
+
+    /**
+     * Returns the chain this parser was created for, <code>null</code> if
+     * none.
+     */
+    public FilterChainImpl getChain() {
+        return chain;
+    }
+
+    /**
+     * Returns the route the request was matched with, <code>null</code> if
+     * none was applied.
+     */
+    public ServletRoute getServletRoute() {
+        return servletRoute;
+    }
 
+    public String getUri() {
+        return uri;
     }
 
     public String getServletPath() {
+        if (servletPath == null)
+            servletPath = uri.substring(pathStart, servletPathEnd);
+
         return servletPath;
     }
 
     public String getQueryString() {
+        if (queryString == null && pathEnd < uri.length())
+            queryString = uri.substring(pathEnd + 1);
+
         return queryString;
     }
 
     public String getPathInfo() {
-        return this.pathInfo;
+        if (pathInfo == null && servletPathEnd < pathEnd)
+            pathInfo = uri.substring(servletPathEnd, pathEnd);
+
+        return pathInfo;
+    }
+
+    /**
+     * Returns the request path without the context path and query string.
+     */
+    public String getPathWithinContext() {
+        return uri.substring(pathStart, pathEnd);
     }
 
     public String getRequestUri() {
+        if (requestUri == null)
+            requestUri = pathEnd == uri.length() ? uri : uri.substring(0,
+                    pathEnd);
+
         return requestUri;
     }
 
+    /**
+     * Returns the decoded query string parameters. The query string is only
+     * decoded on first access.
+     */
+    public Map<String, List<String>> getParameters() {
+        if (parameters == null) {
+            String query = getQueryString();
+            parameters = query != null && query.length() > 0 ? new QueryStringDecoder(
+                    query, false).parameters() : Collections
+                    .<String, List<String>>emptyMap();
+        }
+        return parameters;
+    }
+
 }
@@ -22,6 +22,11 @@ import io.netty.handler.codec.http.HttpResponse;
 import net.javaforge.netty.servlet.bridge.ChannelThreadLocal;
 import net.javaforge.netty.servlet.bridge.ServletBridgeInterceptor;
 
+/**
+ * @deprecated the {@link net.javaforge.netty.servlet.bridge.RequestContext}
+ * of a request binds its channel while interceptors run.
+ */
+@Deprecated
 public class ChannelInterceptor implements ServletBridgeInterceptor {
 
     @Override
@@ -21,19 +21,17 @@ import io.netty.handler.codec.http.*;
 import net.javaforge.netty.servlet.bridge.HttpSessionThreadLocal;
 import net.javaforge.netty.servlet.bridge.ServletBridgeInterceptor;
 import net.javaforge.netty.servlet.bridge.impl.HttpSessionImpl;
+import net.javaforge.netty.servlet.bridge.impl.RequestCookies;
 import net.javaforge.netty.servlet.bridge.session.ServletBridgeHttpSessionStore;
-import net.javaforge.netty.servlet.bridge.util.Utils;
-
-import java.util.Collection;
 
 import static io.netty.handler.codec.http.HttpHeaders.Names.SET_COOKIE;
 
 public class HttpSessionInterceptor implements ServletBridgeInterceptor {
 
-    private boolean sessionRequestedByCookie = false;
+    private final ServletBridgeHttpSessionStore sessionStore;
 
     public HttpSessionInterceptor(ServletBridgeHttpSessionStore sessionStore) {
-        HttpSessionThreadLocal.setSessionStore(sessionStore);
+        this.sessionStore = sessionStore;
     }
 
     @Override
@@ -41,18 +39,16 @@ public class HttpSessionInterceptor implements ServletBridgeInterceptor {
 
         HttpSessionThreadLocal.unset();
 
-        Collection<Cookie> cookies = Utils.getCookies(
-                HttpSessionImpl.SESSION_ID_KEY, request);
-        if (cookies != null) {
-            for (Cookie cookie : cookies) {
-                String jsessionId = cookie.getValue();
-                HttpSessionImpl s = HttpSessionThreadLocal.getSessionStore()
-                        .findSession(jsessionId);
-                if (s != null) {
-                    HttpSessionThreadLocal.set(s);
-                    this.sessionRequestedByCookie = true;
-                    break;
-                }
+        RequestCookies cookies = RequestCookies.of(request);
+        for (int i = 0; i < cookies.size(); i++) {
+            if (!cookies.isNamed(i, HttpSessionImpl.SESSION_ID_KEY))
+                continue;
+
+            HttpSessionImpl s = this.sessionStore.findSession(cookies
+                    .getValue(i));
+            if (s != null) {
+                HttpSessionThreadLocal.set(s);
+                break;
             }
         }
     }
@@ -62,8 +58,14 @@ public class HttpSessionInterceptor implements ServletBridgeInterceptor {
                                    HttpResponse response) {
 
         HttpSessionImpl s = HttpSessionThreadLocal.get();
-        if (s != null && !this.sessionRequestedByCookie) {
-            HttpHeaders.addHeader(response, SET_COOKIE, ServerCookieEncoder.encode(HttpSessionImpl.SESSION_ID_KEY, s.getId()));
+        if (s != null && !isRequestedByCookie(s, request)) {
+            // scope the cookie to the webapp, so sessions of webapps mounted
+            // under other context paths are kept apart
+            Cookie cookie = new DefaultCookie(HttpSessionImpl.SESSION_ID_KEY, s.getId());
+            String contextPath = s.getServletContext() != null ? s
+                    .getServletContext().getContextPath() : "";
+            cookie.setPath(contextPath.length() > 0 ? contextPath : "/");
+            HttpHeaders.addHeader(response, SET_COOKIE, ServerCookieEncoder.encode(cookie));
         }
 
     }
@@ -71,8 +73,18 @@ public class HttpSessionInterceptor implements ServletBridgeInterceptor {
     @Override
     public void onRequestFailed(ChannelHandlerContext ctx, Throwable e,
                                 HttpResponse response) {
-        this.sessionRequestedByCookie = false;
         HttpSessionThreadLocal.unset();
     }
 
+    /**
+     * The interceptor is shared by all channels and may run on several
+     * threads at once, so this is derived from the request rather than kept
+     * in a field.
+     */
+    private static boolean isRequestedByCookie(HttpSessionImpl session,
+                                               HttpRequest request) {
+        return RequestCookies.of(request).contains(
+                HttpSessionImpl.SESSION_ID_KEY, session.getId());
+    }
+
 }
@@ -30,7 +30,7 @@ public class DefaultServletBridgeHttpSessionStore implements
     private static final Logger log = LoggerFactory
             .getLogger(DefaultServletBridgeHttpSessionStore.class);
 
-    public static ConcurrentHashMap<String, HttpSessionImpl> sessions = new ConcurrentHashMap<String, HttpSessionImpl>();
+    protected final ConcurrentHashMap<String, HttpSessionImpl> sessions = new ConcurrentHashMap<String, HttpSessionImpl>();
 
     @Override
     public HttpSessionImpl createSession() {
@@ -0,0 +1,128 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.util;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Parses Accept-Language headers into the locales they list, the most
+ * preferred first. Browsers send few distinct values, so parsed values are
+ * cached; the cache is emptied once it holds {@link #MAX_CACHED} values.
+ */
+public final class AcceptLanguage {
+
+    public static final int MAX_CACHED = 1024;
+
+    private static final ConcurrentHashMap<String, List<Locale>> CACHE = new ConcurrentHashMap<String, List<Locale>>();
+
+    private static final Comparator<Range> BY_QUALITY = new Comparator<Range>() {
+        @Override
+        public int compare(Range r1, Range r2) {
+            return Double.compare(r2.quality, r1.quality);
+        }
+    };
+
+    private AcceptLanguage() {
+    }
+
+    /**
+     * Returns the immutable list of locales of the given header, ordered by
+     * their q-values. Empty if there is no header or it names no locale.
+     */
+    public static List<Locale> getLocales(String header) {
+        if (header == null)
+            return Collections.emptyList();
+
+        List<Locale> locales = CACHE.get(header);
+        if (locales == null) {
+            locales = parse(header);
+            if (CACHE.size() >= MAX_CACHED)
+                CACHE.clear();
+            CACHE.put(header, locales);
+        }
+        return locales;
+    }
+
+    /**
+     * Same as {@link #getLocales(String)}, without caching.
+     */
+    public static List<Locale> parse(String header) {
+        List<Range> ranges = new ArrayList<Range>();
+        for (String element : header.split(",")) {
+            int semicolon = element.indexOf(';');
+            String tag = (semicolon < 0 ? element : element.substring(0,
+                    semicolon)).trim();
+            if (tag.length() == 0 || tag.equals("*"))
+                continue;
+
+            double quality = semicolon < 0 ? 1.0 : quality(element
+                    .substring(semicolon + 1));
+            if (quality <= 0)
+                continue;
+
+            Locale locale = Locale.forLanguageTag(tag.replace('_', '-'));
+            if (locale.getLanguage().length() > 0)
+                ranges.add(new Range(locale, quality));
+        }
+
+        // stable, so ranges of equal quality keep the client's order
+        Collections.sort(ranges, BY_QUALITY);
+
+        List<Locale> locales = new ArrayList<Locale>(ranges.size());
+        for (Range range : ranges) {
+            if (!locales.contains(range.locale))
+                locales.add(range.locale);
+        }
+        return Collections.unmodifiableList(locales);
+    }
+
+    /**
+     * Returns the q-value of the given parameters, 0 if it is malformed.
+     */
+    private static double quality(String parameters) {
+        for (String parameter : parameters.split(";")) {
+            parameter = parameter.trim();
+            if (parameter.length() > 2 && (parameter.charAt(0) == 'q'
+                    || parameter.charAt(0) == 'Q') && parameter.charAt(1) == '=') {
+                try {
+                    return Double.parseDouble(parameter.substring(2).trim());
+                } catch (NumberFormatException e) {
+                    return 0;
+                }
+            }
+        }
+        return 1.0;
+    }
+
+    private static final class Range {
+
+        final Locale locale;
+
+        final double quality;
+
+        Range(Locale locale, double quality) {
+            this.locale = locale;
+            this.quality = quality;
+        }
+    }
+}
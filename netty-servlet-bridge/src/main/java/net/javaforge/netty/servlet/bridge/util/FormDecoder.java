@@ -0,0 +1,99 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.util;
+
+import io.netty.buffer.ByteBuf;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Decodes <code>application/x-www-form-urlencoded</code> content directly
+ * from a buffer, without turning the whole content into a string first.
+ */
+public final class FormDecoder {
+
+    private FormDecoder() {
+    }
+
+    /**
+     * Adds the parameters of the given content to the given map, after the
+     * values already present.
+     */
+    public static void decode(ByteBuf content, Charset charset,
+                              Map<String, List<String>> parameters) {
+        int end = content.writerIndex();
+        byte[] scratch = new byte[64];
+        String name = null;
+        int start = content.readerIndex();
+
+        for (int i = start; i <= end; i++) {
+            byte b = i < end ? content.getByte(i) : (byte) '&';
+            if (b == '=' && name == null) {
+                name = decodeComponent(content, start, i, charset, scratch);
+                start = i + 1;
+            } else if (b == '&') {
+                if (name != null) {
+                    add(parameters, name, decodeComponent(content, start, i,
+                            charset, scratch));
+                } else if (i > start) {
+                    add(parameters, decodeComponent(content, start, i,
+                            charset, scratch), "");
+                }
+                name = null;
+                start = i + 1;
+            }
+        }
+    }
+
+    private static void add(Map<String, List<String>> parameters,
+                            String name, String value) {
+        List<String> values = parameters.get(name);
+        if (values == null) {
+            values = new ArrayList<String>(1);
+            parameters.put(name, values);
+        }
+        values.add(value);
+    }
+
+    private static String decodeComponent(ByteBuf content, int from, int to,
+                                          Charset charset, byte[] scratch) {
+        if (scratch.length < to - from)
+            scratch = new byte[to - from];
+
+        int length = 0;
+        for (int i = from; i < to; i++) {
+            byte b = content.getByte(i);
+            if (b == '+') {
+                b = ' ';
+            } else if (b == '%' && i + 2 < to) {
+                int hi = Character.digit(content.getByte(i + 1), 16);
+                int lo = Character.digit(content.getByte(i + 2), 16);
+                if (hi != -1 && lo != -1) {
+                    b = (byte) ((hi << 4) + lo);
+                    i += 2;
+                }
+            }
+            scratch[length++] = b;
+        }
+        return new String(scratch, 0, length, charset);
+    }
+
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.util;
+
+import io.netty.handler.codec.AsciiString;
+import io.netty.handler.codec.http.HttpHeaders;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * {@link AsciiString} constants of the header names read on every request.
+ * Netty's header maps hash a plain string name case insensitively on every
+ * lookup, the hash of an ascii string is computed once.
+ */
+public final class HeaderNames {
+
+    public static final AsciiString ACCEPT_LANGUAGE = new AsciiString(
+            HttpHeaders.Names.ACCEPT_LANGUAGE);
+
+    public static final AsciiString CONNECTION = new AsciiString(
+            HttpHeaders.Names.CONNECTION);
+
+    public static final AsciiString CONTENT_LENGTH = new AsciiString(
+            HttpHeaders.Names.CONTENT_LENGTH);
+
+    public static final AsciiString CONTENT_TYPE = new AsciiString(
+            HttpHeaders.Names.CONTENT_TYPE);
+
+    public static final AsciiString COOKIE = new AsciiString(
+            HttpHeaders.Names.COOKIE);
+
+    public static final AsciiString HOST = new AsciiString(
+            HttpHeaders.Names.HOST);
+
+    public static final AsciiString FORWARDED = new AsciiString("Forwarded");
+
+    public static final AsciiString X_FORWARDED_FOR = new AsciiString(
+            "X-Forwarded-For");
+
+    public static final AsciiString X_FORWARDED_HOST = new AsciiString(
+            "X-Forwarded-Host");
+
+    public static final AsciiString X_FORWARDED_PORT = new AsciiString(
+            "X-Forwarded-Port");
+
+    public static final AsciiString X_FORWARDED_PROTO = new AsciiString(
+            "X-Forwarded-Proto");
+
+    /**
+     * Constants of all names known to Netty, by their usual spelling and in
+     * lower case.
+     */
+    private static final Map<String, AsciiString> NAMES = new HashMap<String, AsciiString>();
+
+    static {
+        AsciiString[] constants = {ACCEPT_LANGUAGE, CONNECTION,
+                CONTENT_LENGTH, CONTENT_TYPE, COOKIE, HOST, FORWARDED,
+                X_FORWARDED_FOR, X_FORWARDED_HOST, X_FORWARDED_PORT,
+                X_FORWARDED_PROTO};
+        for (AsciiString constant : constants)
+            register(constant);
+
+        for (Field field : HttpHeaders.Names.class.getFields()) {
+            if (!Modifier.isStatic(field.getModifiers())
+                    || field.getType() != String.class)
+                continue;
+            try {
+                String name = (String) field.get(null);
+                if (!NAMES.containsKey(name))
+                    register(new AsciiString(name));
+            } catch (IllegalAccessException e) {
+                // public constant, cannot happen
+            }
+        }
+    }
+
+    private HeaderNames() {
+    }
+
+    private static void register(AsciiString name) {
+        String string = name.toString();
+        NAMES.put(string, name);
+        NAMES.put(string.toLowerCase(Locale.ENGLISH), name);
+    }
+
+    /**
+     * Returns the constant of the given header name, or the name itself if
+     * it is not a well known one.
+     */
+    public static CharSequence of(String name) {
+        AsciiString constant = NAMES.get(name);
+        return constant != null ? constant : name;
+    }
+}
@@ -0,0 +1,230 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.util;
+
+import io.netty.util.concurrent.FastThreadLocal;
+
+/**
+ * Parses HTTP dates (RFC 7231, section 7.1.1.1) without allocating: the
+ * preferred RFC 1123 format <code>Sun, 06 Nov 1994 08:49:37 GMT</code> as
+ * well as the obsolete RFC 850 <code>Sunday, 06-Nov-94 08:49:37 GMT</code>
+ * and asctime <code>Sun Nov  6 08:49:37 1994</code> formats.
+ * <p/>
+ * Clients send the same dates over and over, e.g. the Last-Modified value
+ * of a resource back as If-Modified-Since, so the last parsed values are
+ * kept per thread.
+ */
+public final class HttpDateParser {
+
+    /**
+     * Returned for a value which is not an HTTP date.
+     */
+    public static final long INVALID = Long.MIN_VALUE;
+
+    private static final String MONTHS = "janfebmaraprmayjunjulaugsepoctnovdec";
+
+    private static final int CACHE_SIZE = 8;
+
+    private static final FastThreadLocal<Cache> CACHE = new FastThreadLocal<Cache>() {
+        @Override
+        protected Cache initialValue() {
+            return new Cache();
+        }
+    };
+
+    private HttpDateParser() {
+    }
+
+    /**
+     * Returns the milliseconds since the epoch of the given HTTP date, or
+     * {@link #INVALID} if it is none. Recently parsed values are answered
+     * from a per thread cache.
+     */
+    public static long parse(String value) {
+        return CACHE.get().parse(value);
+    }
+
+    /**
+     * Same as {@link #parse(String)}, without caching.
+     */
+    public static long parseDate(CharSequence s) {
+        int len = s.length();
+        int i = 0;
+        while (i < len && isLetter(s.charAt(i)))
+            i++;
+        if (i < 3 || i >= len)
+            return INVALID;
+
+        int day;
+        int month;
+        int year;
+        int time;
+        if (s.charAt(i) == ',') {
+            // RFC 1123 or RFC 850
+            i++;
+            while (i < len && s.charAt(i) == ' ')
+                i++;
+            int start = i;
+            day = 0;
+            while (i < len && isDigit(s.charAt(i)))
+                day = day * 10 + s.charAt(i++) - '0';
+            if (i == start || i - start > 2 || i + 5 > len)
+                return INVALID;
+
+            char separator = s.charAt(i);
+            if (separator != ' ' && separator != '-')
+                return INVALID;
+            month = month(s, i + 1);
+            i += 4;
+            if (month < 0 || s.charAt(i) != separator)
+                return INVALID;
+
+            start = ++i;
+            year = 0;
+            while (i < len && isDigit(s.charAt(i)))
+                year = year * 10 + s.charAt(i++) - '0';
+            if (i - start == 2)
+                year += year < 70 ? 2000 : 1900;
+            else if (i - start != 4)
+                return INVALID;
+
+            if (i + 13 != len || s.charAt(i) != ' ' || s.charAt(i + 9) != ' '
+                    || s.charAt(i + 10) != 'G' || s.charAt(i + 11) != 'M'
+                    || s.charAt(i + 12) != 'T')
+                return INVALID;
+            time = time(s, i + 1);
+        } else {
+            // asctime: the day is padded with a space, the year comes last
+            if (s.charAt(i) != ' ' || i + 21 != len)
+                return INVALID;
+            month = month(s, i + 1);
+            i += 4;
+            if (month < 0 || s.charAt(i) != ' ')
+                return INVALID;
+
+            char tens = s.charAt(i + 1);
+            char ones = s.charAt(i + 2);
+            if (!isDigit(ones) || (tens != ' ' && !isDigit(tens))
+                    || s.charAt(i + 3) != ' ' || s.charAt(i + 12) != ' ')
+                return INVALID;
+            day = (tens == ' ' ? 0 : (tens - '0') * 10) + ones - '0';
+            time = time(s, i + 4);
+
+            year = 0;
+            for (int j = i + 13; j < len; j++) {
+                char c = s.charAt(j);
+                if (!isDigit(c))
+                    return INVALID;
+                year = year * 10 + c - '0';
+            }
+        }
+
+        if (time < 0 || day < 1 || day > 31)
+            return INVALID;
+
+        return (daysSinceEpoch(year, month + 1, day) * 86400L + time) * 1000L;
+    }
+
+    /**
+     * Returns the seconds of the day of a <code>hh:mm:ss</code> time at the
+     * given index, -1 if there is none.
+     */
+    private static int time(CharSequence s, int i) {
+        if (s.charAt(i + 2) != ':' || s.charAt(i + 5) != ':')
+            return -1;
+
+        int hours = twoDigits(s, i);
+        int minutes = twoDigits(s, i + 3);
+        int seconds = twoDigits(s, i + 6);
+        if (hours < 0 || hours > 23 || minutes < 0 || minutes > 59
+                || seconds < 0 || seconds > 60)
+            return -1;
+
+        return hours * 3600 + minutes * 60 + seconds;
+    }
+
+    private static int twoDigits(CharSequence s, int i) {
+        char tens = s.charAt(i);
+        char ones = s.charAt(i + 1);
+        if (!isDigit(tens) || !isDigit(ones))
+            return -1;
+        return (tens - '0') * 10 + ones - '0';
+    }
+
+    /**
+     * Returns the month (0 to 11) of the three letter abbreviation at the
+     * given index, -1 if there is none.
+     */
+    private static int month(CharSequence s, int i) {
+        char a = (char) (s.charAt(i) | 0x20);
+        char b = (char) (s.charAt(i + 1) | 0x20);
+        char c = (char) (s.charAt(i + 2) | 0x20);
+        for (int m = 0; m < 12; m++) {
+            if (MONTHS.charAt(m * 3) == a && MONTHS.charAt(m * 3 + 1) == b
+                    && MONTHS.charAt(m * 3 + 2) == c)
+                return m;
+        }
+        return -1;
+    }
+
+    /**
+     * Days from 1970-01-01 to the given date of the proleptic Gregorian
+     * calendar.
+     */
+    private static long daysSinceEpoch(int year, int month, int day) {
+        int y = month <= 2 ? year - 1 : year;
+        int era = (y >= 0 ? y : y - 399) / 400;
+        int yearOfEra = y - era * 400;
+        int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+        int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100
+                + dayOfYear;
+        return era * 146097L + dayOfEra - 719468;
+    }
+
+    private static boolean isLetter(char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z');
+    }
+
+    private static boolean isDigit(char c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private static final class Cache {
+
+        private final String[] values = new String[CACHE_SIZE];
+
+        private final long[] dates = new long[CACHE_SIZE];
+
+        private int next;
+
+        long parse(String value) {
+            for (int i = 0; i < CACHE_SIZE; i++) {
+                if (value.equals(values[i]))
+                    return dates[i];
+            }
+
+            long date = parseDate(value);
+            if (date != INVALID) {
+                values[next] = value;
+                dates[next] = date;
+                next = (next + 1) % CACHE_SIZE;
+            }
+            return date;
+        }
+    }
+}
@@ -170,44 +170,20 @@ public final class Utils {
         return uri;
     }
 
+    /**
+     * Returns the locales of the given Accept-Language header ordered by
+     * their q-values, <code>null</code> if there is no header.
+     *
+     * @see AcceptLanguage
+     */
     public static final Collection<Locale> parseAcceptLanguageHeader(
             String acceptLanguageHeader) {
 
         if (acceptLanguageHeader == null)
             return null;
 
-        List<Locale> locales = new ArrayList<Locale>();
-
-        for (String str : acceptLanguageHeader.split(",")) {
-            String[] arr = str.trim().replace("-", "_").split(";");
-
-            // Parse the locale
-            Locale locale = null;
-            String[] l = arr[0].split("_");
-            switch (l.length) {
-                case 2:
-                    locale = new Locale(l[0], l[1]);
-                    break;
-                case 3:
-                    locale = new Locale(l[0], l[1], l[2]);
-                    break;
-                default:
-                    locale = new Locale(l[0]);
-                    break;
-            }
-
-            // Parse the q-value
-            /*
-             * Double q = 1.0D; for (String s : arr) { s = s.trim(); if
-			 * (s.startsWith("q=")) { q =
-			 * Double.parseDouble(s.substring(2).trim()); break; } }
-			 */
-
-            locales.add(locale);
-        }
-
-        return locales;
-
+        return new ArrayList<Locale>(
+                AcceptLanguage.getLocales(acceptLanguageHeader));
     }
 
 }
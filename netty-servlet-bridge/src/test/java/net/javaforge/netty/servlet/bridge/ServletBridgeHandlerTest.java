@@ -0,0 +1,263 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.buffer.ByteBuf;
+import io.netty.channel.*;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import io.netty.util.CharsetUtil;
+import net.javaforge.netty.servlet.bridge.config.ServletConfiguration;
+import net.javaforge.netty.servlet.bridge.config.WebappConfiguration;
+import org.junit.After;
+import org.junit.Test;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ServletBridgeHandlerTest {
+
+    public static class FailingServlet extends HttpServlet {
+
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            throw new ServletException("failed");
+        }
+    }
+
+    public static class FormServlet extends HttpServlet {
+
+        @Override
+        protected void service(HttpServletRequest req, HttpServletResponse resp)
+                throws ServletException, IOException {
+            resp.getWriter().print("a=" + req.getParameter("a"));
+        }
+    }
+
+    public static class FormFilter implements Filter {
+
+        @Override
+        public void init(FilterConfig filterConfig) {
+        }
+
+        @Override
+        public void doFilter(ServletRequest request, ServletResponse response,
+                             FilterChain chain) throws IOException {
+            response.getWriter().print("a=" + request.getParameter("a"));
+        }
+
+        @Override
+        public void destroy() {
+        }
+    }
+
+    private final AtomicInteger responses = new AtomicInteger();
+
+    /**
+     * Milliseconds every write is held back for, keeping the connection
+     * open after a response so late writes get through as well.
+     */
+    private long writeDelay;
+
+    private EventLoopGroup group;
+
+    private ServletBridgeChannelPipelineFactory factory;
+
+    private Channel server;
+
+    private ExecutorService executor;
+
+    @After
+    public void tearDown() throws Exception {
+        if (server != null)
+            server.close().sync();
+        if (factory != null)
+            factory.shutdown();
+        if (group != null)
+            group.shutdownGracefully().sync();
+        if (executor != null)
+            executor.shutdownNow();
+    }
+
+    @Test
+    public void failedRequestIsAnsweredOnceDespiteDeadline() throws Exception {
+        writeDelay = 300;
+        int port = start(new ServletBridgeChannelPipelineFactory(
+                new WebappConfiguration().addServletConfigurations(
+                        new ServletConfiguration(FailingServlet.class, "/*")))
+                .setRequestDeadline(100).setPipelining(0, 0));
+
+        String response = request(port, "GET /fail HTTP/1.1\r\nHost: localhost\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 500"));
+
+        // the deadline expired while the response was held back, it must
+        // not have answered the request a second time
+        assertEquals(1, responses.get());
+    }
+
+    @Test
+    public void decodesFormsOfFilterOnlyPaths() throws Exception {
+        int port = start(new ServletBridgeChannelPipelineFactory(
+                new WebappConfiguration().addFilter(FormFilter.class,
+                        "/filtered/*")));
+
+        String response = request(port, "POST /filtered/x HTTP/1.1\r\n"
+                + "Host: localhost\r\nConnection: close\r\n"
+                + "Content-Type: application/x-www-form-urlencoded\r\n"
+                + "Content-Length: 3\r\n\r\na=1");
+        assertTrue(response, response.startsWith("HTTP/1.1 200"));
+        assertTrue(response, response.endsWith("a=1"));
+    }
+
+    @Test
+    public void rejectsOversizedFormsWith413() throws Exception {
+        executor = Executors.newCachedThreadPool();
+        int port = start(new ServletBridgeChannelPipelineFactory(
+                new WebappConfiguration().addServletConfigurations(
+                        new ServletConfiguration(FormServlet.class, "/limited/*")
+                                .setMaxRequestSize(100),
+                        new ServletConfiguration(FormServlet.class, "/*")))
+                .setDispatchExecutor(executor));
+
+        // over the limit of the servlet, noticed while reading the body
+        StringBuilder form = new StringBuilder("a=");
+        while (form.length() < 200)
+            form.append('x');
+        String response = request(port, "POST /limited/x HTTP/1.1\r\n"
+                + "Host: localhost\r\n"
+                + "Content-Type: application/x-www-form-urlencoded\r\n"
+                + "Transfer-Encoding: chunked\r\n\r\n"
+                + Integer.toHexString(form.length()) + "\r\n" + form
+                + "\r\n0\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 413"));
+
+        // over the default limit, announced by the content length
+        response = request(port, "POST /x HTTP/1.1\r\nHost: localhost\r\n"
+                + "Content-Type: application/x-www-form-urlencoded\r\n"
+                + "Content-Length: 3000000\r\n\r\na=");
+        assertTrue(response, response.startsWith("HTTP/1.1 413"));
+
+        response = request(port, "POST /x HTTP/1.1\r\nHost: localhost\r\n"
+                + "Connection: close\r\n"
+                + "Content-Type: application/x-www-form-urlencoded\r\n"
+                + "Content-Length: 3\r\n\r\na=1");
+        assertTrue(response, response.endsWith("a=1"));
+    }
+
+    @Test
+    public void limitsBodiesReceivedOnTheEventLoop() throws Exception {
+        int port = start(new ServletBridgeChannelPipelineFactory(
+                new WebappConfiguration().addServletConfigurations(
+                        new ServletConfiguration(FormServlet.class, "/*"))));
+
+        String response = request(port, "POST /x HTTP/1.1\r\nHost: localhost\r\n"
+                + "Content-Type: application/octet-stream\r\n"
+                + "Content-Length: "
+                + (ServletBridgeHandler.DEFAULT_MAX_EVENT_LOOP_REQUEST_SIZE + 1)
+                + "\r\n\r\n");
+        assertTrue(response, response.startsWith("HTTP/1.1 413"));
+    }
+
+    /**
+     * Starts a server counting the responses written by the bridge.
+     */
+    private int start(final ServletBridgeChannelPipelineFactory factory)
+            throws InterruptedException {
+        this.factory = factory;
+        this.group = new NioEventLoopGroup(1);
+        this.server = new ServerBootstrap().group(group)
+                .channel(NioServerSocketChannel.class)
+                .childHandler(new ChannelInitializer<Channel>() {
+                    @Override
+                    protected void initChannel(Channel ch) {
+                        ch.pipeline().addLast(new ChannelOutboundHandlerAdapter() {
+                            @Override
+                            public void write(final ChannelHandlerContext ctx,
+                                              final Object msg,
+                                              final ChannelPromise promise) {
+                                // encoded status lines, ahead of the encoder
+                                if (msg instanceof ByteBuf
+                                        && isStatusLine((ByteBuf) msg))
+                                    responses.incrementAndGet();
+
+                                if (writeDelay <= 0) {
+                                    ctx.write(msg, promise);
+                                    return;
+                                }
+                                ctx.executor().schedule(new Runnable() {
+                                    @Override
+                                    public void run() {
+                                        ctx.writeAndFlush(msg, promise);
+                                    }
+                                }, writeDelay, TimeUnit.MILLISECONDS);
+                            }
+
+                            @Override
+                            public void flush(ChannelHandlerContext ctx) {
+                                // delayed writes are flushed when written
+                                if (writeDelay <= 0)
+                                    ctx.flush();
+                            }
+                        }, factory);
+                    }
+                }).bind(0).sync().channel();
+        return ((InetSocketAddress) server.localAddress()).getPort();
+    }
+
+    private static boolean isStatusLine(ByteBuf buf) {
+        return buf.readableBytes() >= 5 && buf.toString(buf.readerIndex(), 5,
+                CharsetUtil.US_ASCII).equals("HTTP/");
+    }
+
+    /**
+     * Sends the given raw request and returns what the server answers until
+     * it closes the connection.
+     */
+    private static String request(int port, String request) throws IOException {
+        Socket socket = new Socket("localhost", port);
+        try {
+            socket.setSoTimeout(5000);
+            socket.getOutputStream().write(request.getBytes("ISO-8859-1"));
+            InputStream in = socket.getInputStream();
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            int n;
+            while ((n = in.read(buf)) != -1)
+                out.write(buf, 0, n);
+            return out.toString("ISO-8859-1");
+        } finally {
+            socket.close();
+        }
+    }
+}
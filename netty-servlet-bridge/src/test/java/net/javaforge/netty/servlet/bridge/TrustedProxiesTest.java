@@ -0,0 +1,199 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge;
+
+import io.netty.handler.codec.http.DefaultHttpRequest;
+import io.netty.handler.codec.http.HttpMethod;
+import io.netty.handler.codec.http.HttpRequest;
+import io.netty.handler.codec.http.HttpVersion;
+import org.junit.Test;
+
+import java.net.InetSocketAddress;
+
+import static org.junit.Assert.*;
+
+public class TrustedProxiesTest {
+
+    private final TrustedProxies proxies = new TrustedProxies("10.0.0.0/8",
+            "192.168.1.128/25", "::1", "fd00::/8");
+
+    @Test
+    public void matchesNetworks() {
+        assertTrue(proxies.isTrusted("10.0.0.1"));
+        assertTrue(proxies.isTrusted("10.255.1.2"));
+        assertFalse(proxies.isTrusted("11.0.0.1"));
+        assertTrue(proxies.isTrusted("192.168.1.128"));
+        assertTrue(proxies.isTrusted("192.168.1.255"));
+        assertFalse(proxies.isTrusted("192.168.1.127"));
+        assertTrue(proxies.isTrusted("::1"));
+        assertTrue(proxies.isTrusted("0:0:0:0:0:0:0:1"));
+        assertFalse(proxies.isTrusted("::2"));
+        assertTrue(proxies.isTrusted("fd12:3456::1"));
+        assertFalse(proxies.isTrusted("fe80::1"));
+    }
+
+    @Test
+    public void matchesSingleAddressesAndEverything() {
+        TrustedProxies single = new TrustedProxies("203.0.113.7");
+        assertTrue(single.isTrusted("203.0.113.7"));
+        assertFalse(single.isTrusted("203.0.113.6"));
+
+        TrustedProxies all = new TrustedProxies("0.0.0.0/0");
+        assertTrue(all.isTrusted("198.51.100.1"));
+        assertFalse(all.isTrusted("::1"));
+    }
+
+    @Test
+    public void neverTrustsHostNames() {
+        assertFalse(proxies.isTrusted("localhost"));
+        assertFalse(proxies.isTrusted("proxy.example.com"));
+        assertFalse(proxies.isTrusted("proxy:8080"));
+        assertFalse(proxies.isTrusted("a:b"));
+        assertFalse(proxies.isTrusted(".:1"));
+        assertFalse(proxies.isTrusted("10.0.0"));
+        assertFalse(proxies.isTrusted("10.0.0.256"));
+        assertFalse(proxies.isTrusted("10.0.0.1.2"));
+        assertFalse(proxies.isTrusted(""));
+        assertFalse(proxies.isTrusted((String) null));
+    }
+
+    @Test
+    public void rejectsInvalidConfiguration() {
+        assertInvalid("proxy.example.com");
+        assertInvalid("10.0.0.0/33");
+        assertInvalid("10.0.0.0/x");
+        assertInvalid("::1/129");
+    }
+
+    @Test
+    public void ignoresHeadersOfUntrustedPeers() {
+        HttpRequest request = request();
+        request.headers().add("X-Forwarded-For", "203.0.113.7");
+        assertNull(proxies.resolve(request, peer("198.51.100.1")));
+    }
+
+    @Test
+    public void ignoresRequestsWithoutHeaders() {
+        assertNull(proxies.resolve(request(), peer("10.0.0.1")));
+    }
+
+    @Test
+    public void selectsRightmostUntrustedForwardedFor() {
+        HttpRequest request = request();
+        request.headers().add("X-Forwarded-For", "198.51.100.1, 203.0.113.7");
+        request.headers().add("X-Forwarded-For", "10.0.0.2");
+        request.headers().add("X-Forwarded-Proto", "http, https, http");
+        request.headers().add("X-Forwarded-Host", "example.com");
+
+        TrustedProxies.Forwarded forwarded = proxies.resolve(request,
+                peer("10.0.0.1"));
+        assertEquals("203.0.113.7", forwarded.getRemoteAddr());
+        assertEquals(4711, forwarded.getRemotePort());
+        assertEquals("https", forwarded.getScheme());
+        assertEquals("example.com", forwarded.getHost());
+        assertEquals(-1, forwarded.getPort());
+    }
+
+    @Test
+    public void takesNearestValueIfNotEveryHopReported() {
+        HttpRequest request = request();
+        request.headers().add("X-Forwarded-For", "203.0.113.7:1234, 10.0.0.2");
+        request.headers().add("X-Forwarded-Proto", "HTTPS");
+        request.headers().add("X-Forwarded-Port", "8443");
+
+        TrustedProxies.Forwarded forwarded = proxies.resolve(request,
+                peer("10.0.0.1"));
+        assertEquals("203.0.113.7", forwarded.getRemoteAddr());
+        assertEquals(1234, forwarded.getRemotePort());
+        assertEquals("https", forwarded.getScheme());
+        assertEquals(8443, forwarded.getPort());
+    }
+
+    @Test
+    public void stopsAtMalformedForwardedFor() {
+        HttpRequest request = request();
+        request.headers().add("X-Forwarded-For", "203.0.113.7, unknown, 10.0.0.2");
+
+        assertEquals("10.0.0.2", proxies.resolve(request, peer("10.0.0.1"))
+                .getRemoteAddr());
+    }
+
+    @Test
+    public void keepsOutermostProxyIfAllAreTrusted() {
+        HttpRequest request = request();
+        request.headers().add("X-Forwarded-For", "10.0.0.3, 10.0.0.2");
+
+        assertEquals("10.0.0.3", proxies.resolve(request, peer("10.0.0.1"))
+                .getRemoteAddr());
+    }
+
+    @Test
+    public void selectsRightmostUntrustedForwardedElement() {
+        HttpRequest request = request();
+        request.headers().add("Forwarded",
+                "for=198.51.100.1;proto=http, for=192.0.2.60;proto=https;host=example.com");
+        request.headers().add("Forwarded", "for=10.0.0.2;proto=http");
+        request.headers().add("X-Forwarded-For", "203.0.113.7");
+
+        TrustedProxies.Forwarded forwarded = proxies.resolve(request,
+                peer("10.0.0.1"));
+        assertEquals("192.0.2.60", forwarded.getRemoteAddr());
+        assertEquals(4711, forwarded.getRemotePort());
+        assertEquals("https", forwarded.getScheme());
+        assertEquals("example.com", forwarded.getHost());
+    }
+
+    @Test
+    public void parsesQuotedIpv6Nodes() {
+        HttpRequest request = request();
+        request.headers().add("Forwarded",
+                "For=\"[2001:db8:cafe::17]:4711\";Proto=https, for=\"[fd00::2]\"");
+
+        TrustedProxies.Forwarded forwarded = proxies.resolve(request,
+                peer("::1"));
+        assertEquals("2001:db8:cafe::17", forwarded.getRemoteAddr());
+        assertEquals(4711, forwarded.getRemotePort());
+        assertEquals("https", forwarded.getScheme());
+    }
+
+    @Test
+    public void stopsAtObfuscatedForwardedElement() {
+        HttpRequest request = request();
+        request.headers().add("Forwarded", "for=203.0.113.7, for=_hidden, for=10.0.0.2");
+
+        assertEquals("10.0.0.2", proxies.resolve(request, peer("10.0.0.1"))
+                .getRemoteAddr());
+    }
+
+    private static void assertInvalid(String proxy) {
+        try {
+            new TrustedProxies(proxy);
+            fail(proxy);
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    private static HttpRequest request() {
+        return new DefaultHttpRequest(HttpVersion.HTTP_1_1, HttpMethod.GET, "/");
+    }
+
+    private static ConnectionAddresses peer(String address) {
+        return new ConnectionAddresses(new InetSocketAddress("127.0.0.1", 8080),
+                new InetSocketAddress(address, 4711), false);
+    }
+}
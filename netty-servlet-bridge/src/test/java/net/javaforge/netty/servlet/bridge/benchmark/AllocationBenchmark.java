@@ -0,0 +1,193 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge.benchmark;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import net.javaforge.netty.servlet.bridge.ServletBridgeChannelPipelineFactory;
+import net.javaforge.netty.servlet.bridge.config.ServletConfiguration;
+import net.javaforge.netty.servlet.bridge.config.WebappConfiguration;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * Measures the heap allocated per simple GET request, summed over all
+ * threads of the process but the one running the client.
+ * <p/>
+ * One client sends its requests one after another over a keep-alive
+ * connection. The servlet reads a header and writes a short body through
+ * the output stream, so neither the request body nor the writer is used.
+ * Requires a JVM supporting thread allocation accounting (HotSpot):
+ * <p/>
+ * <code>java AllocationBenchmark [warmupRequests] [requests]</code>
+ */
+public class AllocationBenchmark {
+
+    private static final byte[] REQUEST = ("GET /hello?name=world HTTP/1.1\r\n"
+            + "Host: localhost\r\nConnection: keep-alive\r\n"
+            + "User-Agent: AllocationBenchmark\r\n\r\n").getBytes();
+
+    private static final byte[] BODY = "hello".getBytes();
+
+    public static class HelloServlet extends HttpServlet {
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws IOException {
+            req.getHeader("User-Agent");
+            resp.setContentType("text/plain");
+            resp.getOutputStream().write(BODY);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int warmup = args.length > 0 ? Integer.parseInt(args[0]) : 50000;
+        int requests = args.length > 1 ? Integer.parseInt(args[1]) : 100000;
+
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) ManagementFactory
+                .getThreadMXBean();
+        if (!threads.isThreadAllocatedMemorySupported()) {
+            System.out.println("thread allocation accounting not supported");
+            return;
+        }
+        threads.setThreadAllocatedMemoryEnabled(true);
+
+        WebappConfiguration webapp = new WebappConfiguration()
+                .addServletConfigurations(new ServletConfiguration(
+                        HelloServlet.class, "/hello"));
+        ServletBridgeChannelPipelineFactory factory = new ServletBridgeChannelPipelineFactory(
+                webapp);
+
+        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
+        EventLoopGroup workerGroup = new NioEventLoopGroup(1);
+        Socket socket = null;
+        try {
+            Channel server = new ServerBootstrap()
+                    .group(bossGroup, workerGroup)
+                    .channel(NioServerSocketChannel.class)
+                    .childHandler(factory).bind(0).sync().channel();
+            int port = ((InetSocketAddress) server.localAddress()).getPort();
+
+            socket = new Socket("localhost", port);
+            OutputStream out = socket.getOutputStream();
+            InputStream in = socket.getInputStream();
+            byte[] buffer = new byte[4096];
+
+            send(out, in, buffer, warmup);
+
+            long before = allocatedBytes(threads);
+            long start = System.nanoTime();
+            send(out, in, buffer, requests);
+            long elapsed = System.nanoTime() - start;
+            long allocated = allocatedBytes(threads) - before;
+
+            System.out.printf("%d requests, %10.0f req/s, %8.0f bytes/request%n",
+                    requests, requests / (elapsed / 1e9),
+                    allocated / (double) requests);
+        } finally {
+            close(socket);
+            factory.shutdown();
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully();
+        }
+    }
+
+    private static void send(OutputStream out, InputStream in, byte[] buffer,
+                             int requests) throws IOException {
+        for (int i = 0; i < requests; i++) {
+            out.write(REQUEST);
+            out.flush();
+            if (!readResponse(in, buffer))
+                throw new IOException("unexpected response");
+        }
+    }
+
+    private static long allocatedBytes(com.sun.management.ThreadMXBean threads) {
+        long[] ids = threads.getAllThreadIds();
+        long[] allocated = threads.getThreadAllocatedBytes(ids);
+        long client = Thread.currentThread().getId();
+        long total = 0;
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != client && allocated[i] > 0)
+                total += allocated[i];
+        }
+        return total;
+    }
+
+    /**
+     * Reads one response consisting of headers with a Content-Length and a
+     * body, returns <code>false</code> for anything but 200.
+     */
+    private static boolean readResponse(InputStream in, byte[] buffer)
+            throws IOException {
+        int length = 0;
+        int headerEnd = -1;
+        while (headerEnd < 0) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0)
+                return false;
+            length += read;
+            headerEnd = indexOfHeaderEnd(buffer, length);
+        }
+
+        String headers = new String(buffer, 0, headerEnd, "ISO-8859-1");
+        int contentLength = 0;
+        for (String line : headers.split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15))
+                contentLength = Integer.parseInt(line.substring(15).trim());
+        }
+
+        int remaining = headerEnd + 4 + contentLength - length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (read < 0)
+                return false;
+            remaining -= read;
+        }
+        return headers.startsWith("HTTP/1.1 200");
+    }
+
+    private static int indexOfHeaderEnd(byte[] buffer, int length) {
+        for (int i = 0; i + 3 < length; i++) {
+            if (buffer[i] == '\r' && buffer[i + 1] == '\n'
+                    && buffer[i + 2] == '\r' && buffer[i + 3] == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    private static void close(Socket socket) {
+        if (socket == null)
+            return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,220 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+package net.javaforge.netty.servlet.bridge.benchmark;
+
+import io.netty.bootstrap.ServerBootstrap;
+import io.netty.channel.Channel;
+import io.netty.channel.EventLoopGroup;
+import io.netty.channel.nio.NioEventLoopGroup;
+import io.netty.channel.socket.nio.NioServerSocketChannel;
+import net.javaforge.netty.servlet.bridge.ServletBridgeChannelPipelineFactory;
+import net.javaforge.netty.servlet.bridge.config.ServletConfiguration;
+import net.javaforge.netty.servlet.bridge.config.WebappConfiguration;
+import net.javaforge.netty.servlet.bridge.dispatch.ServletBridgeExecutors;
+
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Compares the pooled and the virtual thread dispatch modes with a servlet
+ * blocking for a fixed time per request, like one waiting for a database.
+ * <p/>
+ * Every client keeps one connection open and sends its requests one after
+ * another, so the number of clients is the number of concurrent requests.
+ * Run with Java 21 or later to include the virtual thread mode:
+ * <p/>
+ * <code>java DispatchBenchmark [clients] [seconds] [blockMillis] [poolSize]</code>
+ */
+public class DispatchBenchmark {
+
+    private static final byte[] REQUEST = ("GET /block HTTP/1.1\r\n"
+            + "Host: localhost\r\nConnection: keep-alive\r\n\r\n").getBytes();
+
+    public static class BlockingServlet extends HttpServlet {
+
+        static volatile long blockMillis;
+
+        @Override
+        protected void doGet(HttpServletRequest req, HttpServletResponse resp)
+                throws IOException {
+            try {
+                Thread.sleep(blockMillis);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            resp.getWriter().print("ok");
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        int clients = args.length > 0 ? Integer.parseInt(args[0]) : 1000;
+        int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+        BlockingServlet.blockMillis = args.length > 2 ? Long.parseLong(args[2]) : 50;
+        int poolSize = args.length > 3 ? Integer.parseInt(args[3]) : 200;
+
+        System.out.printf("%d clients, %d s, %d ms blocking per request%n",
+                clients, seconds, BlockingServlet.blockMillis);
+
+        ExecutorService pooled = ServletBridgeExecutors.newBoundedExecutor(
+                "servlet", poolSize, clients);
+        run("pooled(" + poolSize + ")", pooled, clients, seconds);
+        pooled.shutdown();
+
+        if (ServletBridgeExecutors.isVirtualThreadSupported()) {
+            ExecutorService virtual = ServletBridgeExecutors
+                    .newVirtualThreadPerTaskExecutor("servlet");
+            run("virtual", virtual, clients, seconds);
+            virtual.shutdown();
+        } else {
+            System.out.println("virtual: skipped, requires Java 21 or later");
+        }
+    }
+
+    private static void run(String mode, ExecutorService executor,
+                            int clients, int seconds) throws Exception {
+
+        WebappConfiguration webapp = new WebappConfiguration()
+                .addServletConfigurations(new ServletConfiguration(
+                        BlockingServlet.class, "/block"));
+        ServletBridgeChannelPipelineFactory factory = new ServletBridgeChannelPipelineFactory(
+                webapp).setDispatchExecutor(executor);
+
+        EventLoopGroup bossGroup = new NioEventLoopGroup(1);
+        EventLoopGroup workerGroup = new NioEventLoopGroup();
+        try {
+            Channel server = new ServerBootstrap()
+                    .group(bossGroup, workerGroup)
+                    .channel(NioServerSocketChannel.class)
+                    .childHandler(factory).bind(0).sync().channel();
+            int port = ((InetSocketAddress) server.localAddress()).getPort();
+
+            final AtomicLong requests = new AtomicLong();
+            final AtomicLong errors = new AtomicLong();
+            final long deadline = System.nanoTime()
+                    + TimeUnit.SECONDS.toNanos(seconds);
+            CountDownLatch done = new CountDownLatch(clients);
+
+            for (int i = 0; i < clients; i++)
+                startClient(port, deadline, requests, errors, done);
+
+            done.await();
+            server.close().sync();
+
+            System.out.printf("%-14s %10.0f req/s %8d errors%n", mode,
+                    requests.get() / (double) seconds, errors.get());
+        } finally {
+            factory.shutdown();
+            bossGroup.shutdownGracefully();
+            workerGroup.shutdownGracefully();
+        }
+    }
+
+    private static void startClient(final int port, final long deadline,
+                                    final AtomicLong requests, final AtomicLong errors,
+                                    final CountDownLatch done) {
+        Thread client = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[4096];
+                Socket socket = null;
+                try {
+                    socket = new Socket("localhost", port);
+                    OutputStream out = socket.getOutputStream();
+                    InputStream in = socket.getInputStream();
+                    while (System.nanoTime() < deadline) {
+                        out.write(REQUEST);
+                        out.flush();
+                        if (!readResponse(in, buffer)) {
+                            errors.incrementAndGet();
+                            return;
+                        }
+                        requests.incrementAndGet();
+                    }
+                } catch (IOException e) {
+                    errors.incrementAndGet();
+                } finally {
+                    close(socket);
+                    done.countDown();
+                }
+            }
+        }, "client-" + port);
+        client.setDaemon(true);
+        client.start();
+    }
+
+    /**
+     * Reads one response consisting of headers with a Content-Length and a
+     * body, returns <code>false</code> for anything but 200.
+     */
+    private static boolean readResponse(InputStream in, byte[] buffer)
+            throws IOException {
+        int length = 0;
+        int headerEnd = -1;
+        while (headerEnd < 0) {
+            int read = in.read(buffer, length, buffer.length - length);
+            if (read < 0)
+                return false;
+            length += read;
+            headerEnd = indexOfHeaderEnd(buffer, length);
+        }
+
+        String headers = new String(buffer, 0, headerEnd, "ISO-8859-1");
+        int contentLength = 0;
+        for (String line : headers.split("\r\n")) {
+            if (line.regionMatches(true, 0, "Content-Length:", 0, 15))
+                contentLength = Integer.parseInt(line.substring(15).trim());
+        }
+
+        int remaining = headerEnd + 4 + contentLength - length;
+        while (remaining > 0) {
+            int read = in.read(buffer, 0, Math.min(buffer.length, remaining));
+            if (read < 0)
+                return false;
+            remaining -= read;
+        }
+        return headers.startsWith("HTTP/1.1 200");
+    }
+
+    private static int indexOfHeaderEnd(byte[] buffer, int length) {
+        for (int i = 0; i + 3 < length; i++) {
+            if (buffer[i] == '\r' && buffer[i + 1] == '\n'
+                    && buffer[i + 2] == '\r' && buffer[i + 3] == '\n')
+                return i;
+        }
+        return -1;
+    }
+
+    private static void close(Socket socket) {
+        if (socket == null)
+            return;
+        try {
+            socket.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,79 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.dispatch;
+
+import net.javaforge.netty.servlet.bridge.config.ServletConfiguration;
+import net.javaforge.netty.servlet.bridge.impl.ServletRoute;
+import net.javaforge.netty.servlet.bridge.impl.ServletRouteIndex;
+import org.junit.Test;
+
+import javax.servlet.http.HttpServlet;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class AdmissionControllerTest {
+
+    private final ServletRouteIndex index = ServletRouteIndex.build(
+            Arrays.asList(servlet("/api/*"), servlet("/")));
+
+    private final ServletRoute api = index.match("/api/x");
+
+    private final ServletRoute other = index.match("/x");
+
+    @Test
+    public void globalLimitIsCheckedBeforeRouting() {
+        AdmissionController controller = new AdmissionController(1);
+
+        assertTrue(controller.tryAcquire());
+        assertFalse(controller.tryAcquire());
+        assertTrue(controller.tryAcquireRoute(other));
+        assertEquals(1, controller.getInFlight());
+
+        controller.release(other);
+        assertEquals(0, controller.getInFlight());
+        assertEquals(1, controller.getAdmittedCount());
+        assertEquals(1, controller.getRejectedCount());
+    }
+
+    @Test
+    public void patternLimitIsCheckedOnceRouted() {
+        AdmissionController controller = new AdmissionController(10)
+                .setLimit("/api/*", 1);
+
+        assertTrue(controller.tryAcquire());
+        assertTrue(controller.tryAcquireRoute(api));
+        assertTrue(controller.tryAcquire());
+        assertFalse(controller.tryAcquireRoute(api));
+        controller.release();
+        assertEquals(1, controller.getInFlight());
+        assertEquals(1, controller.getLimit("/api/*").getInFlight());
+
+        assertTrue(controller.tryAcquire(other));
+        controller.release(other);
+        controller.release(api);
+        assertEquals(0, controller.getInFlight());
+        assertEquals(0, controller.getLimit("/api/*").getInFlight());
+        assertTrue(controller.tryAcquire(api));
+    }
+
+    private static ServletConfiguration servlet(String urlPattern) {
+        return new ServletConfiguration(new HttpServlet() {
+        }, urlPattern);
+    }
+}
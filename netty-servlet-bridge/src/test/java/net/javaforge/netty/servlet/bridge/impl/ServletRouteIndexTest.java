@@ -0,0 +1,169 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.impl;
+
+import net.javaforge.netty.servlet.bridge.config.FilterConfiguration;
+import net.javaforge.netty.servlet.bridge.config.ServletConfiguration;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.servlet.*;
+import javax.servlet.http.HttpServlet;
+import java.util.Arrays;
+
+import static org.junit.Assert.*;
+
+public class ServletRouteIndexTest {
+
+    private ServletConfiguration exact;
+
+    private ServletConfiguration prefix;
+
+    private ServletConfiguration longerPrefix;
+
+    private ServletConfiguration extension;
+
+    private ServletConfiguration defaultServlet;
+
+    private ServletRouteIndex index;
+
+    @Before
+    public void setUp() {
+        exact = servlet("/foo/bar");
+        prefix = servlet("/foo/*");
+        longerPrefix = servlet("/foo/bar/baz/*");
+        extension = servlet("*.jsp");
+        defaultServlet = servlet("/");
+        index = ServletRouteIndex.build(Arrays.asList(defaultServlet,
+                extension, prefix, longerPrefix, exact));
+    }
+
+    @Test
+    public void exactMatchWinsOverPrefix() {
+        assertRoute(exact, ServletRoute.Type.EXACT, "/foo/bar");
+    }
+
+    @Test
+    public void prefixMatchesItsOwnPath() {
+        assertRoute(prefix, ServletRoute.Type.PREFIX, "/foo");
+        assertRoute(prefix, ServletRoute.Type.PREFIX, "/foo/");
+    }
+
+    @Test
+    public void longestPrefixWins() {
+        assertRoute(prefix, ServletRoute.Type.PREFIX, "/foo/bar/x");
+        assertRoute(longerPrefix, ServletRoute.Type.PREFIX, "/foo/bar/baz/x");
+        assertRoute(prefix, ServletRoute.Type.PREFIX, "/foo/barbaz");
+    }
+
+    @Test
+    public void prefixWinsOverExtension() {
+        assertRoute(prefix, ServletRoute.Type.PREFIX, "/foo/index.jsp");
+    }
+
+    @Test
+    public void extensionWinsOverDefault() {
+        assertRoute(extension, ServletRoute.Type.EXTENSION, "/other/index.jsp");
+        assertRoute(defaultServlet, ServletRoute.Type.DEFAULT, "/other/index.jsp/x");
+        assertRoute(defaultServlet, ServletRoute.Type.DEFAULT, "/other.jsp.old");
+    }
+
+    @Test
+    public void defaultMatchesEverythingElse() {
+        assertRoute(defaultServlet, ServletRoute.Type.DEFAULT, "/");
+        assertRoute(defaultServlet, ServletRoute.Type.DEFAULT, "/fo");
+        assertRoute(defaultServlet, ServletRoute.Type.DEFAULT, "/other/x");
+    }
+
+    @Test
+    public void queryStringIsIgnored() {
+        assertRoute(exact, ServletRoute.Type.EXACT, "/foo/bar?x=/foo/bar/baz/y");
+        assertRoute(extension, ServletRoute.Type.EXTENSION, "/a.jsp?x.html");
+    }
+
+    @Test
+    public void matchesRangeOfUri() {
+        String uri = "/context/foo/bar?q";
+        assertSame(exact, index.match(uri, 8, 16).getServletConfiguration());
+    }
+
+    @Test
+    public void noRouteWithoutDefaultServlet() {
+        ServletRouteIndex index = ServletRouteIndex.build(Arrays.asList(exact));
+        assertNull(index.match("/other"));
+        assertSame(exact, index.match("/foo/bar").getServletConfiguration());
+    }
+
+    @Test
+    public void servletPathEndsAfterPrefix() {
+        String uri = "/foo/bar/x";
+        ServletRoute route = index.match(uri);
+        assertEquals(4, route.getServletPathEnd(uri, 0, uri.length()));
+
+        uri = "/other/x";
+        route = index.match(uri);
+        assertEquals(uri.length(), route.getServletPathEnd(uri, 0,
+                uri.length()));
+    }
+
+    @Test
+    public void filtersAreOrderedByDeclaration() {
+        FilterConfiguration all = filter("/*");
+        FilterConfiguration jsp = filter("*.jsp");
+        FilterConfiguration foo = filter("/foo/*");
+        ServletRouteIndex index = ServletRouteIndex.build(Arrays.asList(
+                defaultServlet, prefix), Arrays.asList(all, jsp, foo));
+
+        assertEquals(Arrays.asList(all, jsp, foo), index.match("/foo/a.jsp")
+                .getFilterConfigurations());
+        assertEquals(Arrays.asList(all, foo), index.match("/foo/a")
+                .getFilterConfigurations());
+        assertEquals(Arrays.asList(all), index.match("/a")
+                .getFilterConfigurations());
+    }
+
+    private void assertRoute(ServletConfiguration servlet,
+                             ServletRoute.Type type, String uri) {
+        ServletRoute route = index.match(uri);
+        assertNotNull(uri, route);
+        assertSame(uri, servlet, route.getServletConfiguration());
+        assertEquals(uri, type, route.getType());
+    }
+
+    private static ServletConfiguration servlet(String urlPattern) {
+        return new ServletConfiguration(new HttpServlet() {
+        }, urlPattern);
+    }
+
+    private static FilterConfiguration filter(String urlPattern) {
+        return new FilterConfiguration(new Filter() {
+            @Override
+            public void init(FilterConfig filterConfig) {
+            }
+
+            @Override
+            public void doFilter(ServletRequest request,
+                                 ServletResponse response, FilterChain chain) {
+            }
+
+            @Override
+            public void destroy() {
+            }
+        }, urlPattern);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.util;
+
+import io.netty.buffer.ByteBuf;
+import io.netty.buffer.Unpooled;
+import io.netty.util.CharsetUtil;
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.*;
+
+import static org.junit.Assert.assertEquals;
+
+public class FormDecoderTest {
+
+    @Test
+    public void decodesFields() {
+        Map<String, List<String>> parameters = decode("a=1&b=two&c=");
+        assertEquals(Arrays.asList("a", "b", "c"), new ArrayList<String>(
+                parameters.keySet()));
+        assertEquals(Arrays.asList("1"), parameters.get("a"));
+        assertEquals(Arrays.asList("two"), parameters.get("b"));
+        assertEquals(Arrays.asList(""), parameters.get("c"));
+    }
+
+    @Test
+    public void keepsRepeatedFieldsInOrder() {
+        assertEquals(Arrays.asList("1", "3", "2"), decode("a=1&b=x&a=3&a=2")
+                .get("a"));
+    }
+
+    @Test
+    public void appendsToExistingValues() {
+        Map<String, List<String>> parameters = new LinkedHashMap<String, List<String>>();
+        parameters.put("a", new ArrayList<String>(Arrays.asList("query")));
+        decode("a=form", CharsetUtil.UTF_8, parameters);
+        assertEquals(Arrays.asList("query", "form"), parameters.get("a"));
+    }
+
+    @Test
+    public void decodesNamesWithoutValue() {
+        Map<String, List<String>> parameters = decode("a&b=&&=c");
+        assertEquals(Arrays.asList(""), parameters.get("a"));
+        assertEquals(Arrays.asList(""), parameters.get("b"));
+        assertEquals(Arrays.asList("c"), parameters.get(""));
+        assertEquals(3, parameters.size());
+    }
+
+    @Test
+    public void decodesEscapes() {
+        Map<String, List<String>> parameters = decode("a+b=c+d%20e&%3D=%26%2b%2F");
+        assertEquals(Arrays.asList("c d e"), parameters.get("a b"));
+        assertEquals(Arrays.asList("&+/"), parameters.get("="));
+    }
+
+    @Test
+    public void keepsMalformedEscapes() {
+        Map<String, List<String>> parameters = decode("a=%zz&b=%4&c=100%");
+        assertEquals(Arrays.asList("%zz"), parameters.get("a"));
+        assertEquals(Arrays.asList("%4"), parameters.get("b"));
+        assertEquals(Arrays.asList("100%"), parameters.get("c"));
+    }
+
+    @Test
+    public void decodesWithCharset() {
+        assertEquals(Arrays.asList("\u00e4\u20ac"), decode("a=%C3%A4%E2%82%AC")
+                .get("a"));
+        assertEquals(Arrays.asList("\u00c3\u00a4"), decode("a=%C3%A4",
+                CharsetUtil.ISO_8859_1, new HashMap<String, List<String>>())
+                .get("a"));
+    }
+
+    @Test
+    public void decodesLongValues() {
+        StringBuilder value = new StringBuilder();
+        for (int i = 0; i < 1000; i++)
+            value.append(i % 10);
+        assertEquals(Arrays.asList(value.toString()), decode("short=1&long="
+                + value).get("long"));
+    }
+
+    @Test
+    public void decodesReadableBytesOnly() {
+        ByteBuf content = Unpooled.copiedBuffer("x=0&a=1", CharsetUtil.US_ASCII);
+        content.readerIndex(4);
+        Map<String, List<String>> parameters = new HashMap<String, List<String>>();
+        FormDecoder.decode(content, CharsetUtil.UTF_8, parameters);
+        assertEquals(Collections.singletonMap("a", Arrays.asList("1")),
+                parameters);
+    }
+
+    @Test
+    public void decodesEmptyContent() {
+        assertEquals(0, decode("").size());
+    }
+
+    private static Map<String, List<String>> decode(String form) {
+        return decode(form, CharsetUtil.UTF_8,
+                new LinkedHashMap<String, List<String>>());
+    }
+
+    private static Map<String, List<String>> decode(String form,
+                                                    Charset charset,
+                                                    Map<String, List<String>> parameters) {
+        ByteBuf content = Unpooled.copiedBuffer(form, CharsetUtil.US_ASCII);
+        try {
+            FormDecoder.decode(content, charset, parameters);
+        } finally {
+            content.release();
+        }
+        return parameters;
+    }
+}
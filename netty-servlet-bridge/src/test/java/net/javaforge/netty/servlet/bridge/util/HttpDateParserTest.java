@@ -0,0 +1,118 @@
+/*
+ * Copyright 2013 by Maxim Kalina
+ *
+ *    Licensed under the Apache License, Version 2.0 (the "License");
+ *    you may not use this file except in compliance with the License.
+ *    You may obtain a copy of the License at
+ *
+ *        http://www.apache.org/licenses/LICENSE-2.0
+ *
+ *    Unless required by applicable law or agreed to in writing, software
+ *    distributed under the License is distributed on an "AS IS" BASIS,
+ *    WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ *    See the License for the specific language governing permissions and
+ *    limitations under the License.
+ */
+
+
+package net.javaforge.netty.servlet.bridge.util;
+
+import org.junit.Test;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.Locale;
+import java.util.Random;
+import java.util.TimeZone;
+
+import static net.javaforge.netty.servlet.bridge.util.HttpDateParser.INVALID;
+import static net.javaforge.netty.servlet.bridge.util.HttpDateParser.parse;
+import static net.javaforge.netty.servlet.bridge.util.HttpDateParser.parseDate;
+import static org.junit.Assert.assertEquals;
+
+public class HttpDateParserTest {
+
+    private static final long NOV_6_1994 = 784111777000L;
+
+    @Test
+    public void parsesRfc1123() {
+        assertEquals(NOV_6_1994, parseDate("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals(0L, parseDate("Thu, 01 Jan 1970 00:00:00 GMT"));
+        assertEquals(NOV_6_1994, parseDate("Sun, 6 Nov 1994 08:49:37 GMT"));
+        assertEquals(NOV_6_1994, parseDate("Sun, 06 NOV 1994 08:49:37 GMT"));
+    }
+
+    @Test
+    public void parsesRfc850() {
+        assertEquals(NOV_6_1994, parseDate("Sunday, 06-Nov-94 08:49:37 GMT"));
+        assertEquals(parseDate("Sat, 01 Jan 2000 00:00:00 GMT"),
+                parseDate("Saturday, 01-Jan-00 00:00:00 GMT"));
+        assertEquals(parseDate("Thu, 01 Jan 1970 00:00:00 GMT"),
+                parseDate("Thursday, 01-Jan-70 00:00:00 GMT"));
+    }
+
+    @Test
+    public void parsesAsctime() {
+        assertEquals(NOV_6_1994, parseDate("Sun Nov  6 08:49:37 1994"));
+        assertEquals(parseDate("Tue, 16 Nov 1994 08:49:37 GMT"),
+                parseDate("Tue Nov 16 08:49:37 1994"));
+    }
+
+    @Test
+    public void agreesWithSimpleDateFormat() {
+        SimpleDateFormat format = new SimpleDateFormat(
+                "EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.US);
+        format.setTimeZone(TimeZone.getTimeZone("GMT"));
+
+        Random random = new Random(42);
+        for (int i = 0; i < 10000; i++) {
+            // between 1900 and 2100, whole seconds
+            long time = (random.nextLong() % 3155760000L) * 1000L;
+            assertEquals(time, parseDate(format.format(new Date(time))));
+        }
+        assertEquals(951782400000L, parseDate("Tue, 29 Feb 2000 00:00:00 GMT"));
+    }
+
+    @Test
+    public void acceptsBounds() {
+        assertEquals(parseDate("Sun, 06 Nov 1994 23:59:59 GMT") + 1000L,
+                parseDate("Sun, 06 Nov 1994 23:59:60 GMT"));
+        assertEquals(parseDate("Sat, 31 Dec 1994 00:00:00 GMT") + 86400000L,
+                parseDate("Sun, 01 Jan 1995 00:00:00 GMT"));
+    }
+
+    @Test
+    public void rejectsValuesOutOfBounds() {
+        assertEquals(INVALID, parseDate("Sun, 00 Nov 1994 08:49:37 GMT"));
+        assertEquals(INVALID, parseDate("Sun, 32 Nov 1994 08:49:37 GMT"));
+        assertEquals(INVALID, parseDate("Sun, 06 Nov 1994 24:00:00 GMT"));
+        assertEquals(INVALID, parseDate("Sun, 06 Nov 1994 08:60:37 GMT"));
+        assertEquals(INVALID, parseDate("Sun, 06 Nov 1994 08:49:61 GMT"));
+        assertEquals(INVALID, parseDate("Sun, 06 Foo 1994 08:49:37 GMT"));
+        assertEquals(INVALID, parseDate("Sun Nov 32 08:49:37 1994"));
+    }
+
+    @Test
+    public void rejectsMalformedValues() {
+        assertEquals(INVALID, parseDate(""));
+        assertEquals(INVALID, parseDate("Sun"));
+        assertEquals(INVALID, parseDate("784111777"));
+        assertEquals(INVALID, parseDate("Sun, 06 Nov 1994 08:49:37"));
+        assertEquals(INVALID, parseDate("Sun, 06 Nov 1994 08:49:37 GMT+1"));
+        assertEquals(INVALID, parseDate("Sun, 06 Nov 1994 08:49:37 UTC"));
+        assertEquals(INVALID, parseDate("Sun, 06 Nov 94 8:49:37 GMT"));
+        assertEquals(INVALID, parseDate("Sun, 06 Nov 19944 08:49:37 GMT"));
+        assertEquals(INVALID, parseDate("Sun, 06-Nov 1994 08:49:37 GMT"));
+        assertEquals(INVALID, parseDate("Sun, 006 Nov 1994 08:49:37 GMT"));
+        assertEquals(INVALID, parseDate("Sun Nov 6 08:49:37 1994"));
+        assertEquals(INVALID, parseDate("Sun Nov  6 08:49:37 94x4"));
+    }
+
+    @Test
+    public void cachesParsedValues() {
+        assertEquals(NOV_6_1994, parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals(NOV_6_1994, parse("Sun, 06 Nov 1994 08:49:37 GMT"));
+        assertEquals(INVALID, parse("invalid"));
+        assertEquals(INVALID, parse("invalid"));
+    }
+}